@@ -0,0 +1,212 @@
+package jua;
+
+import jua.compiler.Code;
+import jua.compiler.InstructionUtils;
+import jua.compiler.InstructionUtils.*;
+import jua.compiler.Module;
+
+import java.util.Arrays;
+
+/**
+ * Проверяет байт-код функции перед тем, как он будет загружен в среду выполнения.
+ * <p>
+ * Верификатор обходит все достижимые инструкции и проверяет, что глубина стека в каждой точке однозначна,
+ * не опускается ниже нуля и не превышает {@link Module.Executable#stackSize}, что переходы ведут внутрь кода,
+ * индексы регистров не выходят за окно регистров, а индексы констант ссылаются на элементы пула нужного вида.
+ * Благодаря этому интерпретатор резервирует стек один раз при входе во фрейм
+ * и не проверяет границы стека на каждой операции.
+ */
+public final class BytecodeVerifier {
+
+    public static class VerifyException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public VerifyException(String message) {
+            super(message);
+        }
+    }
+
+    public static void verify(Module.Executable executable) {
+        new BytecodeVerifier(executable).run();
+    }
+
+    private final Module.Executable executable;
+    private final InstrNode[] code;
+
+    /** Глубина стека перед каждой инструкцией или -1, если инструкция еще не достигнута. */
+    private final int[] depths;
+
+    private final int[] worklist;
+    private int worklistSize = 0;
+
+    private BytecodeVerifier(Module.Executable executable) {
+        this.executable = executable;
+        this.code = executable.code;
+        this.depths = new int[code.length];
+        this.worklist = new int[code.length];
+        Arrays.fill(depths, -1);
+    }
+
+    private void run() {
+        if (code.length == 0) {
+            throw error(0, "empty code");
+        }
+        if (executable.totargs > executable.regSize) {
+            throw error(0, "parameters do not fit into " + executable.regSize + " registers");
+        }
+        enter(0, 0, 0);
+        while (worklistSize > 0) {
+            int cp = worklist[--worklistSize];
+            verifyInstruction(cp, depths[cp]);
+        }
+    }
+
+    private void verifyInstruction(int cp, int depth) {
+        InstrNode node = code[cp];
+        int opcode = node.opcode;
+        if (depth < inputs(node)) {
+            throw error(cp, "stack underflow");
+        }
+        int after = depth + stackEffect(node);
+        if (after > executable.stackSize) {
+            throw error(cp, "stack overflow, declared stack size is " + executable.stackSize);
+        }
+
+        switch (opcode) {
+            case OPCodes.Load: case OPCodes.Store:
+            case OPCodes.Inc: case OPCodes.Dec:
+                checkRegister(cp, ((IndexedInstrNode) node).index);
+                break;
+            case OPCodes.Load0: case OPCodes.Store0: checkRegister(cp, 0); break;
+            case OPCodes.Load1: case OPCodes.Store1: checkRegister(cp, 1); break;
+            case OPCodes.Load2: case OPCodes.Store2: checkRegister(cp, 2); break;
+            case OPCodes.ShLoad: case OPCodes.ShStore:
+                // Разделяемые переменные принадлежат <main>, их число здесь неизвестно.
+                if (((IndexedInstrNode) node).index < 0) {
+                    throw error(cp, "negative shared variable index");
+                }
+                break;
+            case OPCodes.Push:
+                checkConstant(cp, ((ConstantInstrNode) node).index);
+                break;
+            case OPCodes.Call: case OPCodes.TailCall:
+                checkCallee(cp, ((CallInstrNode) node).callee);
+                break;
+            case OPCodes.LinearSwitch: case OPCodes.BinarySwitch: {
+                SwitchInstrNode sw = (SwitchInstrNode) node;
+                if (sw.literals.length != sw.dstIps.length) {
+                    throw error(cp, "switch labels do not match targets");
+                }
+                for (int literal : sw.literals) {
+                    checkConstant(cp, literal);
+                }
+                for (int target : sw.dstIps) {
+                    enter(cp, target, after);
+                }
+                enter(cp, sw.defCp, after);
+                return;
+            }
+        }
+
+        if (node instanceof JumpInstrNode) {
+            enter(cp, ((JumpInstrNode) node).offset, after);
+        }
+        if (!isUnconditional(opcode)) {
+            if (cp + 1 == code.length) {
+                throw error(cp, "execution falls off the end of the code");
+            }
+            enter(cp, cp + 1, after);
+        }
+    }
+
+    private void enter(int from, int cp, int depth) {
+        if (cp < 0 || cp >= code.length) {
+            throw error(from, "jump target " + cp + " is out of the code");
+        }
+        if (depths[cp] < 0) {
+            depths[cp] = depth;
+            worklist[worklistSize++] = cp;
+        } else if (depths[cp] != depth) {
+            throw error(cp, "inconsistent stack depth: " + depths[cp] + " and " + depth);
+        }
+    }
+
+    private void checkRegister(int cp, int index) {
+        if (index < 0 || index >= executable.regSize) {
+            throw error(cp, "register " + index + " is out of " + executable.regSize + " registers");
+        }
+    }
+
+    private void checkConstant(int cp, int index) {
+        if (index < 0 || index >= executable.constantPool.length) {
+            throw error(cp, "constant index " + index + " is out of the constant pool");
+        }
+        if (executable.constantPool[index] instanceof Code.Callee) {
+            throw error(cp, "constant index " + index + " refers to a callee");
+        }
+    }
+
+    private void checkCallee(int cp, int index) {
+        if (index < 0 || index >= executable.constantPool.length
+                || !(executable.constantPool[index] instanceof Code.Callee)) {
+            throw error(cp, "callee index " + index + " does not refer to a callee");
+        }
+    }
+
+    /** Возвращает число значений, которые инструкция снимает со стека или читает под его вершиной. */
+    private static int inputs(InstrNode node) {
+        switch (node.opcode) {
+            case OPCodes.Dup: case OPCodes.NewList: case OPCodes.Length:
+            case OPCodes.Pos: case OPCodes.Neg: case OPCodes.Not:
+            case OPCodes.Pop:
+            case OPCodes.Store: case OPCodes.Store0: case OPCodes.Store1: case OPCodes.Store2:
+            case OPCodes.ShStore:
+            case OPCodes.IfZ: case OPCodes.IfNz: case OPCodes.IfNull: case OPCodes.IfNonNull:
+            case OPCodes.LinearSwitch: case OPCodes.BinarySwitch:
+            case OPCodes.Return:
+                return 1;
+            case OPCodes.DupX1: case OPCodes.Swap: case OPCodes.Dup2: case OPCodes.Pop2:
+            case OPCodes.Add: case OPCodes.Sub: case OPCodes.Mul: case OPCodes.Div: case OPCodes.Rem:
+            case OPCodes.And: case OPCodes.Or: case OPCodes.Xor: case OPCodes.Shl: case OPCodes.Shr:
+            case OPCodes.ArrayLoad: case OPCodes.ArrayInc: case OPCodes.ArrayDec:
+            case OPCodes.IfEq: case OPCodes.IfNe: case OPCodes.IfGt:
+            case OPCodes.IfGe: case OPCodes.IfLt: case OPCodes.IfLe:
+            case OPCodes.IfPresent: case OPCodes.IfAbsent:
+                return 2;
+            case OPCodes.DupX2: case OPCodes.Dup2X1: case OPCodes.ArrayStore:
+                return 3;
+            case OPCodes.Dup2X2:
+                return 4;
+            case OPCodes.Call: case OPCodes.TailCall:
+                return ((CallInstrNode) node).argc;
+            default:
+                return 0;
+        }
+    }
+
+    private static int stackEffect(InstrNode node) {
+        switch (node.opcode) {
+            case OPCodes.ShLoad: return 1;
+            case OPCodes.ShStore: return -1;
+            default: return node.stackAdjustment();
+        }
+    }
+
+    private static boolean isUnconditional(int opcode) {
+        switch (opcode) {
+            case OPCodes.Goto:
+            case OPCodes.Return:
+            case OPCodes.Leave:
+            case OPCodes.LinearSwitch:
+            case OPCodes.BinarySwitch:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private VerifyException error(int cp, String message) {
+        return new VerifyException(String.format("%s, cp %d (%s): %s",
+                executable.name, cp, cp < code.length ? InstructionUtils.getOpcodeName(code[cp].opcode) : "?", message));
+    }
+}
@@ -17,6 +17,7 @@ import java.util.Arrays;
 public class Executable2FunctionTranslator {
 
     public static Function translate(Module.Executable executable) {
+        BytecodeVerifier.verify(executable);
         return new Function(
                 executable.name,
                 executable.fileName,
@@ -30,18 +31,41 @@ public class Executable2FunctionTranslator {
                     return a;
                 }).toArray(Address[]::new),
                 executable.flags,
-                new CodeData(
-                        executable.stackSize,
-                        executable.regSize,
-                        executable.varnames,
-                        translateCode(executable.code), // todo
-                        getConstantPool(executable.constantPool),
-                        toLineNumTable(executable.lineNumberTable)
-                ),
+                Options.isRegisterCode() ? getRegisterCode(executable) : getStackCode(executable),
                 null
         );
     }
 
+    private static CodeData getStackCode(Module.Executable executable) {
+        // Профилировщик n-грамм работает только с объектным представлением кода.
+        // JIT-компилятор транслирует упакованный код.
+        boolean packed = (Options.isSwitchDispatch() || Options.isJitEnabled()) && !NGramProfiler.isEnabled();
+        return new CodeData(
+                executable.stackSize,
+                // Упакованному коду нужен запасной регистр под стеком операндов, см. ExecutionContext#executePacked.
+                packed ? executable.regSize + 1 : executable.regSize,
+                executable.varnames,
+                translateCode(executable.code, executable.constantPool), // todo
+                packed ? translatePackedCode(executable.code, executable.constantPool) : null,
+                getConstantPool(executable.constantPool),
+                toLineNumTable(executable.lineNumberTable)
+        );
+    }
+
+    private static CodeData getRegisterCode(Module.Executable executable) {
+        RegisterCodeTranslator t = new RegisterCodeTranslator(executable);
+        Instruction[] code = t.translate();
+        return new CodeData(
+                // Стек нужен только для передачи аргументов и результатов вызовов.
+                executable.stackSize,
+                t.getRegNumber(),
+                executable.varnames,
+                NGramProfiler.isEnabled() ? NGramProfiler.instrument(code) : code,
+                getConstantPool(executable.constantPool),
+                t.translateLineNumberTable(executable.lineNumberTable)
+        );
+    }
+
     private static ConstantPool getConstantPool(Object[] values) {
         Object[] runtimeElements = new Object[values.length];
         for (int i = 0; i < values.length; i++) {
@@ -60,9 +84,27 @@ public class Executable2FunctionTranslator {
         return new jua.runtime.code.LineNumberTable(lnt.codePoints, lnt.lineNumbers);
     }
 
-    private static Instruction[] translateCode(InstructionUtils.InstrNode[] a) {
+    private static Instruction[] translateCode(InstructionUtils.InstrNode[] a, Object[] constantPool) {
         OPCodeTranslator t = new OPCodeTranslator();
         Arrays.stream(a).forEach(i -> i.accept(t));
-        return t.getInstructions().toArray(new Instruction[0]);
+        Instruction[] code = t.getInstructions().toArray(new Instruction[0]);
+        if (NGramProfiler.isEnabled()) {
+            // Профилируются исходные последовательности, без суперинструкций.
+            return NGramProfiler.instrument(code);
+        }
+        if (Options.isSuperinstructionsEnabled()) {
+            SuperinstructionFuser.fuse(a, code, constantPool);
+        }
+        return code;
+    }
+
+    private static int[] translatePackedCode(InstructionUtils.InstrNode[] a, Object[] constantPool) {
+        PackedCodeTranslator t = new PackedCodeTranslator();
+        Arrays.stream(a).forEach(i -> i.accept(t));
+        int[] code = t.getCode();
+        if (Options.isSuperinstructionsEnabled()) {
+            SuperinstructionFuser.fusePacked(a, code, constantPool);
+        }
+        return code;
     }
 }
@@ -38,6 +38,7 @@ public class InstructionFactory {
     private static final Dup2X1 dup2_x1 = new Dup2X1();
     private static final Dup2X2 dup2_x2 = new Dup2X2();
     private static final NewList newlist = new NewList();
+    private static final NewMap newmap = new NewMap();
     private static final Pop pop = new Pop();
     private static final Pop2 pop2 = new Pop2();
     private static final Rem rem = new Rem();
@@ -85,6 +86,7 @@ public class InstructionFactory {
         MAPPING[InstructionUtils.OPCodes.Dup2X1] =  dup2_x1;
         MAPPING[InstructionUtils.OPCodes.Dup2X2] =  dup2_x2;
         MAPPING[InstructionUtils.OPCodes.NewList] =  newlist;
+        MAPPING[InstructionUtils.OPCodes.NewMap] =  newmap;
         MAPPING[InstructionUtils.OPCodes.Pop] =  pop;
         MAPPING[InstructionUtils.OPCodes.Pop2] =  pop2;
         MAPPING[InstructionUtils.OPCodes.Rem] =  rem;
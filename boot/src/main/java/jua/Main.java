@@ -4,11 +4,14 @@ import jua.compiler.JuaCompiler;
 import jua.compiler.Module;
 import jua.compiler.ModulePrinter;
 import jua.compiler.ModuleScope;
+import jua.compiler.Tree;
 import jua.runtime.Function;
 import jua.runtime.JuaEnvironment;
 import jua.runtime.interpreter.AddressSupport;
 import jua.runtime.interpreter.InterpreterThread;
 import jua.runtime.interpreter.Address;
+import jua.runtime.jit.JitCompiler;
+import jua.runtime.tree.TreeCode;
 import jua.stdlib.Lib;
 
 import java.io.File;
@@ -18,6 +21,7 @@ import java.util.stream.Collectors;
 public class Main {
 
     private static Module module;
+    private static Tree.Document compilationUnit;
     private static Function[] nativeFunctions;
 
 
@@ -50,6 +54,7 @@ public class Main {
         c.setCharset(Options.charset());
         c.setFile(Options.firstFile());
         c.setGenJvmLoops(Options.genJvmLoops());
+        c.setGenTailCalls(Options.isTailCallsEnabled());
         c.setStderr(System.err);
         c.setStdout(System.out);
         c.setLintMode(Options.isLintEnabled());
@@ -71,6 +76,7 @@ public class Main {
             // todo: Сделать нормальную проверку на ошибку компиляции.
             System.exit(1);
         }
+        compilationUnit = c.getCompilationUnit();
 
         if (Options.isShouldPrintCode()) {
             ModulePrinter.printModule(module);
@@ -79,9 +85,22 @@ public class Main {
     }
 
     private static void interpret() {
-        List<Function> functions = Arrays.stream(module.executables)
-                .map(Executable2FunctionTranslator::translate)
-                .collect(Collectors.toList());
+        if (Options.ngramsLength() > 0) {
+            NGramProfiler.enable(Options.ngramsLength());
+        }
+        if (Options.isJitEnabled()) {
+            JitCompiler.enable();
+        }
+        List<Function> functions;
+        try {
+            functions = Arrays.stream(module.executables)
+                    .map(Executable2FunctionTranslator::translate)
+                    .collect(Collectors.toList());
+        } catch (BytecodeVerifier.VerifyException e) {
+            System.err.println("Verification error: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
 
         Collections.addAll(functions, nativeFunctions);
 
@@ -91,9 +110,58 @@ public class Main {
 
         JuaEnvironment env = JuaEnvironment.getEnvironment();
         functions.forEach(env::addFunction);
+        if (Options.isTreeExecution()) {
+            for (Tree.FuncDef tree : compilationUnit.functions) {
+                env.findFunction(tree.name).setTreeCode(TreeTranslator.translate(
+                        tree, compilationUnit.source, Options.isTailCallsEnabled()));
+            }
+        }
+        for (Function f : functions) {
+            if (f.isUserDefined()) {
+                f.getCode().getConstantPool().linkCallees(env);
+            }
+        }
+        if (Options.isTreeExecution()) {
+            runWithStack(TreeCode.stackSize(Options.maxCallDepth()), () -> run(env, mainFn));
+        } else {
+            run(env, mainFn);
+        }
+    }
+
+    private static void run(JuaEnvironment env, Function mainFn) {
         InterpreterThread thread = new InterpreterThread(Thread.currentThread(), env);
+        thread.setMaxCallDepth(Options.maxCallDepth());
+        if (Options.isDepthStatsEnabled()) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.printf(
+                    "Peak call depth: %d, frames allocated: %d%n",
+                    thread.getPeakCallDepth(), thread.getAllocatedFrames())));
+        }
         Address resultReceiver = new Address();
         thread.callAndWait(mainFn, new Address[0], resultReceiver);
         // Если будет интересно, что вернул код, то можно напечатать resultReceiver.
     }
+
+    /**
+     * Выполняет {@code task} в потоке со стеком JVM размером {@code stackSize} и ждет его завершения.
+     * Деревья вызывают функции рекурсивно, и стека основного потока хватает лишь на тысячу-другую вызовов.
+     * Исключение потока перебрасывается, поэтому вывод и код завершения те же, что и без отдельного потока.
+     */
+    private static void runWithStack(long stackSize, Runnable task) {
+        Throwable[] failure = new Throwable[1];
+        Thread worker = new Thread(null, () -> {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }, Thread.currentThread().getName(), stackSize);
+        worker.start();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        if (failure[0] instanceof RuntimeException) throw (RuntimeException) failure[0];
+        if (failure[0] instanceof Error) throw (Error) failure[0];
+    }
 }
@@ -0,0 +1,172 @@
+package jua;
+
+import jua.runtime.interpreter.ExecutionContext;
+import jua.runtime.interpreter.OPCodes;
+import jua.runtime.interpreter.instruction.Instruction;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static jua.compiler.InstructionUtils.getOpcodeName;
+
+/**
+ * Собирает частоты последовательностей опкодов (n-грамм), выполненных подряд.
+ * <p>
+ * Учитываются только последовательности, которые можно объединить в суперинструкцию:
+ * инструкции идут подряд в пределах одной функции, а передача управления может быть лишь последней.
+ * По полученной таблице выбирается набор суперинструкций.
+ */
+public final class NGramProfiler {
+
+    private static final int TOP_LIMIT = 30;
+
+    private static NGramProfiler instance;
+
+    public static void enable(int maxLength) {
+        if (instance != null) {
+            throw new IllegalStateException();
+        }
+        instance = new NGramProfiler(maxLength);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> instance.print(System.err)));
+    }
+
+    public static boolean isEnabled() {
+        return instance != null;
+    }
+
+    /**
+     * Оборачивает каждую инструкцию кода в счетчик.
+     */
+    public static Instruction[] instrument(Instruction[] code) {
+        Instruction[] result = new Instruction[code.length];
+        for (int cp = 0; cp < code.length; cp++) {
+            result[cp] = new Probe(instance, code, cp, code[cp]);
+        }
+        return result;
+    }
+
+    private static final class Probe implements Instruction {
+        private final NGramProfiler profiler;
+        private final Object owner;
+        private final int cp;
+        private final Instruction delegate;
+
+        Probe(NGramProfiler profiler, Object owner, int cp, Instruction delegate) {
+            this.profiler = profiler;
+            this.owner = owner;
+            this.cp = cp;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            profiler.record(owner, cp, delegate.opcode());
+            return delegate.execute(context, cp);
+        }
+
+        @Override
+        public int opcode() { return delegate.opcode(); }
+    }
+
+    private final int maxLength;
+    private final int[] window;
+    private int windowLength = 0;
+    private Object lastOwner;
+    private int lastCp;
+    private long total = 0;
+    private final Map<Key, long[]> counters = new HashMap<>();
+
+    private NGramProfiler(int maxLength) {
+        this.maxLength = maxLength;
+        this.window = new int[maxLength];
+    }
+
+    private void record(Object owner, int cp, int opcode) {
+        total++;
+        if (owner != lastOwner || cp != lastCp + 1) {
+            windowLength = 0;
+        }
+        if (windowLength == maxLength) {
+            System.arraycopy(window, 1, window, 0, maxLength - 1);
+            windowLength--;
+        }
+        window[windowLength++] = opcode;
+        for (int n = 2; n <= windowLength; n++) {
+            Key key = new Key(Arrays.copyOfRange(window, windowLength - n, windowLength));
+            counters.computeIfAbsent(key, k -> new long[1])[0]++;
+        }
+        lastOwner = owner;
+        lastCp = cp;
+        if (isControlTransfer(opcode)) {
+            // Инструкция, передающая управление, может быть только последней в суперинструкции.
+            windowLength = 0;
+        }
+    }
+
+    private static boolean isControlTransfer(int opcode) {
+        switch (opcode) {
+            case OPCodes.Goto:
+            case OPCodes.IfEq: case OPCodes.IfNe:
+            case OPCodes.IfGt: case OPCodes.IfGe:
+            case OPCodes.IfLt: case OPCodes.IfLe:
+            case OPCodes.IfZ: case OPCodes.IfNz:
+            case OPCodes.IfNull: case OPCodes.IfNonNull:
+            case OPCodes.IfPresent: case OPCodes.IfAbsent:
+            case OPCodes.LinearSwitch: case OPCodes.BinarySwitch:
+            case OPCodes.Call: case OPCodes.TailCall: case OPCodes.Return: case OPCodes.Leave:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void print(PrintStream out) {
+        out.println("=== N-GRAMS BEGIN ===");
+        out.printf("Instructions executed: %d%n", total);
+        for (int n = 2; n <= maxLength; n++) {
+            List<Map.Entry<Key, long[]>> entries = new ArrayList<>();
+            for (Map.Entry<Key, long[]> entry : counters.entrySet()) {
+                if (entry.getKey().opcodes.length == n) entries.add(entry);
+            }
+            entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+            out.printf("--- %d-grams ---%n", n);
+            for (int i = 0; i < Math.min(TOP_LIMIT, entries.size()); i++) {
+                long count = entries.get(i).getValue()[0];
+                out.printf("%-40s %12d %6.2f%%%n", entries.get(i).getKey(), count, 100d * count / total);
+            }
+        }
+        out.println("===  N-GRAMS END  ===");
+    }
+
+    private static final class Key {
+        final int[] opcodes;
+        final int hash;
+
+        Key(int[] opcodes) {
+            this.opcodes = opcodes;
+            this.hash = Arrays.hashCode(opcodes);
+        }
+
+        @Override
+        public int hashCode() { return hash; }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(opcodes, ((Key) o).opcodes);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder buf = new StringBuilder();
+            for (int opcode : opcodes) {
+                if (buf.length() > 0) buf.append(' ');
+                buf.append(getOpcodeName(opcode));
+            }
+            return buf.toString();
+        }
+    }
+}
@@ -77,6 +77,8 @@ public class OPCodeTranslator implements InstrVisitor {
     public void visitCall(CallInstrNode node) {
         if (node.opcode == OPCodes.Call) {
             put(new Call(node.callee, node.argc));
+        } else if (node.opcode == OPCodes.TailCall) {
+            put(new TailCall(node.callee, node.argc));
         } else {
             opcodeMismatch(node);
         }
@@ -133,6 +135,7 @@ public class OPCodeTranslator implements InstrVisitor {
                 break;
             case OPCodes.BinarySwitch:
                 put(new BinarySwitch(node.literals, node.dstIps, node.defCp));
+                break;
             default:
                 opcodeMismatch(node);
         }
@@ -1,5 +1,8 @@
 package jua;
 
+import jua.runtime.interpreter.FrameFactory;
+import jua.runtime.tree.TreeCode;
+
 import java.nio.charset.Charset;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.ArrayList;
@@ -25,6 +28,17 @@ public final class Options {
     public static int logMaxErrors() { return bound.logMaxErrors; }
     public static Charset charset() { return bound.charset; }
     public static boolean genJvmLoops() { return bound.genJvmLoops; }
+    public static boolean isSwitchDispatch() { return bound.switchDispatch; }
+    public static int ngramsLength() { return bound.ngramsLength; }
+    public static boolean isSuperinstructionsEnabled() { return !bound.disableSuperinstructions; }
+    public static boolean isRegisterCode() { return bound.registerCode; }
+    public static boolean isJitEnabled() { return bound.jit; }
+    public static boolean isTreeExecution() { return bound.treeExecution; }
+    public static boolean isTailCallsEnabled() { return !bound.disableTailCalls; }
+    public static int maxCallDepth() {
+        return bound.treeExecution ? Math.min(bound.maxCallDepth, TreeCode.MAX_CALL_DEPTH) : bound.maxCallDepth;
+    }
+    public static boolean isDepthStatsEnabled() { return bound.depthStats; }
 
     private final ArrayList<String> files = new ArrayList<>();
     private boolean printCode;
@@ -34,6 +48,15 @@ public final class Options {
     private int logMaxErrors = 1;
     private Charset charset = Charset.defaultCharset();
     private boolean genJvmLoops;
+    private boolean switchDispatch;
+    private int ngramsLength;
+    private boolean disableSuperinstructions;
+    private boolean registerCode;
+    private boolean jit;
+    private boolean treeExecution;
+    private boolean disableTailCalls;
+    private int maxCallDepth = FrameFactory.DEFAULT_MAX_DEPTH;
+    private boolean depthStats;
 
     private static class OptionIterator {
 
@@ -137,6 +160,62 @@ public final class Options {
                 genJvmLoops = true;
                 continue;
             }
+            if (option.equals("-sw") || option.equals("--switch")) {
+                switchDispatch = true;
+                continue;
+            }
+            if (option.equals("-r") || option.equals("--registers")) {
+                registerCode = true;
+                continue;
+            }
+            if (option.equals("-nsi") || option.equals("--no-superinstructions")) {
+                disableSuperinstructions = true;
+                continue;
+            }
+            if (option.equals("-jit") || option.equals("--jit")) {
+                jit = true;
+                continue;
+            }
+            if (option.equals("-t") || option.equals("--tree")) {
+                treeExecution = true;
+                continue;
+            }
+            if (option.equals("-ntc") || option.equals("--no-tail-calls")) {
+                disableTailCalls = true;
+                continue;
+            }
+            if (option.startsWith("--max-depth")) {
+                String value = option.substring("--max-depth".length());
+                try {
+                    if (!value.startsWith("=")) throw new NumberFormatException();
+                    maxCallDepth = Integer.parseUnsignedInt(value.substring(1));
+                    if (maxCallDepth == 0) throw new NumberFormatException();
+                } catch (NumberFormatException e) {
+                    System.err.println("Error: option '--max-depth' have an invalid value, expected positive integer.");
+                    System.exit(1);
+                }
+                continue;
+            }
+            if (option.equals("--depth-stats")) {
+                depthStats = true;
+                continue;
+            }
+            if (option.startsWith("--ngrams")) {
+                String value = option.substring("--ngrams".length());
+                if (value.isEmpty()) {
+                    ngramsLength = 3;
+                    continue;
+                }
+                try {
+                    if (!value.startsWith("=")) throw new NumberFormatException();
+                    ngramsLength = Integer.parseUnsignedInt(value.substring(1));
+                    if (ngramsLength < 2) throw new NumberFormatException();
+                } catch (NumberFormatException e) {
+                    System.err.println("Error: option '--ngrams' have an invalid value, expected integer greater than 1.");
+                    System.exit(1);
+                }
+                continue;
+            }
 
             System.err.println("Unrecognized option: " + option);
             System.exit(1);
@@ -158,6 +237,16 @@ public final class Options {
         System.out.println("\t-v, --c=<value>                 Specify charset");
         System.out.println("\t-m=<value>, --m<value>          Specify max printable compiler errors");
         System.out.println("\t--gj                            Enable JVM loops model generation");
+        System.out.println("\t-sw, --switch                   Execute packed code in a single switch loop");
+        System.out.println("\t-r, --registers                 Translate code to the register instruction set");
+        System.out.println("\t-nsi, --no-superinstructions    Do not fuse frequent instruction sequences");
+        System.out.println("\t-jit, --jit                     Compile hot functions to JVM bytecode (implies --switch)");
+        System.out.println("\t-t, --tree                      Execute functions as trees of nodes compiled from the syntax tree");
+        System.out.println("\t-ntc, --no-tail-calls           Do not reuse the caller frame for calls in tail position");
+        System.out.println("\t--max-depth=<n>                 Limit the call depth, " + FrameFactory.DEFAULT_MAX_DEPTH + " by default"
+                + " (at most " + TreeCode.MAX_CALL_DEPTH + " with --tree)");
+        System.out.println("\t--depth-stats                   Print the peak call depth and the number of allocated frames");
+        System.out.println("\t--ngrams[=<n>]                  Print frequencies of executed opcode sequences up to n (3 by default)");
         System.out.println("\t-f=<values;>, --files=<values;> Specify files to be executed (didn't work)");
         System.exit(0);
     }
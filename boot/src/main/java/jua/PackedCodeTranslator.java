@@ -0,0 +1,59 @@
+package jua;
+
+import jua.compiler.InstructionUtils.*;
+import jua.runtime.code.PackedCode;
+
+import java.util.Arrays;
+
+/**
+ * Транслирует инструкции компилятора в {@link PackedCode упакованный код}.
+ * <p>
+ * Каждой инструкции соответствует ровно одно слово, поэтому адреса переходов не пересчитываются.
+ */
+public class PackedCodeTranslator implements InstrVisitor {
+    private int[] code = new int[16];
+    private int count = 0;
+
+    public int[] getCode() {
+        return Arrays.copyOf(code, count);
+    }
+
+    private void put(int word) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+        }
+        code[count++] = word;
+    }
+
+    @Override
+    public void visitJump(JumpInstrNode node) {
+        put(PackedCode.encode(node.opcode, node.offset));
+    }
+
+    @Override
+    public void visitSingle(SingleInstrNode node) {
+        put(PackedCode.encode(node.opcode, 0));
+    }
+
+    @Override
+    public void visitCall(CallInstrNode node) {
+        put(PackedCode.encodeCall(node.opcode, node.callee, node.argc));
+    }
+
+    @Override
+    public void visitIndexed(IndexedInstrNode node) {
+        put(PackedCode.encode(node.opcode, node.index));
+    }
+
+    @Override
+    public void visitConst(ConstantInstrNode node) {
+        put(PackedCode.encode(node.opcode, node.index));
+    }
+
+    @Override
+    public void visitSwitch(SwitchInstrNode node) {
+        // Таблицы переходов не помещаются в слово,
+        // такие инструкции выполняются через объектное представление.
+        put(PackedCode.encode(node.opcode, 0));
+    }
+}
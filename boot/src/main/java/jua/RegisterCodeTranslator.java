@@ -0,0 +1,610 @@
+package jua;
+
+import jua.compiler.InstructionUtils.*;
+import jua.compiler.LineNumberTable;
+import jua.compiler.Module;
+import jua.runtime.interpreter.Address;
+import jua.runtime.interpreter.AddressSupport;
+import jua.runtime.interpreter.instruction.Instruction;
+import jua.runtime.interpreter.instruction.InstructionImpls;
+import jua.runtime.interpreter.instruction.RegisterInstructions.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import static jua.compiler.InstructionUtils.getOpcodeName;
+
+/**
+ * Транслирует стековый код в {@link jua.runtime.interpreter.instruction.RegisterInstructions регистровый}.
+ * <p>
+ * Каждой ячейке стека глубины {@code n} соответствует временный регистр {@code locals + n}.
+ * Внутри линейного участка стек отслеживается символически: загрузки переменных и констант
+ * не порождают инструкций, а подставляются операндами в использующие их инструкции.
+ * Результат операции, сразу сохраняемый в переменную, записывается в нее напрямую.
+ * На границах линейных участков все значения стека переносятся во временные регистры.
+ */
+public final class RegisterCodeTranslator {
+
+    /** Значение лежит во временном регистре своей ячейки стека. */
+    private static final int TEMP = 0;
+    /** Значение лежит в регистре {@link Entry#reg}. */
+    private static final int REG = 1;
+    /** Значение — числовая (логическая, нулевая) константа {@link Entry#imm}. */
+    private static final int IMM = 2;
+    /** Значение — константа из пула с индексом {@link Entry#cpi}. */
+    private static final int POOL = 3;
+
+    private static final class Entry {
+        static final Entry TEMP_ENTRY = new Entry(TEMP, -1, null, -1);
+
+        final int kind;
+        final int reg;
+        final Address imm;
+        final int cpi;
+
+        Entry(int kind, int reg, Address imm, int cpi) {
+            this.kind = kind;
+            this.reg = reg;
+            this.imm = imm;
+            this.cpi = cpi;
+        }
+
+        static Entry reg(int reg) { return new Entry(REG, reg, null, -1); }
+
+        static Entry imm(Object value) {
+            Address a = new Address();
+            AddressSupport.assignObject(a, value);
+            return new Entry(IMM, -1, a, -1);
+        }
+
+        static Entry pool(int cpi) { return new Entry(POOL, -1, null, cpi); }
+    }
+
+    private final InstrNode[] nodes;
+    private final Object[] constants;
+    private final int locals;
+    /** Переменные {@code <main>} доступны другим функциям как разделяемые. */
+    private final boolean shared;
+
+    private final int[] depths;
+    private final boolean[] targets;
+    private int maxDepth = 0;
+
+    private final List<Instruction> code = new ArrayList<>();
+    private final List<Runnable> fixups = new ArrayList<>();
+    private final int[] map;
+
+    private Entry[] stack;
+    private int sp = 0;
+
+    private IntFunction<Instruction> lastDef;
+    private int lastDefIndex = -1;
+    private int lastDefPos = -1;
+
+    public RegisterCodeTranslator(Module.Executable executable) {
+        nodes = executable.code;
+        constants = executable.constantPool;
+        locals = executable.regSize;
+        shared = executable.name.equals("<main>");
+        depths = new int[nodes.length];
+        targets = new boolean[nodes.length + 1];
+        map = new int[nodes.length + 1];
+    }
+
+    /** Число регистров фрейма: переменные, временные регистры и один служебный. */
+    public int getRegNumber() {
+        return locals + maxDepth + 1;
+    }
+
+    private int temp(int pos) {
+        return locals + pos;
+    }
+
+    private int scratch() {
+        return locals + maxDepth;
+    }
+
+    public Instruction[] translate() {
+        computeDepths();
+        stack = new Entry[maxDepth + 1];
+        boolean fallsThrough = true;
+        for (int cp = 0; cp < nodes.length; cp++) {
+            if (depths[cp] < 0) {
+                // Недостижимый код.
+                map[cp] = code.size();
+                fallsThrough = false;
+                continue;
+            }
+            if (targets[cp]) {
+                if (fallsThrough) materializeAll();
+                sp = depths[cp];
+                Arrays.fill(stack, 0, sp, Entry.TEMP_ENTRY);
+                lastDef = null;
+            }
+            map[cp] = code.size();
+            translate(nodes[cp]);
+            fallsThrough = !isUnconditional(nodes[cp].opcode);
+        }
+        map[nodes.length] = code.size();
+        fixups.forEach(Runnable::run);
+        return code.toArray(new Instruction[0]);
+    }
+
+    public jua.runtime.code.LineNumberTable translateLineNumberTable(LineNumberTable lnt) {
+        short[] codePoints = new short[lnt.codePoints.length];
+        int[] lineNumbers = new int[lnt.lineNumbers.length];
+        int count = 0;
+        for (int i = 0; i < lnt.codePoints.length; i++) {
+            short cp = (short) map[lnt.codePoints[i] & 0xffff];
+            // Из нескольких строк, попавших на одну инструкцию, выполняется последняя.
+            if (count > 0 && codePoints[count - 1] == cp) count--;
+            codePoints[count] = cp;
+            lineNumbers[count] = lnt.lineNumbers[i];
+            count++;
+        }
+        return new jua.runtime.code.LineNumberTable(
+                Arrays.copyOf(codePoints, count), Arrays.copyOf(lineNumbers, count));
+    }
+
+    private void computeDepths() {
+        Arrays.fill(depths, -1);
+        ArrayDeque<Integer> worklist = new ArrayDeque<>();
+        depths[0] = 0;
+        worklist.push(0);
+        while (!worklist.isEmpty()) {
+            int cp = worklist.pop();
+            InstrNode node = nodes[cp];
+            int after = depths[cp] + stackEffect(node);
+            maxDepth = Math.max(maxDepth, Math.max(depths[cp], after));
+            if (node instanceof JumpInstrNode) {
+                int target = ((JumpInstrNode) node).offset;
+                targets[target] = true;
+                flow(worklist, target, after);
+            } else if (node instanceof SwitchInstrNode) {
+                SwitchInstrNode sw = (SwitchInstrNode) node;
+                for (int target : sw.dstIps) {
+                    targets[target] = true;
+                    flow(worklist, target, after);
+                }
+                targets[sw.defCp] = true;
+                flow(worklist, sw.defCp, after);
+            }
+            if (!isUnconditional(node.opcode)) {
+                flow(worklist, cp + 1, after);
+            }
+        }
+    }
+
+    private void flow(ArrayDeque<Integer> worklist, int cp, int depth) {
+        if (depths[cp] < 0) {
+            depths[cp] = depth;
+            worklist.push(cp);
+        }
+    }
+
+    private static int stackEffect(InstrNode node) {
+        switch (node.opcode) {
+            case OPCodes.ShLoad: return 1;
+            case OPCodes.ShStore: return -1;
+            default: return node.stackAdjustment();
+        }
+    }
+
+    private static boolean isUnconditional(int opcode) {
+        switch (opcode) {
+            case OPCodes.Goto:
+            case OPCodes.Return:
+            case OPCodes.Leave:
+            case OPCodes.LinearSwitch:
+            case OPCodes.BinarySwitch:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void translate(InstrNode node) {
+        switch (node.opcode) {
+            case OPCodes.Nop:
+                break;
+            case OPCodes.ConstNull: push(Entry.imm(null)); break;
+            case OPCodes.ConstTrue: push(Entry.imm(true)); break;
+            case OPCodes.ConstFalse: push(Entry.imm(false)); break;
+            case OPCodes.ConstIntM1: push(Entry.imm(-1L)); break;
+            case OPCodes.ConstInt0: push(Entry.imm(0L)); break;
+            case OPCodes.ConstInt1: push(Entry.imm(1L)); break;
+            case OPCodes.ConstInt2: push(Entry.imm(2L)); break;
+            case OPCodes.Push: {
+                int cpi = (node instanceof IndexedInstrNode)
+                        ? ((IndexedInstrNode) node).index
+                        : ((ConstantInstrNode) node).index;
+                Object value = constants[cpi];
+                // Строки копируются при каждой загрузке из пула.
+                push((value instanceof Long || value instanceof Double || value instanceof Boolean)
+                        ? Entry.imm(value) : Entry.pool(cpi));
+                break;
+            }
+            case OPCodes.Load: push(Entry.reg(((IndexedInstrNode) node).index)); break;
+            case OPCodes.Load0: push(Entry.reg(0)); break;
+            case OPCodes.Load1: push(Entry.reg(1)); break;
+            case OPCodes.Load2: push(Entry.reg(2)); break;
+            case OPCodes.Store: store(((IndexedInstrNode) node).index); break;
+            case OPCodes.Store0: store(0); break;
+            case OPCodes.Store1: store(1); break;
+            case OPCodes.Store2: store(2); break;
+            case OPCodes.Inc: {
+                int i = ((IndexedInstrNode) node).index;
+                invalidate(i);
+                emit(new InstructionImpls.Inc(i));
+                break;
+            }
+            case OPCodes.Dec: {
+                int i = ((IndexedInstrNode) node).index;
+                invalidate(i);
+                emit(new InstructionImpls.Dec(i));
+                break;
+            }
+            case OPCodes.Add: case OPCodes.Sub: case OPCodes.Mul:
+            case OPCodes.Div: case OPCodes.Rem:
+            case OPCodes.And: case OPCodes.Or: case OPCodes.Xor:
+            case OPCodes.Shl: case OPCodes.Shr:
+                binary(node.opcode);
+                break;
+            case OPCodes.Neg: case OPCodes.Pos: case OPCodes.Not: case OPCodes.Length: {
+                int s = operand(sp - 1);
+                sp--;
+                int op = node.opcode;
+                def(d -> unary(op, d, s));
+                break;
+            }
+            case OPCodes.ArrayLoad: {
+                int k = operand(sp - 1), a = operand(sp - 2);
+                sp -= 2;
+                def(d -> new ArrayLoad(d, a, k));
+                break;
+            }
+            case OPCodes.ArrayStore: {
+                int v = operand(sp - 1), k = operand(sp - 2), a = operand(sp - 3);
+                sp -= 3;
+                emit(new ArrayStore(a, k, v));
+                break;
+            }
+            case OPCodes.ArrayInc: {
+                int k = operand(sp - 1), a = operand(sp - 2);
+                sp -= 2;
+                def(d -> new ArrayInc(d, a, k));
+                break;
+            }
+            case OPCodes.ArrayDec: {
+                int k = operand(sp - 1), a = operand(sp - 2);
+                sp -= 2;
+                def(d -> new ArrayDec(d, a, k));
+                break;
+            }
+            case OPCodes.NewList: {
+                int s = operand(sp - 1);
+                sp--;
+                def(d -> new NewList(d, s));
+                break;
+            }
+            case OPCodes.NewMap: def(NewMap::new); break;
+            case OPCodes.Dup: push(alias(sp - 1)); break;
+            case OPCodes.Dup2: {
+                Entry a = alias(sp - 2), b = alias(sp - 1);
+                push(a);
+                push(b);
+                break;
+            }
+            // Перестановки задаются индексами значений верхушки стека до инструкции.
+            case OPCodes.Swap: permute(2, 1, 0); break;
+            case OPCodes.DupX1: permute(2, 1, 0, 1); break;
+            case OPCodes.DupX2: permute(3, 2, 0, 1, 2); break;
+            case OPCodes.Dup2X1: permute(3, 1, 2, 0, 1, 2); break;
+            case OPCodes.Dup2X2: permute(4, 2, 3, 0, 1, 2, 3); break;
+            case OPCodes.Pop: sp--; break;
+            case OPCodes.Pop2: sp -= 2; break;
+            case OPCodes.IfEq: case OPCodes.IfNe:
+            case OPCodes.IfGt: case OPCodes.IfGe:
+            case OPCodes.IfLt: case OPCodes.IfLe:
+                compare(node.opcode, ((JumpInstrNode) node).offset);
+                break;
+            case OPCodes.IfZ: case OPCodes.IfNz:
+            case OPCodes.IfNull: case OPCodes.IfNonNull: {
+                int s = operand(sp - 1);
+                sp--;
+                materializeAll();
+                int op = node.opcode;
+                jump(t -> test(op, s, t), ((JumpInstrNode) node).offset);
+                break;
+            }
+            case OPCodes.IfPresent: case OPCodes.IfAbsent: {
+                int k = operand(sp - 1), a = operand(sp - 2);
+                sp -= 2;
+                materializeAll();
+                boolean present = node.opcode == OPCodes.IfPresent;
+                jump(t -> present ? new IfPresent(a, k, t) : new IfAbsent(a, k, t), ((JumpInstrNode) node).offset);
+                break;
+            }
+            case OPCodes.Goto:
+                materializeAll();
+                jump(InstructionImpls.Goto::new, ((JumpInstrNode) node).offset);
+                break;
+            case OPCodes.LinearSwitch:
+            case OPCodes.BinarySwitch: {
+                SwitchInstrNode sw = (SwitchInstrNode) node;
+                int s = operand(sp - 1);
+                sp--;
+                materializeAll();
+                int index = code.size();
+                code.add(null);
+                lastDef = null;
+                fixups.add(() -> {
+                    int[] cps = Arrays.stream(sw.dstIps).map(cp -> map[cp]).toArray();
+                    Instruction delegate = (sw.opcode == OPCodes.LinearSwitch)
+                            ? new InstructionImpls.LinearSwitch(sw.literals, cps, map[sw.defCp])
+                            : new InstructionImpls.BinarySwitch(sw.literals, cps, map[sw.defCp]);
+                    code.set(index, new Switch(s, delegate));
+                });
+                break;
+            }
+            case OPCodes.Call:
+            case OPCodes.TailCall: {
+                CallInstrNode call = (CallInstrNode) node;
+                int first = sp - call.argc;
+                if (shared) {
+                    // Вызываемая функция может изменить переменные <main> через разделяемые переменные.
+                    for (int pos = 0; pos < first; pos++) materialize(pos);
+                }
+                int[] args = new int[call.argc];
+                for (int i = 0; i < call.argc; i++) {
+                    args[i] = operand(first + i);
+                }
+                sp = first;
+                emit(call.opcode == OPCodes.Call ? new Call(call.callee, args) : new TailCall(call.callee, args));
+                def(MoveResult::new);
+                break;
+            }
+            case OPCodes.Return: {
+                int s = operand(sp - 1);
+                sp--;
+                emit(new Return(s));
+                break;
+            }
+            case OPCodes.Leave:
+                emit(new InstructionImpls.Leave());
+                break;
+            case OPCodes.ShLoad: {
+                int index = ((IndexedInstrNode) node).index;
+                def(d -> new Shload(d, index));
+                break;
+            }
+            case OPCodes.ShStore: {
+                int index = ((IndexedInstrNode) node).index;
+                int s = operand(sp - 1);
+                sp--;
+                if (shared) invalidate(index);
+                emit(new Shstore(index, s));
+                break;
+            }
+            default:
+                throw new IllegalStateException(node.getClass().getSimpleName()
+                        + " with opcode " + getOpcodeName(node.opcode));
+        }
+    }
+
+    private void push(Entry entry) {
+        stack[sp++] = entry;
+    }
+
+    /** Возвращает значение ячейки {@code pos} для копирования на другую позицию. */
+    private Entry alias(int pos) {
+        return (stack[pos].kind == TEMP) ? Entry.reg(temp(pos)) : stack[pos];
+    }
+
+    /** Возвращает регистр, в котором находится значение ячейки {@code pos}. */
+    private int operand(int pos) {
+        Entry e = stack[pos];
+        switch (e.kind) {
+            case TEMP: return temp(pos);
+            case REG: return e.reg;
+            default:
+                materialize(pos);
+                return temp(pos);
+        }
+    }
+
+    /** Переносит значение ячейки {@code pos} в ее временный регистр. */
+    private void materialize(int pos) {
+        Entry e = stack[pos];
+        switch (e.kind) {
+            case TEMP: return;
+            case REG: emit(new Move(temp(pos), e.reg)); break;
+            case IMM: emit(new Const(temp(pos), e.imm)); break;
+            case POOL: emit(new Ldc(temp(pos), e.cpi)); break;
+        }
+        stack[pos] = Entry.TEMP_ENTRY;
+    }
+
+    private void materializeAll() {
+        for (int pos = 0; pos < sp; pos++) {
+            materialize(pos);
+        }
+    }
+
+    /** Переносит во временные регистры ячейки, ссылающиеся на изменяемую переменную. */
+    private void invalidate(int reg) {
+        for (int pos = 0; pos < sp; pos++) {
+            if (stack[pos].kind == REG && stack[pos].reg == reg) {
+                materialize(pos);
+            }
+        }
+    }
+
+    private void store(int i) {
+        invalidate(i);
+        int pos = sp - 1;
+        Entry e = stack[pos];
+        sp--;
+        switch (e.kind) {
+            case TEMP:
+                if (lastDef != null && lastDefPos == pos && lastDefIndex == code.size() - 1) {
+                    // Результат только что вычислен — записываем его сразу в переменную.
+                    code.set(lastDefIndex, lastDef.apply(i));
+                    lastDef = null;
+                } else {
+                    emit(new Move(i, temp(pos)));
+                }
+                break;
+            case REG: if (e.reg != i) emit(new Move(i, e.reg)); break;
+            case IMM: emit(new Const(i, e.imm)); break;
+            case POOL: emit(new Ldc(i, e.cpi)); break;
+        }
+    }
+
+    private void binary(int op) {
+        int pos = sp - 2;
+        if (stack[sp - 1].kind == IMM && stack[pos].kind != IMM) {
+            Address k = stack[sp - 1].imm;
+            int a = operand(pos);
+            sp -= 2;
+            def(d -> new BinaryConst(op, d, a, k));
+            return;
+        }
+        int a = operand(pos), b = operand(sp - 1);
+        sp -= 2;
+        def(d -> binary(op, d, a, b));
+    }
+
+    private void compare(int cond, int target) {
+        if (stack[sp - 1].kind == IMM && stack[sp - 2].kind != IMM) {
+            Address k = stack[sp - 1].imm;
+            int a = operand(sp - 2);
+            sp -= 2;
+            materializeAll();
+            jump(t -> new IfConst(cond, a, k, t), target);
+            return;
+        }
+        int a = operand(sp - 2), b = operand(sp - 1);
+        sp -= 2;
+        materializeAll();
+        jump(t -> compare(cond, a, b, t), target);
+    }
+
+    /**
+     * Переставляет {@code count} верхних значений стека: новая верхушка состоит из значений
+     * с указанными индексами. Значения из временных регистров переносятся параллельными пересылками.
+     */
+    private void permute(int count, int... order) {
+        int base = sp - count;
+        // Ссылки на временные регистры переставляемых ячеек станут недействительны.
+        for (int pos = base; pos < sp; pos++) {
+            if (stack[pos].kind == REG && stack[pos].reg >= temp(base)) {
+                materialize(pos);
+            }
+        }
+        Entry[] old = Arrays.copyOfRange(stack, base, sp);
+        List<int[]> moves = new ArrayList<>();
+        for (int k = 0; k < order.length; k++) {
+            Entry e = old[order[k]];
+            if (e.kind == TEMP && order[k] != k) {
+                moves.add(new int[]{temp(base + k), temp(base + order[k])});
+            }
+            stack[base + k] = e;
+        }
+        sp = base + order.length;
+        lastDef = null;
+        while (!moves.isEmpty()) {
+            int[] next = null;
+            for (int[] m : moves) {
+                if (moves.stream().noneMatch(o -> o[1] == m[0])) {
+                    next = m;
+                    break;
+                }
+            }
+            if (next == null) {
+                // Цикл пересылок: сохраняем одну из перезаписываемых ячеек в служебный регистр.
+                int saved = moves.get(0)[0];
+                emit(new Move(scratch(), saved));
+                for (int[] m : moves) {
+                    if (m[1] == saved) m[1] = scratch();
+                }
+                continue;
+            }
+            emit(new Move(next[0], next[1]));
+            moves.remove(next);
+        }
+    }
+
+    private void emit(Instruction instruction) {
+        code.add(instruction);
+        lastDef = null;
+    }
+
+    /** Добавляет инструкцию, записывающую результат в новую ячейку на вершине стека. */
+    private void def(IntFunction<Instruction> factory) {
+        int pos = sp++;
+        stack[pos] = Entry.TEMP_ENTRY;
+        code.add(factory.apply(temp(pos)));
+        lastDef = factory;
+        lastDefIndex = code.size() - 1;
+        lastDefPos = pos;
+    }
+
+    private void jump(IntFunction<Instruction> factory, int target) {
+        int index = code.size();
+        code.add(null);
+        lastDef = null;
+        fixups.add(() -> code.set(index, factory.apply(map[target])));
+    }
+
+    private static Instruction binary(int op, int d, int a, int b) {
+        switch (op) {
+            case OPCodes.Add: return new Add(d, a, b);
+            case OPCodes.Sub: return new Sub(d, a, b);
+            case OPCodes.Mul: return new Mul(d, a, b);
+            case OPCodes.Div: return new Div(d, a, b);
+            case OPCodes.Rem: return new Rem(d, a, b);
+            case OPCodes.And: return new And(d, a, b);
+            case OPCodes.Or: return new Or(d, a, b);
+            case OPCodes.Xor: return new Xor(d, a, b);
+            case OPCodes.Shl: return new Shl(d, a, b);
+            case OPCodes.Shr: return new Shr(d, a, b);
+            default: throw new AssertionError(op);
+        }
+    }
+
+    private static Instruction unary(int op, int d, int s) {
+        switch (op) {
+            case OPCodes.Neg: return new Neg(d, s);
+            case OPCodes.Pos: return new Pos(d, s);
+            case OPCodes.Not: return new Not(d, s);
+            case OPCodes.Length: return new Length(d, s);
+            default: throw new AssertionError(op);
+        }
+    }
+
+    private static Instruction compare(int cond, int a, int b, int target) {
+        switch (cond) {
+            case OPCodes.IfEq: return new IfEq(a, b, target);
+            case OPCodes.IfNe: return new IfNe(a, b, target);
+            case OPCodes.IfGt: return new IfGt(a, b, target);
+            case OPCodes.IfGe: return new IfGe(a, b, target);
+            case OPCodes.IfLt: return new IfLt(a, b, target);
+            case OPCodes.IfLe: return new IfLe(a, b, target);
+            default: throw new AssertionError(cond);
+        }
+    }
+
+    private static Instruction test(int op, int s, int target) {
+        switch (op) {
+            case OPCodes.IfZ: return new IfZ(s, target);
+            case OPCodes.IfNz: return new IfNz(s, target);
+            case OPCodes.IfNull: return new IfNull(s, target);
+            case OPCodes.IfNonNull: return new IfNonNull(s, target);
+            default: throw new AssertionError(op);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package jua;
+
+import jua.compiler.InstructionUtils.*;
+import jua.runtime.code.PackedCode;
+import jua.runtime.interpreter.Address;
+import jua.runtime.interpreter.AddressSupport;
+import jua.runtime.interpreter.instruction.Instruction;
+import jua.runtime.interpreter.instruction.Superinstructions.*;
+
+/**
+ * Объединяет частые последовательности инструкций в {@link jua.runtime.interpreter.instruction.Superinstructions суперинструкции}.
+ * <p>
+ * Набор последовательностей выбран по частотам, собранным {@link NGramProfiler} ({@code --ngrams})
+ * на примерах из {@code examples/}. При изменении типичной нагрузки набор следует пересобрать.
+ * Суперинструкция ставится на место первой инструкции последовательности, остальные инструкции остаются.
+ */
+public final class SuperinstructionFuser {
+
+    public static void fuse(InstrNode[] nodes, Instruction[] code, Object[] constantPool) {
+        for (int cp = 0; cp < nodes.length; cp++) {
+            Instruction fused = match(nodes, cp, constantPool);
+            if (fused != null) {
+                code[cp] = fused;
+            }
+        }
+    }
+
+    private static Instruction match(InstrNode[] nodes, int cp, Object[] constantPool) {
+        int a = loadIndex(nodes, cp);
+        if (a < 0) return null;
+        int b = loadIndex(nodes, cp + 1);
+        if (b >= 0) {
+            if (isOpcode(nodes, cp + 2, OPCodes.ArrayLoad)) {
+                return new LoadLoadArrayLoad(a, b);
+            }
+            if (isComparison(nodes, cp + 2)) {
+                return new LoadLoadIf(a, b, nodes[cp + 2].opcode, ((JumpInstrNode) nodes[cp + 2]).offset);
+            }
+            return new LoadLoad(a, b);
+        }
+        Address c = constant(nodes, cp + 1, constantPool);
+        if (c != null) {
+            if (isComparison(nodes, cp + 2)) {
+                return new LoadConstIf(a, c, nodes[cp + 2].opcode, ((JumpInstrNode) nodes[cp + 2]).offset);
+            }
+            if (isArithmetic(nodes, cp + 2)) {
+                return new LoadConstOp(a, c, nodes[cp + 2].opcode);
+            }
+            return null;
+        }
+        if (isComparison(nodes, cp + 1)) {
+            return new LoadIf(a, nodes[cp + 1].opcode, ((JumpInstrNode) nodes[cp + 1]).offset);
+        }
+        return null;
+    }
+
+    /**
+     * Объединяет последовательности в {@link PackedCode упакованном коде}. Набор последовательностей тот же,
+     * кроме {@code load i; const c; <op>}: операция бинарная и все равно выбиралась бы по опкоду.
+     * Константа должна загружаться инструкцией {@code push}, так как суперинструкция читает индекс константы
+     * из следующего слова. Слова обходятся с конца, чтобы второй загрузкой последовательности было уже итоговое
+     * слово: {@code load_0}, {@code load_1} и {@code load_2} на этом месте заменяются на {@code load} с номером
+     * регистра в операнде, который и читает суперинструкция.
+     */
+    public static void fusePacked(InstrNode[] nodes, int[] packed, Object[] constantPool) {
+        for (int cp = nodes.length - 1; cp >= 0; cp--) {
+            int word = matchPacked(nodes, cp, constantPool);
+            if (word == 0) continue;
+            packed[cp] = word;
+            int b = loadIndex(nodes, cp + 1);
+            if (b >= 0 && PackedCode.opcode(packed[cp + 1]) == nodes[cp + 1].opcode) {
+                packed[cp + 1] = PackedCode.encode(OPCodes.Load, b);
+            }
+        }
+    }
+
+    private static int matchPacked(InstrNode[] nodes, int cp, Object[] constantPool) {
+        int a = loadIndex(nodes, cp);
+        if (a < 0 || a > PackedCode.MAX_FUSED_REGISTER) return 0;
+        int b = loadIndex(nodes, cp + 1);
+        if (b >= 0) {
+            if (b > PackedCode.MAX_FUSED_REGISTER) return 0;
+            if (isOpcode(nodes, cp + 2, OPCodes.ArrayLoad)) {
+                return PackedCode.encodeFused(PackedCode.LOAD_LOAD_ARRAY_LOAD, a, 0);
+            }
+            if (isComparison(nodes, cp + 2)) {
+                return PackedCode.encodeFused(PackedCode.LOAD_LOAD_IF, a, nodes[cp + 2].opcode);
+            }
+            return PackedCode.encodeFused(PackedCode.LOAD_LOAD, a, 0);
+        }
+        if (isOpcode(nodes, cp + 1, OPCodes.Push) && constant(nodes, cp + 1, constantPool) != null) {
+            if (isComparison(nodes, cp + 2)) {
+                return PackedCode.encodeFused(PackedCode.LOAD_CONST_IF, a, nodes[cp + 2].opcode);
+            }
+            return 0;
+        }
+        if (isComparison(nodes, cp + 1)) {
+            return PackedCode.encodeFused(PackedCode.LOAD_IF, a, nodes[cp + 1].opcode);
+        }
+        return 0;
+    }
+
+    private static int loadIndex(InstrNode[] nodes, int cp) {
+        if (cp >= nodes.length) return -1;
+        switch (nodes[cp].opcode) {
+            case OPCodes.Load: return ((IndexedInstrNode) nodes[cp]).index;
+            case OPCodes.Load0: return 0;
+            case OPCodes.Load1: return 1;
+            case OPCodes.Load2: return 2;
+            default: return -1;
+        }
+    }
+
+    /**
+     * Возвращает значение константы, если инструкция загружает число, иначе {@code null}.
+     * Строки не подходят, так как при загрузке из пула констант они копируются.
+     */
+    private static Address constant(InstrNode[] nodes, int cp, Object[] constantPool) {
+        if (cp >= nodes.length) return null;
+        Object value;
+        switch (nodes[cp].opcode) {
+            case OPCodes.ConstIntM1: value = -1L; break;
+            case OPCodes.ConstInt0: value = 0L; break;
+            case OPCodes.ConstInt1: value = 1L; break;
+            case OPCodes.ConstInt2: value = 2L; break;
+            case OPCodes.Push:
+                int index = (nodes[cp] instanceof IndexedInstrNode)
+                        ? ((IndexedInstrNode) nodes[cp]).index
+                        : ((ConstantInstrNode) nodes[cp]).index;
+                value = constantPool[index];
+                if (value instanceof Long || value instanceof Double) break;
+                return null;
+            default:
+                return null;
+        }
+        Address address = new Address();
+        AddressSupport.assignObject(address, value);
+        return address;
+    }
+
+    private static boolean isOpcode(InstrNode[] nodes, int cp, int opcode) {
+        return cp < nodes.length && nodes[cp].opcode == opcode;
+    }
+
+    private static boolean isComparison(InstrNode[] nodes, int cp) {
+        if (cp >= nodes.length) return false;
+        switch (nodes[cp].opcode) {
+            case OPCodes.IfEq: case OPCodes.IfNe:
+            case OPCodes.IfGt: case OPCodes.IfGe:
+            case OPCodes.IfLt: case OPCodes.IfLe:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isArithmetic(InstrNode[] nodes, int cp) {
+        if (cp >= nodes.length) return false;
+        switch (nodes[cp].opcode) {
+            case OPCodes.Add: case OPCodes.Sub:
+            case OPCodes.Mul: case OPCodes.Div: case OPCodes.Rem:
+            case OPCodes.Shl: case OPCodes.Shr:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private SuperinstructionFuser() {} // A utility class
+}
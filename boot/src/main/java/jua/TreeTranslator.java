@@ -0,0 +1,456 @@
+package jua;
+
+import jua.compiler.LineMap;
+import jua.compiler.ModuleScope.FunctionSymbol;
+import jua.compiler.Source;
+import jua.compiler.TList;
+import jua.compiler.Tree;
+import jua.compiler.Tree.*;
+import jua.runtime.tree.ExprNode;
+import jua.runtime.tree.ExprNodes;
+import jua.runtime.tree.StmtNode;
+import jua.runtime.tree.StmtNodes;
+import jua.runtime.tree.TreeCode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static jua.compiler.CompHelper.*;
+
+/**
+ * Транслирует функцию из синтаксического дерева, прошедшего {@code Lower}, {@code Enter} и {@code Check},
+ * в дерево исполняемых узлов.
+ * <p>
+ * Локальные переменные занимают слоты с номерами их символов. Промежуточным значениям слоты выделяются стопкой:
+ * слот занят, пока транслируются узлы, которые выполняются при живом значении, и освобождается после.
+ */
+public final class TreeTranslator extends Tree.AbstractVisitor {
+
+    /** Если {@code tailCalls}, вызовы в хвостовой позиции транслируются в {@link StmtNodes.TailCall}. */
+    public static TreeCode translate(FuncDef tree, Source source, boolean tailCalls) {
+        TreeTranslator t = new TreeTranslator(source.getLineMap(), tree.sym, tailCalls);
+        StmtNode body;
+        if (tree.body.hasTag(Tag.BLOCK)) {
+            body = t.translateStmt(tree.body);
+        } else {
+            body = t.translateReturn(((Discarded) tree.body).expr, false);
+        }
+        return new TreeCode(body, tree.sym.nlocals + t.maxTemps);
+    }
+
+    private final LineMap lineMap;
+
+    private final FunctionSymbol sym;
+
+    private final int nlocals;
+
+    private final boolean tailCalls;
+
+    private int temps = 0, maxTemps = 0;
+
+    private ExprNode exprResult;
+
+    private StmtNode stmtResult;
+
+    private TreeTranslator(LineMap lineMap, FunctionSymbol sym, boolean tailCalls) {
+        this.lineMap = lineMap;
+        this.sym = sym;
+        this.nlocals = sym.nlocals;
+        this.tailCalls = tailCalls;
+    }
+
+    private ExprNode translateExpr(Expr tree) {
+        tree.accept(this);
+        return exprResult;
+    }
+
+    private ExprNode[] translateExprs(List<Expr> trees) {
+        ExprNode[] nodes = new ExprNode[trees.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = translateExpr(trees.get(i));
+        }
+        return nodes;
+    }
+
+    private StmtNode translateStmt(Stmt tree) {
+        tree.accept(this);
+        return stmtResult;
+    }
+
+    private StmtNode[] translateStmts(List<Stmt> trees) {
+        StmtNode[] nodes = new StmtNode[trees.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = translateStmt(trees.get(i));
+        }
+        return nodes;
+    }
+
+    /**
+     * Транслирует возврат значения выражения, как {@code Gen.genReturnValue}: ветки {@code ?:} и правые операнды
+     * {@code &&} и {@code ||} с вызовом в хвостовой позиции становятся отдельными операторами возврата.
+     * Если {@code asBoolean}, возвращается логическое значение выражения.
+     */
+    private StmtNode translateReturn(Expr expr, boolean asBoolean) {
+        Expr tree = stripParens(expr);
+        if (tailCalls && hasTailCall(sym, tree, asBoolean)) {
+            switch (tree.getTag()) {
+                case INVOCATION: {
+                    Invocation invocation = (Invocation) tree;
+                    int argc = invocation.args.size();
+                    int argBase = allocTemps(argc);
+                    ExprNode[] args = new ExprNode[argc];
+                    for (int i = 0; i < argc; i++) {
+                        args[i] = translateExpr(invocation.args.get(i).expr);
+                    }
+                    releaseTemps(argc);
+                    return new StmtNodes.TailCall(invocation.sym.name, args, argBase, line(invocation));
+                }
+                case TERNARY: {
+                    Conditional conditional = (Conditional) tree;
+                    int tmp = allocTemps(1);
+                    ExprNode cond = translateExpr(conditional.cond);
+                    releaseTemps(1);
+                    return new StmtNodes.If(cond,
+                            translateReturn(conditional.ths, asBoolean),
+                            translateReturn(conditional.fhs, asBoolean), tmp);
+                }
+                case AND: case OR: {
+                    BinaryOp binary = (BinaryOp) tree;
+                    int tmp = allocTemps(1);
+                    ExprNode lhs = translateExpr(binary.lhs);
+                    releaseTemps(1);
+                    StmtNode rhs = translateReturn(binary.rhs, true);
+                    return tree.hasTag(Tag.AND)
+                            ? new StmtNodes.If(lhs, rhs, returnLiteral(false), tmp)
+                            : new StmtNodes.If(lhs, returnLiteral(true), rhs, tmp);
+                }
+            }
+        }
+        if (asBoolean) {
+            int tmp = allocTemps(1);
+            ExprNode cond = translateExpr(tree);
+            releaseTemps(1);
+            return new StmtNodes.If(cond, returnLiteral(true), returnLiteral(false), tmp);
+        }
+        return new StmtNodes.Return(translateExpr(tree));
+    }
+
+    private static StmtNode returnLiteral(Object value) {
+        return new StmtNodes.Return(new ExprNodes.Literal(value));
+    }
+
+    /** Выделяет {@code count} подряд идущих слотов для промежуточных значений и возвращает номер первого. */
+    private int allocTemps(int count) {
+        int first = nlocals + temps;
+        temps += count;
+        maxTemps = Math.max(maxTemps, temps);
+        return first;
+    }
+
+    private void releaseTemps(int count) {
+        temps -= count;
+    }
+
+    private int line(Tree tree) {
+        return lineMap.getLineNumber(tree.pos);
+    }
+
+    /** Переменные и литералы. Их вычисление не может изменить значение другого операнда. */
+    private static boolean isSimple(Expr tree) {
+        Tag tag = stripParens(tree).getTag();
+        return tag == Tag.VAR || tag == Tag.LITERAL;
+    }
+
+    /**
+     * Возвращает узел операнда, значение которого должно сохраниться, пока вычисляются {@code following}.
+     * Если операнд может отдать адрес переменной, а следующие операнды могут ее изменить, значение копируется.
+     */
+    private static ExprNode operand(Expr tree, ExprNode node, Expr... following) {
+        switch (stripParens(tree).getTag()) {
+            case VAR: case TERNARY: case COALESCE:
+                for (Expr e : following) {
+                    if (!isSimple(e)) return new ExprNodes.Snapshot(node);
+                }
+        }
+        return node;
+    }
+
+    @Override
+    public void visitBlock(Block tree) {
+        stmtResult = new StmtNodes.Block(translateStmts(tree.stats));
+    }
+
+    @Override
+    public void visitIf(If tree) {
+        int tmp = allocTemps(1);
+        ExprNode cond = translateExpr(tree.cond);
+        releaseTemps(1);
+        StmtNode thenbody = translateStmt(tree.thenbody);
+        StmtNode elsebody = tree.elsebody == null ? null : translateStmt(tree.elsebody);
+        stmtResult = new StmtNodes.If(cond, thenbody, elsebody, tmp);
+    }
+
+    @Override
+    public void visitWhileLoop(WhileLoop tree) {
+        stmtResult = translateLoop(tree.cond, TList.empty(), tree.body, true);
+    }
+
+    @Override
+    public void visitDoLoop(DoLoop tree) {
+        stmtResult = translateLoop(tree.cond, TList.empty(), tree.body, false);
+    }
+
+    @Override
+    public void visitForLoop(ForLoop tree) {
+        List<StmtNode> stats = new ArrayList<>();
+        for (Stmt init : tree.init) {
+            stats.add(translateStmt(init));
+        }
+        stats.add(translateLoop(tree.cond, tree.step, tree.body, true));
+        stmtResult = new StmtNodes.Block(stats.toArray(new StmtNode[0]));
+    }
+
+    private StmtNode translateLoop(Expr cond, List<Expr> step, Stmt body, boolean testFirst) {
+        int tmp = allocTemps(1);
+        ExprNode condNode = cond == null || isLiteralTrue(cond) ? null : translateExpr(cond);
+        ExprNode[] stepNodes = translateExprs(step);
+        releaseTemps(1);
+        return new StmtNodes.Loop(condNode, stepNodes, translateStmt(body), testFirst, tmp);
+    }
+
+    @Override
+    public void visitBreak(Break tree) {
+        stmtResult = new StmtNodes.Break();
+    }
+
+    @Override
+    public void visitContinue(Continue tree) {
+        stmtResult = new StmtNodes.Continue();
+    }
+
+    @Override
+    public void visitVarDef(VarDef tree) {
+        List<StmtNode> stats = new ArrayList<>();
+        for (VarDef.Definition def : tree.defs) {
+            int tmp = allocTemps(1);
+            ExprNode init = def.init == null ? new ExprNodes.Literal(null) : translateExpr(def.init);
+            releaseTemps(1);
+            stats.add(new StmtNodes.Discard(new ExprNodes.AssignLocal(def.sym.id, init), tmp));
+        }
+        stmtResult = stats.size() == 1 ? stats.get(0) : new StmtNodes.Block(stats.toArray(new StmtNode[0]));
+    }
+
+    @Override
+    public void visitReturn(Return tree) {
+        stmtResult = tree.expr == null || isNull(tree.expr) ? new StmtNodes.Return(null) : translateReturn(tree.expr, false);
+    }
+
+    @Override
+    public void visitDiscarded(Discarded tree) {
+        int tmp = allocTemps(1);
+        ExprNode expr = translateExpr(tree.expr);
+        releaseTemps(1);
+        stmtResult = new StmtNodes.Discard(expr, tmp);
+    }
+
+    @Override
+    public void visitLiteral(Literal tree) {
+        exprResult = new ExprNodes.Literal(tree.value);
+    }
+
+    @Override
+    public void visitListLiteral(ListLiteral tree) {
+        int tmp = allocTemps(1);
+        ExprNode[] entries = translateExprs(tree.entries);
+        releaseTemps(1);
+        exprResult = new ExprNodes.ListLiteral(entries, tmp);
+    }
+
+    @Override
+    public void visitMapLiteral(MapLiteral tree) {
+        int tmp = allocTemps(2);
+        ExprNode[] keys = translateExprs(tree.keys);
+        ExprNode[] values = translateExprs(tree.values);
+        releaseTemps(2);
+        exprResult = new ExprNodes.MapLiteral(keys, values, tmp, line(tree));
+    }
+
+    @Override
+    public void visitVariable(Var tree) {
+        exprResult = new ExprNodes.Local(tree.sym.id);
+    }
+
+    @Override
+    public void visitIndex(Index tree) {
+        ExprNode exprNode = operand(tree.expr, translateExpr(tree.expr), tree.index);
+        int tmp = allocTemps(1);
+        ExprNode indexNode = translateExpr(tree.index);
+        releaseTemps(1);
+        exprResult = new ExprNodes.Index(exprNode, indexNode, tmp, line(tree));
+    }
+
+    @Override
+    public void visitInvocation(Invocation tree) {
+        int argc = tree.args.size();
+        if (tree.sym.opcode >= 0) {
+            // Языковая конструкция
+            ExprNode arg = translateExpr(tree.args.get(0).expr);
+            switch (tree.sym.name) {
+                case "length": exprResult = new ExprNodes.Length(arg, line(tree)); return;
+                case "list": exprResult = new ExprNodes.NewList(arg, line(tree)); return;
+                default: throw new AssertionError(tree.sym.name);
+            }
+        }
+        int argBase = allocTemps(argc);
+        ExprNode[] args = new ExprNode[argc];
+        for (int i = 0; i < argc; i++) {
+            args[i] = translateExpr(tree.args.get(i).expr);
+        }
+        releaseTemps(argc);
+        exprResult = new ExprNodes.Call(tree.sym.name, args, argBase, line(tree));
+    }
+
+    @Override
+    public void visitParens(Parens tree) {
+        tree.expr.accept(this);
+    }
+
+    @Override
+    public void visitAssign(Assign tree) {
+        Expr var = stripParens(tree.var);
+        if (var.hasTag(Tag.VAR)) {
+            exprResult = new ExprNodes.AssignLocal(((Var) var).sym.id, translateExpr(tree.expr));
+            return;
+        }
+        int tmp = allocTemps(2);
+        ExprNode[] access = translateAccess(var, tree.expr);
+        ExprNode value = translateExpr(tree.expr);
+        releaseTemps(2);
+        exprResult = new ExprNodes.AssignIndex(access[0], access[1], value, tmp, line(var));
+    }
+
+    /** Транслирует список и индекс элемента, к которому обращается {@code var}. */
+    private ExprNode[] translateAccess(Expr var, Expr... following) {
+        Index access = (Index) var;
+        Expr expr = access.expr;
+        Expr index = access.index;
+        Expr[] afterExpr = new Expr[following.length + 1];
+        afterExpr[0] = index;
+        System.arraycopy(following, 0, afterExpr, 1, following.length);
+        ExprNode exprNode = operand(expr, translateExpr(expr), afterExpr);
+        ExprNode indexNode = operand(index, translateExpr(index), following);
+        return new ExprNode[] { exprNode, indexNode };
+    }
+
+    @Override
+    public void visitEnhancedAssign(EnhancedAssign tree) {
+        Expr var = stripParens(tree.var);
+        if (var.hasTag(Tag.VAR)) {
+            int slot = ((Var) var).sym.id;
+            if (tree.hasTag(Tag.ASG_COALESCE)) {
+                exprResult = new ExprNodes.CoalesceAssignLocal(slot, translateExpr(tree.expr));
+                return;
+            }
+            // x op= y выполняется как x = x op y.
+            ExprNode lhs = operand(var, new ExprNodes.Local(slot), tree.expr);
+            int tmp = allocTemps(1);
+            ExprNode rhs = translateExpr(tree.expr);
+            releaseTemps(1);
+            exprResult = new ExprNodes.AssignLocal(slot, binary(stripAsgTag(tree.tag), lhs, rhs, tmp, line(tree)));
+            return;
+        }
+        if (tree.hasTag(Tag.ASG_COALESCE)) {
+            int tmp = allocTemps(2);
+            ExprNode[] access = translateAccess(var, tree.expr);
+            ExprNode value = translateExpr(tree.expr);
+            releaseTemps(2);
+            exprResult = new ExprNodes.CoalesceAssignIndex(access[0], access[1], value, tmp, line(var));
+            return;
+        }
+        int tmp = allocTemps(3);
+        ExprNode[] access = translateAccess(var, tree.expr);
+        ExprNode value = translateExpr(tree.expr);
+        releaseTemps(3);
+        ExprNodes.Binary op = binary(stripAsgTag(tree.tag), null, null, 0, line(tree));
+        exprResult = new ExprNodes.UpdateIndex(access[0], access[1], op, value, tmp);
+    }
+
+    @Override
+    public void visitConditional(Conditional tree) {
+        exprResult = new ExprNodes.Conditional(
+                translateExpr(tree.cond), translateExpr(tree.ths), translateExpr(tree.fhs));
+    }
+
+    @Override
+    public void visitBinaryOp(BinaryOp tree) {
+        switch (tree.tag) {
+            case AND:
+                exprResult = new ExprNodes.CondAnd(translateExpr(tree.lhs), translateExpr(tree.rhs));
+                return;
+            case OR:
+                exprResult = new ExprNodes.CondOr(translateExpr(tree.lhs), translateExpr(tree.rhs));
+                return;
+            case COALESCE:
+                exprResult = new ExprNodes.Coalesce(translateExpr(tree.lhs), translateExpr(tree.rhs));
+                return;
+        }
+        ExprNode lhs = operand(tree.lhs, translateExpr(tree.lhs), tree.rhs);
+        int tmp = allocTemps(1);
+        ExprNode rhs = translateExpr(tree.rhs);
+        releaseTemps(1);
+        switch (tree.tag) {
+            case EQ: exprResult = new ExprNodes.Eq(lhs, rhs, tmp); break;
+            case NE: exprResult = new ExprNodes.Ne(lhs, rhs, tmp); break;
+            case GT: exprResult = new ExprNodes.Gt(lhs, rhs, tmp); break;
+            case GE: exprResult = new ExprNodes.Ge(lhs, rhs, tmp); break;
+            case LT: exprResult = new ExprNodes.Lt(lhs, rhs, tmp); break;
+            case LE: exprResult = new ExprNodes.Le(lhs, rhs, tmp); break;
+            default: exprResult = binary(tree.tag, lhs, rhs, tmp, line(tree));
+        }
+    }
+
+    private static ExprNodes.Binary binary(Tag tag, ExprNode lhs, ExprNode rhs, int tmp, int line) {
+        switch (tag) {
+            case ADD: return new ExprNodes.Add(lhs, rhs, tmp, line);
+            case SUB: return new ExprNodes.Sub(lhs, rhs, tmp, line);
+            case MUL: return new ExprNodes.Mul(lhs, rhs, tmp, line);
+            case DIV: return new ExprNodes.Div(lhs, rhs, tmp, line);
+            case REM: return new ExprNodes.Rem(lhs, rhs, tmp, line);
+            case SL: return new ExprNodes.Shl(lhs, rhs, tmp, line);
+            case SR: return new ExprNodes.Shr(lhs, rhs, tmp, line);
+            case BIT_AND: return new ExprNodes.And(lhs, rhs, tmp, line);
+            case BIT_OR: return new ExprNodes.Or(lhs, rhs, tmp, line);
+            case BIT_XOR: return new ExprNodes.Xor(lhs, rhs, tmp, line);
+            default: throw new AssertionError(tag);
+        }
+    }
+
+    @Override
+    public void visitUnaryOp(UnaryOp tree) {
+        switch (tree.tag) {
+            case POSTINC: case POSTDEC:
+            case PREINC: case PREDEC: {
+                boolean increment = tree.hasTag(Tag.PREINC) || tree.hasTag(Tag.POSTINC);
+                boolean prefix = tree.hasTag(Tag.PREINC) || tree.hasTag(Tag.PREDEC);
+                Expr var = stripParens(tree.expr);
+                if (var.hasTag(Tag.VAR)) {
+                    exprResult = new ExprNodes.IncreaseLocal(((Var) var).sym.id, increment, prefix, line(tree));
+                } else {
+                    int tmp = allocTemps(2);
+                    ExprNode[] access = translateAccess(var);
+                    releaseTemps(2);
+                    exprResult = new ExprNodes.IncreaseIndex(access[0], access[1], increment, prefix, tmp, line(tree));
+                }
+                return;
+            }
+            case NOT: exprResult = new ExprNodes.CondNot(translateExpr(tree.expr)); return;
+            case NULLCHK: exprResult = new ExprNodes.NullCheck(translateExpr(tree.expr)); return;
+            // Обращение с эвакуацией генерируется как обычное.
+            case EVACUATE: exprResult = translateExpr(tree.expr); return;
+            case NEG: exprResult = new ExprNodes.Neg(translateExpr(tree.expr), line(tree)); return;
+            case POS: exprResult = new ExprNodes.Pos(translateExpr(tree.expr), line(tree)); return;
+            case BIT_INV: exprResult = new ExprNodes.BitNot(translateExpr(tree.expr), line(tree)); return;
+            default: throw new AssertionError(tree.tag);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package jua;
+
+import jua.BytecodeVerifier.VerifyException;
+import jua.compiler.Code;
+import jua.compiler.InstructionUtils.*;
+import jua.compiler.LineNumberTable;
+import jua.compiler.Module;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BytecodeVerifierTest {
+
+    private static Module.Executable executable(int regSize, int stackSize, Object[] constantPool, InstrNode... code) {
+        return new Module.Executable("f", "test.jua", code, regSize, stackSize, constantPool,
+                new LineNumberTable(new short[0], new int[0]), 0, 0, new Object[0], new String[regSize], 0);
+    }
+
+    private static Module.Executable executable(int stackSize, InstrNode... code) {
+        return executable(1, stackSize, new Object[0], code);
+    }
+
+    private static InstrNode op(int opcode) {
+        return new SingleInstrNode(opcode);
+    }
+
+    private static InstrNode jump(int opcode, int target) {
+        JumpInstrNode node = new JumpInstrNode(opcode);
+        node.setOffset(target);
+        return node;
+    }
+
+    private static void assertRejected(String message, Module.Executable executable) {
+        try {
+            BytecodeVerifier.verify(executable);
+            fail("verified: " + message);
+        } catch (VerifyException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    @Test
+    public void acceptsCompiledPrograms() throws Exception {
+        Module module = Programs.compile(
+                "fn fact(n, acc = 1) = n <= 1 ? acc : fact(n - 1, acc * n);\n" +
+                "fn even(n) = n == 0 || odd(n - 1);\n" +
+                "fn odd(n) = n != 0 && even(n - 1);\n" +
+                "fn sum(list) {\n" +
+                "    var s = 0;\n" +
+                "    for (var i = 0; i < length(list); i++) {\n" +
+                "        if (list[i] == null) continue;\n" +
+                "        s += list[i];\n" +
+                "    }\n" +
+                "    return s;\n" +
+                "}\n" +
+                "var m = {\"a\": fact(5), \"b\": sum([1, null, 2])};\n" +
+                "m[\"c\"] = even(10) ? m[\"a\"] : m[\"b\"] ?? 0;\n");
+        for (Module.Executable executable : module.executables) {
+            BytecodeVerifier.verify(executable);
+        }
+    }
+
+    @Test
+    public void acceptsBranchesThatMergeWithEqualDepth() {
+        BytecodeVerifier.verify(executable(1,
+                op(OPCodes.ConstTrue),
+                jump(OPCodes.IfZ, 4),
+                op(OPCodes.ConstInt1),
+                jump(OPCodes.Goto, 5),
+                op(OPCodes.ConstInt2),
+                op(OPCodes.Return)));
+    }
+
+    @Test
+    public void rejectsBranchesThatMergeWithDifferentDepth() {
+        assertRejected("inconsistent stack depth", executable(2,
+                op(OPCodes.ConstTrue),
+                jump(OPCodes.IfZ, 4),
+                op(OPCodes.ConstInt1),
+                jump(OPCodes.Goto, 6),
+                op(OPCodes.ConstInt1),
+                op(OPCodes.ConstInt2),
+                op(OPCodes.Return)));
+    }
+
+    @Test
+    public void rejectsStackUnderflow() {
+        assertRejected("stack underflow", executable(2,
+                op(OPCodes.ConstInt1),
+                op(OPCodes.Add),
+                op(OPCodes.Return)));
+    }
+
+    @Test
+    public void rejectsStackDeeperThanDeclared() {
+        assertRejected("stack overflow", executable(1,
+                op(OPCodes.ConstInt1),
+                op(OPCodes.ConstInt2),
+                op(OPCodes.Add),
+                op(OPCodes.Return)));
+    }
+
+    @Test
+    public void rejectsJumpOutOfCode() {
+        assertRejected("out of the code", executable(0,
+                jump(OPCodes.Goto, 5)));
+    }
+
+    @Test
+    public void rejectsFallingOffTheEnd() {
+        assertRejected("falls off the end", executable(1,
+                op(OPCodes.ConstInt1)));
+    }
+
+    @Test
+    public void rejectsEmptyCode() {
+        assertRejected("empty code", executable(0));
+    }
+
+    @Test
+    public void rejectsRegisterOutsideWindow() {
+        assertRejected("register 1 is out of 1 registers", executable(1,
+                new IndexedInstrNode(OPCodes.Load, 1),
+                op(OPCodes.Return)));
+    }
+
+    @Test
+    public void rejectsConstantsOfWrongKind() {
+        Object[] pool = { "g", new Code.Callee("g", 0) };
+        assertRejected("refers to a callee", executable(1, 1, pool,
+                new ConstantInstrNode(OPCodes.Push, 1),
+                op(OPCodes.Return)));
+        assertRejected("does not refer to a callee", executable(1, 1, pool,
+                new CallInstrNode(OPCodes.Call, 0, 0),
+                op(OPCodes.Return)));
+        assertRejected("out of the constant pool", executable(1, 1, pool,
+                new ConstantInstrNode(OPCodes.Push, 2),
+                op(OPCodes.Return)));
+        BytecodeVerifier.verify(executable(1, 1, pool,
+                new CallInstrNode(OPCodes.Call, 1, 0),
+                op(OPCodes.Return)));
+    }
+}
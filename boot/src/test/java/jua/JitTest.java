@@ -0,0 +1,100 @@
+package jua;
+
+import jua.runtime.Function;
+import jua.runtime.interpreter.Address;
+import jua.runtime.jit.CompiledCode;
+import jua.runtime.jit.JitCompiler;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static jua.runtime.Types.T_FLOAT;
+import static jua.runtime.Types.T_INT;
+import static org.junit.Assert.*;
+
+/**
+ * Компилирует функции JIT-компилятором и проверяет, что после деоптимизации они продолжают считать верно.
+ * Параметры запуска и окружение общие на всю JVM, поэтому класс выполняется в отдельной JVM.
+ */
+public class JitTest {
+
+    private static final String SOURCE =
+            "fn add(a, b) = a + b;\n" +
+            "fn sum(n, x) {\n" +
+            "    var s = x - x;\n" +
+            "    for (var i = 0; i < n; i++) s = add(s, x);\n" +
+            "    return s;\n" +
+            "}\n" +
+            "fn mix(n, k, d) {\n" +
+            "    var c = 0;\n" +
+            "    for (var i = 0; i < n; i++) c += i == k ? d : 1;\n" +
+            "    return c;\n" +
+            "}\n";
+
+    private static Map<String, Function> functions;
+
+    @BeforeClass
+    public static void load() throws Exception {
+        Options.bind(new String[] { "-jit", "test.jua" });
+        JitCompiler.enable();
+        functions = Programs.load(SOURCE);
+    }
+
+    private static Address call(String name, Object... args) throws InterruptedException {
+        Address result = new Address();
+        Programs.run(functions.get(name), result, args);
+        return result;
+    }
+
+    /** Ждет, пока у функции появится скомпилированный код, отличный от {@code previous}. */
+    private static CompiledCode awaitCompiled(String name, CompiledCode previous) throws InterruptedException {
+        Function fn = functions.get(name);
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (fn.getCompiledCode() == null || fn.getCompiledCode() == previous) {
+            assertTrue(name + " is not compiled", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        return fn.getCompiledCode();
+    }
+
+    private static void assertInt(long expected, Address actual) {
+        assertEquals(T_INT, actual.getType());
+        assertEquals(expected, actual.getLong());
+    }
+
+    private static void assertFloat(double expected, Address actual) {
+        assertEquals(T_FLOAT, actual.getType());
+        assertEquals(expected, actual.getDouble(), 0.0);
+    }
+
+    @Test(timeout = 60_000)
+    public void hotFunctionIsDeoptimizedWhenTypesChange() throws Exception {
+        assertInt(2 * JitCompiler.INVOCATION_THRESHOLD,
+                call("sum", (long) 2 * JitCompiler.INVOCATION_THRESHOLD, 1L));
+        CompiledCode speculative = awaitCompiled("add", null);
+        assertInt(30, call("sum", 10L, 3L));
+
+        // Код add рассчитан на целые числа: сложение вещественных выбрасывает его.
+        assertFloat(5.0, call("sum", 10L, 0.5));
+        assertNotSame(speculative, functions.get("add").getCompiledCode());
+
+        awaitCompiled("add", speculative);
+        assertFloat(5.0, call("sum", 10L, 0.5));
+        assertInt(30, call("sum", 10L, 3L));
+        assertEquals("ab", call("add", "a", "b").getStringHeap().toString());
+    }
+
+    @Test(timeout = 60_000)
+    public void loopContinuesInInterpreterAfterDeoptimization() throws Exception {
+        long n = 2 * JitCompiler.BACKEDGE_THRESHOLD;
+        assertInt(n, call("mix", n, -1L, 1L));
+        CompiledCode speculative = awaitCompiled("mix", null);
+        assertInt(1000, call("mix", 1000L, -1L, 1L));
+
+        // Предположение о целых числах нарушается посреди цикла, остаток цикла выполняет интерпретатор.
+        assertFloat(999.5, call("mix", 1000L, 500L, 0.5));
+        assertNotSame(speculative, functions.get("mix").getCompiledCode());
+        assertInt(1000, call("mix", 1000L, -1L, 1L));
+    }
+}
@@ -0,0 +1,82 @@
+package jua;
+
+import jua.compiler.JuaCompiler;
+import jua.compiler.Module;
+import jua.runtime.Function;
+import jua.runtime.JuaEnvironment;
+import jua.runtime.interpreter.Address;
+import jua.runtime.interpreter.AddressSupport;
+import jua.runtime.interpreter.InterpreterThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Компилирует и выполняет программы Jua, записанные в тестах строками. Нативные функции программам недоступны.
+ * Окружение и параметры запуска общие на всю JVM, поэтому загружать программу следует один раз на JVM,
+ * после {@link Options#bind(String[])}.
+ */
+final class Programs {
+
+    private Programs() {} // A utility class
+
+    static Module compile(String source) throws IOException {
+        File file = File.createTempFile("test", ".jua");
+        file.deleteOnExit();
+        Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+        JuaCompiler c = new JuaCompiler();
+        c.setCharset(StandardCharsets.UTF_8);
+        c.setFile(file.getPath());
+        c.setLogLimit(1);
+        c.setGenTailCalls(true);
+        Module module = c.compile();
+        assertNotNull("compilation failed", module);
+        return module;
+    }
+
+    /** Компилирует программу и добавляет ее функции в окружение. Возвращает функции по именам. */
+    static Map<String, Function> load(String source) throws IOException {
+        Map<String, Function> functions = new HashMap<>();
+        JuaEnvironment env = JuaEnvironment.getEnvironment();
+        for (Module.Executable executable : compile(source).executables) {
+            Function fn = Executable2FunctionTranslator.translate(executable);
+            functions.put(fn.getName(), fn);
+            if (!fn.getName().equals("<main>")) {
+                env.addFunction(fn);
+            }
+        }
+        for (Function fn : functions.values()) {
+            fn.getCode().getConstantPool().linkCallees(env);
+        }
+        return functions;
+    }
+
+    /**
+     * Вызывает функцию в новом потоке интерпретатора и возвращает поток после завершения вызова.
+     * Поток интерпретатора привязан к потоку JVM, поэтому для каждого вызова создается свой.
+     */
+    static InterpreterThread run(Function fn, Address result, Object... args) throws InterruptedException {
+        Address[] argv = new Address[args.length];
+        for (int i = 0; i < args.length; i++) {
+            argv[i] = new Address();
+            AddressSupport.assignObject(argv[i], args[i]);
+        }
+        InterpreterThread[] thread = new InterpreterThread[1];
+        boolean[] success = new boolean[1];
+        Thread worker = new Thread(() -> {
+            thread[0] = new InterpreterThread(Thread.currentThread(), JuaEnvironment.getEnvironment());
+            success[0] = thread[0].callAndWait(fn, argv, result);
+        });
+        worker.start();
+        worker.join();
+        assertTrue(fn.getName() + " crashed", success[0]);
+        return thread[0];
+    }
+}
@@ -0,0 +1,78 @@
+package jua;
+
+import jua.runtime.Function;
+import jua.runtime.interpreter.Address;
+import jua.runtime.interpreter.InterpreterThread;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Проверяет окна регистров в стеке потока: аргументы, локальные переменные и значения по умолчанию
+ * вызываемой функции не портят окно вызывающей, а хвостовой вызов переиспользует окно.
+ */
+public class RegisterWindowTest {
+
+    private static final String SOURCE =
+            "fn locals(n) {\n" +
+            "    if (n == 0) return 0;\n" +
+            "    var a = n * 10;\n" +
+            "    var b = locals(n - 1);\n" +
+            "    var c = a + 1;\n" +
+            "    return a + b + c - 1;\n" +
+            "}\n" +
+            "fn dflt(a, b = 2, c = 3) = a + b + c;\n" +
+            "fn nested() = 100 + dflt(1) * dflt(dflt(1), 5);\n" +
+            "fn refill(n, k = 7) = n == 0 ? k : n == 1 ? refill(0) : refill(1, 100);\n" +
+            "fn ping(n) = n == 0 ? 0 : pong(n - 1, 1, 2);\n" +
+            "fn pong(n, a, b) {\n" +
+            "    var t = a + b;\n" +
+            "    return t == 3 ? ping(n) : -1;\n" +
+            "}\n";
+
+    private static Map<String, Function> functions;
+
+    @BeforeClass
+    public static void load() throws Exception {
+        Options.bind(new String[] { "test.jua" });
+        functions = Programs.load(SOURCE);
+    }
+
+    /** Вызывает функцию, проверяет ее результат и то, что стек потока после вызова пуст. */
+    private static InterpreterThread assertCall(long expected, String name, Object... args) throws InterruptedException {
+        Address result = new Address();
+        InterpreterThread thread = Programs.run(functions.get(name), result, args);
+        assertEquals(expected, result.getLong());
+        assertEquals("stack top after " + name, 0, thread.stack().tos());
+        return thread;
+    }
+
+    @Test
+    public void calleeDoesNotClobberCallerLocals() throws Exception {
+        // locals(n) = 10 * n * (n + 1). Глубина рекурсии заставляет стек потока расти.
+        assertCall(10L * 2000 * 2001, "locals", 2000L);
+    }
+
+    @Test
+    public void missingArgumentsGetDefaults() throws Exception {
+        assertCall(6, "dflt", 1L);
+        assertCall(9, "dflt", 1L, 5L);
+        // Окна вызовов открываются над значениями, которые вызывающая функция держит на стеке операндов.
+        assertCall(100 + 6 * (6 + 5 + 3), "nested");
+    }
+
+    @Test
+    public void tailCallRefillsDefaults() throws Exception {
+        // Второй хвостовой вызов не передает k, и в переиспользованное окно снова подставляется 7, а не 100.
+        assertCall(7, "refill", 2L);
+    }
+
+    @Test
+    public void tailCallsReuseWindowsOfDifferentSize() throws Exception {
+        InterpreterThread thread = assertCall(0, "ping", 300_000L);
+        assertTrue("peak call depth " + thread.getPeakCallDepth(), thread.getPeakCallDepth() < 10);
+    }
+}
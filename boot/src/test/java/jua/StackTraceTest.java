@@ -0,0 +1,95 @@
+package jua;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Проверяет номера строк в трассировке стека, когда листовая нативная функция выбрасывает исключение.
+ * Перед этим функция вызывается в цикле, чтобы с {@code -jit} она успела стать горячей.
+ * Исполнитель выбирается параметрами запуска, а они задаются один раз на JVM, поэтому программа
+ * запускается через {@link Main} в отдельной JVM для каждого исполнителя.
+ */
+public class StackTraceTest {
+
+    private static final String SOURCE =
+            "fn code(s) {\n" +
+            "    var x = 1;\n" +
+            "    return ord(s);\n" +
+            "}\n" +
+            "for (var i = 0; i < 50000; i++) code(\"a\");\n" +
+            "println(code(\"\"));\n";
+
+    private static File file;
+
+    @BeforeClass
+    public static void write() throws IOException {
+        file = File.createTempFile("test", ".jua");
+        file.deleteOnExit();
+        Files.write(file.toPath(), SOURCE.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String run(String... options) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+        for (String option : options) {
+            command.add(option);
+        }
+        command.add(file.getPath());
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream in = process.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                output.write(buffer, 0, n);
+            }
+        }
+        process.waitFor();
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void assertCallerLines(String... options) throws Exception {
+        String output = run(options);
+        String engine = options.length == 0 ? "default" : options[0];
+        assertTrue(engine + ":\n" + output, output.contains("\tcode(" + file.getPath() + ":3)"));
+        assertTrue(engine + ":\n" + output, output.contains("\t<main>(" + file.getPath() + ":6)"));
+    }
+
+    @Test(timeout = 60_000)
+    public void objectCodeReportsCallerLine() throws Exception {
+        assertCallerLines();
+    }
+
+    @Test(timeout = 60_000)
+    public void packedCodeReportsCallerLine() throws Exception {
+        assertCallerLines("-sw");
+    }
+
+    @Test(timeout = 60_000)
+    public void registerCodeReportsCallerLine() throws Exception {
+        assertCallerLines("-r");
+    }
+
+    @Test(timeout = 60_000)
+    public void jitReportsCallerLine() throws Exception {
+        assertCallerLines("-jit");
+    }
+
+    @Test(timeout = 60_000)
+    public void treeReportsCallerLine() throws Exception {
+        assertCallerLines("-t");
+    }
+}
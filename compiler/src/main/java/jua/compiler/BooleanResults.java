@@ -0,0 +1,90 @@
+package jua.compiler;
+
+import jua.compiler.ModuleScope.FunctionSymbol;
+import jua.compiler.Tree.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static jua.compiler.CompHelper.stripParens;
+
+/**
+ * Находит функции, которые всегда возвращают логическое значение, и выставляет им {@link FunctionSymbol#booleanResult}.
+ * <p>
+ * Результат {@code &&} и {@code ||} логический, поэтому вызов в правом операнде может быть хвостовым,
+ * только если вызываемая функция сама возвращает логическое значение.
+ * <p>
+ * Сначала логическими считаются все функции, затем исключаются функции с нелогическим возвратом,
+ * пока множество не перестанет меняться. Вызов функции, которая еще в множестве, считается логическим,
+ * поэтому взаимно рекурсивные функции вроде {@code even} и {@code odd} остаются логическими.
+ */
+public final class BooleanResults extends Scanner {
+
+    public static void analyze(List<FuncDef> functions) {
+        for (FuncDef function : functions) {
+            function.sym.booleanResult = true;
+        }
+        boolean changed;
+        do {
+            changed = false;
+            for (FuncDef function : functions) {
+                if (function.sym.booleanResult && !returnsBoolean(function)) {
+                    function.sym.booleanResult = false;
+                    changed = true;
+                }
+            }
+        } while (changed);
+    }
+
+    private static boolean returnsBoolean(FuncDef function) {
+        if (function.body.hasTag(Tag.DISCARDED)) {
+            return isBoolean(((Discarded) function.body).expr);
+        }
+        // Функция, которая может дойти до конца тела, возвращает null.
+        TList<Stmt> stats = ((Block) function.body).stats;
+        if (stats.isEmpty() || !stats.getLast().hasTag(Tag.RETURN)) {
+            return false;
+        }
+        BooleanResults scanner = new BooleanResults();
+        scanner.scan(function.body);
+        for (Expr expr : scanner.results) {
+            if (expr == null || !isBoolean(expr)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Возвращает {@code true}, если значение выражения всегда логическое. */
+    public static boolean isBoolean(Expr expr) {
+        Expr tree = stripParens(expr);
+        switch (tree.getTag()) {
+            case LITERAL:
+                return ((Literal) tree).value instanceof Boolean;
+            case EQ: case NE:
+            case GT: case GE:
+            case LT: case LE:
+            case AND: case OR:
+            case NOT:
+                return true;
+            case TERNARY:
+                return isBoolean(((Conditional) tree).ths) && isBoolean(((Conditional) tree).fhs);
+            case INVOCATION: {
+                FunctionSymbol sym = ((Invocation) tree).sym;
+                return sym.opcode < 0 && sym.nativeHandle < 0 && sym.booleanResult;
+            }
+            default:
+                return false;
+        }
+    }
+
+    /** Выражения операторов {@code return}, для {@code return} без значения — {@code null}. */
+    private final List<Expr> results = new ArrayList<>();
+
+    private BooleanResults() {}
+
+    @Override
+    public void visitReturn(Return tree) {
+        results.add(tree.expr);
+    }
+}
@@ -100,6 +100,10 @@ public final class Code {
         return emitNode(new InstructionUtils.CallInstrNode(InstructionUtils.OPCodes.Call, callee, argc));
     }
 
+    public int emitTailCall(int callee, int argc) {
+        return emitNode(new InstructionUtils.CallInstrNode(InstructionUtils.OPCodes.TailCall, callee, argc));
+    }
+
     public int emitNode(InstrNode node) {
         int pc = pc();
 //        if (isAlive()) {
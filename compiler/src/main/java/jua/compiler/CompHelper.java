@@ -1,5 +1,6 @@
 package jua.compiler;
 
+import jua.compiler.ModuleScope.FunctionSymbol;
 import jua.compiler.Tokens.TokenType;
 import jua.compiler.Tree.*;
 import jua.compiler.utils.EnumMath;
@@ -81,6 +82,37 @@ public class CompHelper {
         throw new AssertionError(innerTree.getTag());
     }
 
+    /**
+     * Возвращает {@code true}, если вызов из функции {@code caller} может переиспользовать ее фрейм.
+     * Функция {@code <main>} свои регистры отдавать не может, так как в них лежат разделяемые переменные.
+     */
+    public static boolean isTailCallable(FunctionSymbol caller, Invocation tree) {
+        return tree.sym.opcode < 0 && tree.sym.nativeHandle < 0 && !caller.name.equals("<main>");
+    }
+
+    /**
+     * Возвращает {@code true}, если в возвращаемом выражении есть вызов в хвостовой позиции: само выражение,
+     * ветка {@code ?:} или правый операнд {@code &&} и {@code ||}. Если {@code asBoolean}, возвращается
+     * логическое значение выражения, и хвостовым может быть только вызов функции с логическим результатом.
+     */
+    public static boolean hasTailCall(FunctionSymbol caller, Expr expr, boolean asBoolean) {
+        Expr tree = stripParens(expr);
+        switch (tree.getTag()) {
+            case INVOCATION: {
+                Invocation invocation = (Invocation) tree;
+                return isTailCallable(caller, invocation) && (!asBoolean || invocation.sym.booleanResult);
+            }
+            case TERNARY: {
+                Conditional conditional = (Conditional) tree;
+                return hasTailCall(caller, conditional.ths, asBoolean) || hasTailCall(caller, conditional.fhs, asBoolean);
+            }
+            case AND: case OR:
+                return hasTailCall(caller, ((BinaryOp) tree).rhs, true);
+            default:
+                return false;
+        }
+    }
+
     public static boolean isNull(Expr tree) {
         Expr innerTree = stripParens(tree);
         if (innerTree.hasTag(Tag.LITERAL)) {
@@ -131,6 +131,16 @@ public class Enter extends Scanner {
             tree.sym = globalScope.defineUserFunction(tree, 0);
         }
 
+        // Параметры всегда занимают первые регистры функции.
+        tree.params.forEach((Consumer<? super FuncDef.Parameter>) param -> {
+            if (scope.defined(param.name)) {
+                report(param.pos, "duplicated parameter declaration");
+                param.sym = scope.resolve(param.name);
+                return;
+            }
+            param.sym = scope.define(param.name);
+        });
+
         switch (tree.body.getTag()) {
             case BLOCK:
                 Block blockTree = (Block) tree.body;
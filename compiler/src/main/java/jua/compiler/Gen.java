@@ -15,6 +15,7 @@ import java.util.function.Consumer;
 
 import static jua.compiler.Code.mergeChains;
 import static jua.compiler.InstructionUtils.*;
+import static jua.compiler.CompHelper.hasTailCall;
 import static jua.compiler.CompHelper.isNull;
 import static jua.compiler.CompHelper.stripParens;
 
@@ -101,6 +102,9 @@ public class Gen extends Scanner {
     // Set from JuaCompiler.compile
     public boolean genJvmLoops;
 
+    // Set from JuaCompiler.compile
+    public boolean genTailCalls;
+
     private Item genExpr(Expr tree) {
         Item prevItem = result;
         try {
@@ -159,8 +163,7 @@ public class Gen extends Scanner {
             code.emitSingle(OPCodes.Leave);
         } else {
             Assert.check(tree.body.hasTag(Tag.DISCARDED), "Function body neither block ner expression");
-            genExpr(((Discarded) tree.body).expr).load();
-            code.emitSingle(OPCodes.Return);
+            genReturnValue(((Discarded) tree.body).expr);
         }
         code.setAlive(false);
 
@@ -260,12 +263,67 @@ public class Gen extends Scanner {
         if (tree.expr == null || isNull(tree.expr)) {
             code.emitSingle(OPCodes.Leave);
         } else {
-            genExpr(tree.expr).load();
-            code.emitSingle(OPCodes.Return);
+            genReturnValue(tree.expr);
         }
         code.setAlive(false);
     }
 
+    private void genReturnValue(Expr expr) {
+        genReturnValue(expr, false);
+    }
+
+    /**
+     * Генерирует возврат значения {@code expr}, а если {@code asBoolean} — его логического значения.
+     * Выражение с вызовом в хвостовой позиции разбирается на ветки, каждая из которых возвращает свое значение,
+     * а сам вызов переиспользует фрейм.
+     */
+    private void genReturnValue(Expr expr, boolean asBoolean) {
+        Expr tree = stripParens(expr);
+        if (genTailCalls && hasTailCall(code.sym, tree, asBoolean)) {
+            switch (tree.getTag()) {
+                case INVOCATION: {
+                    Invocation invocation = (Invocation) tree;
+                    invocation.args.forEach((Consumer<? super Invocation.Argument>) a -> genExpr(a.expr).load());
+                    code.putPos(invocation.pos);
+                    code.emitTailCall(code.resolveCallee(invocation.sym.name), invocation.args.size());
+                    // Если вызываемая функция окажется нативной, tailcall выполняется как обычный вызов,
+                    // и результат возвращает следующая инструкция.
+                    code.emitSingle(OPCodes.Return);
+                    return;
+                }
+                case TERNARY: {
+                    Conditional conditional = (Conditional) tree;
+                    CondItem condItem = genExpr(conditional.cond).asCond();
+                    Chain falseJumps = condItem.falseJumps();
+                    code.resolve(condItem.trueChain);
+                    genReturnValue(conditional.ths, asBoolean);
+                    code.resolve(falseJumps);
+                    genReturnValue(conditional.fhs, asBoolean);
+                    return;
+                }
+                case AND: case OR: {
+                    // Если левый операнд решает результат, возвращается false для && и true для ||.
+                    BinaryOp binary = (BinaryOp) tree;
+                    boolean and = tree.hasTag(Tag.AND);
+                    CondItem lhsCond = genExpr(binary.lhs).asCond();
+                    Chain decidedJumps = and ? lhsCond.falseJumps() : lhsCond.trueJumps();
+                    code.resolve(and ? lhsCond.trueChain : lhsCond.falseChain);
+                    genReturnValue(binary.rhs, true);
+                    code.resolve(decidedJumps);
+                    items.mkLiteral(!and).load();
+                    code.emitSingle(OPCodes.Return);
+                    return;
+                }
+            }
+        }
+        if (asBoolean) {
+            genExpr(expr).asCond().load();
+        } else {
+            genExpr(expr).load();
+        }
+        code.emitSingle(OPCodes.Return);
+    }
+
     @Override
     public void visitDiscarded(Discarded tree) {
         genExpr(tree.expr).drop();
@@ -291,6 +349,20 @@ public class Gen extends Scanner {
         result = items.mkStackItem();
     }
 
+    @Override
+    public void visitMapLiteral(MapLiteral tree) {
+        code.putPos(tree.pos);
+        code.emitSingle(OPCodes.NewMap);
+
+        for (int i = 0; i < tree.keys.size(); i++) {
+            items.mkStackItem().duplicate();
+            genExpr(tree.keys.get(i)).load();
+            genExpr(tree.values.get(i)).load();
+            items.mkAccessItem().store();
+        }
+        result = items.mkStackItem();
+    }
+
     @Override
     public void visitVariable(Var tree) {
         result = items.t(tree).makeLocal(tree.sym.id);
@@ -139,8 +139,9 @@ public class InstructionUtils {
 
                 ShLoad = 66, // Shared Load. Чтение разделенной переменной
                 ShStore = 67, // Shared Store. Запись в разделенную переменную
+                TailCall = 68, // Вызов в хвостовой позиции, переиспользующий фрейм вызывающей функции
 
-        _InstrCount = Leave + 1;
+        _InstrCount = TailCall + 1;
     }
 
     private static final OpData[] OP_DATA = new OpData[OPCodes._InstrCount];
@@ -225,6 +226,7 @@ public class InstructionUtils {
         opData(OPCodes.BinarySwitch, "binaryswitch", -1);
         opData(OPCodes.Return, "return", -1);
         opData(OPCodes.Leave, "leave", 0);
+        opData(OPCodes.TailCall, "tailcall", 0);
 
     }
 
@@ -30,6 +30,13 @@ public final class JuaCompiler {
 
     private final ModuleScope moduleScope = new ModuleScope();
 
+    /** Дерево последнего скомпилированного файла после Lower, Enter и Check. */
+    private Tree.Document compilationUnit;
+
+    public Tree.Document getCompilationUnit() {
+        return compilationUnit;
+    }
+
     public ModuleScope getModuleScope() {
         return moduleScope;
     }
@@ -44,6 +51,16 @@ public final class JuaCompiler {
 
     private boolean genJvmLoops = false;
 
+    public boolean isGenTailCalls() {
+        return genTailCalls;
+    }
+
+    public void setGenTailCalls(boolean genTailCalls) {
+        this.genTailCalls = genTailCalls;
+    }
+
+    private boolean genTailCalls = true;
+
     public void setCharset(Charset charset) {
         this.charset = charset;
     }
@@ -112,10 +129,13 @@ public final class JuaCompiler {
             if (log.hasErrors()) {
                 return null;
             }
+            this.compilationUnit = compilationUnit;
+            BooleanResults.analyze(compilationUnit.functions);
 
             compilationUnit.functions.forEach((Consumer<? super Tree.FuncDef>) funcDef1 -> funcDef1.sym.code = new Code(programScope, source));
 
             compilationUnit.functions.forEach((Consumer<? super Tree.FuncDef>) funcDef -> {
+                funcDef.sym.code.gen.genTailCalls = genTailCalls;
                 funcDef.accept(funcDef.sym.code.gen);
                 programScope.lookupFunction(funcDef.name).executable = funcDef.sym.executable;
             });
@@ -471,6 +471,9 @@ public final class JuaParser {
             case INTLITERAL: {
                 return parseInt(tok);
             }
+            case LBRACE: {
+                return parseMapInit(tok.pos);
+            }
             case LBRACKET: {
                 return parseListInit(tok.pos);
             }
@@ -576,6 +579,29 @@ public final class JuaParser {
         return new ListLiteral(pos, entries);
     }
 
+    private MapLiteral parseMapInit(int pos) {
+        TList<Expr> keys = new TList<>();
+        TList<Expr> values = new TList<>();
+        if (!acceptToken(RBRACE)) {
+            do {
+                keys.add(parseExpression());
+                expectToken(COL);
+                values.add(parseExpression());
+                if (acceptToken(COMMA)) {
+                    if (acceptToken(RBRACE)) {
+                        break;
+                    }
+                    continue;
+                }
+                if (acceptToken(RBRACE)) {
+                    break;
+                }
+                unexpected(token, Arrays.asList(COMMA, RBRACE));
+            } while (true);
+        }
+        return new MapLiteral(pos, keys, values);
+    }
+
     private Expr parseParens() {
         int pos = acceptedPos;
         Expr expr = parseExpression();
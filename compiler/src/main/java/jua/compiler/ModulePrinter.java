@@ -124,7 +124,7 @@ public class ModulePrinter {
 
         @Override
         public void visitCall(CallInstrNode node) {
-            printOPCode(node.opcode); // node.opcode always must be OPCodes.Call
+            printOPCode(node.opcode); // node.opcode always must be OPCodes.Call or OPCodes.TailCall
             printFuncRef(node.callee);
             print(node.argc);
         }
@@ -23,6 +23,7 @@ public final class ModuleScope {
         public int nlocals;
         public int opcode = -1; // Больше или равно нуля, если языковая конструкция
         public int nativeHandle = -1; // Неотрицательно, если это заглушка для нативной функции.
+        public boolean booleanResult; // Функция всегда возвращает логическое значение, см. BooleanResults
 
         FunctionSymbol(String name, int loargc, int hiargc, String[] params, Object[] defs, int flags) {
             this.name = name;
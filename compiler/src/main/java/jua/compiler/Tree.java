@@ -26,6 +26,7 @@ public abstract class Tree {
         DISCARDED,
         LITERAL,
         LISTLIT,
+        MAPLIT,
         VAR,
         MEMACCESS,
         ARRACC,
@@ -89,6 +90,7 @@ public abstract class Tree {
         void visitDiscarded(Discarded tree);
         void visitLiteral(Literal tree);
         void visitListLiteral(ListLiteral tree);
+        void visitMapLiteral(MapLiteral tree);
         void visitVariable(Var tree);
         void visitMember(Member tree);
         void visitIndex(Index tree);
@@ -144,6 +146,9 @@ public abstract class Tree {
         @Override
         public void visitListLiteral(ListLiteral tree) { visitTree(tree); }
 
+        @Override
+        public void visitMapLiteral(MapLiteral tree) { visitTree(tree); }
+
         @Override
         public void visitVariable(Var tree) { visitTree(tree); }
 
@@ -270,6 +275,12 @@ public abstract class Tree {
             scan(tree.entries);
         }
 
+        @Override
+        public void visitMapLiteral(MapLiteral tree) {
+            scan(tree.keys);
+            scan(tree.values);
+        }
+
         @Override
         public void visitVariable(Var tree) {  }
 
@@ -442,6 +453,13 @@ public abstract class Tree {
             result = tree;
         }
 
+        @Override
+        public void visitMapLiteral(MapLiteral tree) {
+            tree.keys = translate(tree.keys);
+            tree.values = translate(tree.values);
+            result = tree;
+        }
+
         @Override
         public void visitVariable(Var tree) { result = tree; }
 
@@ -827,6 +845,26 @@ public abstract class Tree {
         public void accept(Visitor visitor) { visitor.visitListLiteral(this); }
     }
 
+    public static class MapLiteral extends Expr {
+
+        /** Ключи записей. Значение записи с индексом {@code i} лежит в {@link #values} под тем же индексом. */
+        public TList<Expr> keys;
+
+        public TList<Expr> values;
+
+        public MapLiteral(int pos, TList<Expr> keys, TList<Expr> values) {
+            super(pos);
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        public Tag getTag() { return Tag.MAPLIT; }
+
+        @Override
+        public void accept(Visitor visitor) { visitor.visitMapLiteral(this); }
+    }
+
     public static class Var extends Expr {
 
         public final String name;
@@ -2,11 +2,14 @@ package jua.runtime;
 
 import jua.runtime.code.CodeData;
 import jua.runtime.interpreter.Address;
+import jua.runtime.jit.CompiledCode;
+import jua.runtime.tree.TreeCode;
 
 public final class Function {
 
     public static final int FLAG_NATIVE = 0x01; /* Нативная функция */
     public static final int FLAG_HIDDEN = 0x02; /* Функция не показывается в трассировке стека */
+    public static final int FLAG_LEAF   = 0x04; /* Нативная функция, которая вызывается без фрейма */
     public static final int FLAG_KILLER = 0x08; /* Функция, которая точно прекращает выполнение потока1 */
 
     private final String name;
@@ -29,6 +32,19 @@ public final class Function {
 
     public int runtimeId = -1;
 
+    /**
+     * Счетчики вызовов и обратных переходов, по которым JIT-компилятор находит горячие функции.
+     * Меняются только потоком интерпретатора и только при включенном JIT-компиляторе.
+     */
+    private int invocationCounter = 0;
+    private int backedgeCounter = 0;
+
+    /** Код, скомпилированный JIT-компилятором, или {@code null}. */
+    private volatile CompiledCode compiledCode;
+
+    /** Тело функции в виде дерева исполняемых узлов или {@code null}, если функция выполняется байт-кодом. */
+    private TreeCode treeCode;
+
     public Function(String name, String module, int minArgc, int maxArgc, String[] params, Address[] defaults, int flags, CodeData code, NativeExecutor nativeBody) {
         this.name = name;
         this.module = module;
@@ -73,6 +89,36 @@ public final class Function {
         return code;
     }
 
+    public CompiledCode getCompiledCode() {
+        return compiledCode;
+    }
+
+    public void setCompiledCode(CompiledCode compiledCode) {
+        this.compiledCode = compiledCode;
+    }
+
+    /** Увеличивает счетчик вызовов и возвращает его новое значение. */
+    public int countInvocation() {
+        return ++invocationCounter;
+    }
+
+    /** Увеличивает счетчик обратных переходов и возвращает его новое значение. */
+    public int countBackedge() {
+        return ++backedgeCounter;
+    }
+
+    public void resetBackedgeCounter() {
+        backedgeCounter = 0;
+    }
+
+    public TreeCode getTreeCode() {
+        return treeCode;
+    }
+
+    public void setTreeCode(TreeCode treeCode) {
+        this.treeCode = treeCode;
+    }
+
     public NativeExecutor getNativeBody() {
         return nativeBody;
     }
@@ -81,6 +127,14 @@ public final class Function {
         return (flags & FLAG_NATIVE) == 0;
     }
 
+    /**
+     * Листовая нативная функция не вызывает других функций и не обращается к фреймам потока,
+     * поэтому ее можно вызвать прямо из инструкции вызова, без фрейма и без возврата в цикл потока.
+     */
+    public boolean isLeaf() {
+        return (flags & (FLAG_NATIVE | FLAG_LEAF)) == (FLAG_NATIVE | FLAG_LEAF);
+    }
+
     public boolean isHidden() {
         return (flags & FLAG_HIDDEN) == FLAG_HIDDEN;
     }
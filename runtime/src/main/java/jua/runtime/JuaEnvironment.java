@@ -48,6 +48,15 @@ public final class JuaEnvironment {
         return functionData.get(id);
     }
 
+    /**
+     * Возвращает функцию с указанным именем или {@code null}, если такой функции нет.
+     */
+    public Function findFunction(String name) {
+        synchronized (fntab) {
+            return fntab.get(name);
+        }
+    }
+
     public Function lookupFunction(String name) {
         if (!fntab.containsKey(name)) {
             synchronized (fntab) {
@@ -1,6 +1,7 @@
 package jua.runtime;
 
 import jua.runtime.heap.ListHeap;
+import jua.runtime.heap.MapHeap;
 import jua.runtime.heap.StringHeap;
 
 /**
@@ -16,6 +17,7 @@ public class Types {
     public static final byte T_FLOAT = 3;
     public static final byte T_BOOLEAN = 4;
     public static final byte T_STRING = 5;
+    public static final byte T_MAP = 6;
     public static final byte T_LIST = 7;
 
     /** Возвращает имя типа. */
@@ -27,6 +29,7 @@ public class Types {
             case T_FLOAT:   return "float";
             case T_BOOLEAN: return "boolean";
             case T_STRING:  return "string";
+            case T_MAP:     return "map";
             case T_LIST:    return "list";
             default:        return "<" + Integer.toHexString(type) + ">";
         }
@@ -41,6 +44,11 @@ public class Types {
         return type >= T_INT && type <= T_STRING;
     }
 
+    /** Возвращает {@code true}, если значения типа хранятся в куче: строки, ассоциативные массивы и списки. */
+    public static boolean isTypeHeap(byte type) {
+        return type >= T_STRING && type <= T_LIST;
+    }
+
     public static boolean l2b(long l) {
         return l != 0L;
     }
@@ -85,6 +93,10 @@ public class Types {
         return li.nonEmpty();
     }
 
+    public static boolean e2b(MapHeap map) {
+        return map.nonEmpty();
+    }
+
     public static int hashOfLong(long lval) {
         return Long.hashCode(lval);
     }
@@ -104,4 +116,8 @@ public class Types {
     public static int hashOfList(ListHeap l) {
         return l.hashCode();
     }
+
+    public static int hashOfMap(MapHeap m) {
+        return m.hashCode();
+    }
 }
@@ -16,6 +16,9 @@ public final class CodeData {
     /** Последовательность инструкций. */
     private final Instruction[] code;
 
+    /** Упакованная последовательность инструкций. Равно {@code null}, если код не упакован. */
+    private final int[] packedCode;
+
     /** Пул констант, используемых в коде. */
     private final ConstantPool constantPool;
 
@@ -23,10 +26,18 @@ public final class CodeData {
     private final LineNumberTable lineNumTable;
 
     public CodeData(int stackWide, int locals, String[] vars, Instruction[] code, ConstantPool constantPool, LineNumberTable lineNumTable) {
+        this(stackWide, locals, vars, code, null, constantPool, lineNumTable);
+    }
+
+    public CodeData(int stackWide, int locals, String[] vars, Instruction[] code, int[] packedCode, ConstantPool constantPool, LineNumberTable lineNumTable) {
+        if (packedCode != null && packedCode.length != code.length) {
+            throw new IllegalArgumentException("packed code does not match the instructions");
+        }
         this.stackWide = stackWide;
         this.regNumber = locals;
         this.vars = vars;
         this.code = code;
+        this.packedCode = packedCode;
         this.constantPool = constantPool;
         this.lineNumTable = lineNumTable;
     }
@@ -47,6 +58,14 @@ public final class CodeData {
         return code;
     }
 
+    public int[] getPackedCode() {
+        return packedCode;
+    }
+
+    public boolean isPacked() {
+        return packedCode != null;
+    }
+
     public LineNumberTable getLineNumberTable() {
         return lineNumTable;
     }
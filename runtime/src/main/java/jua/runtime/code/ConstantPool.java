@@ -1,5 +1,8 @@
 package jua.runtime.code;
 
+import jua.runtime.Function;
+import jua.runtime.JuaEnvironment;
+import jua.runtime.heap.ListHeap;
 import jua.runtime.interpreter.Address;
 import jua.runtime.interpreter.AddressSupport;
 
@@ -10,6 +13,13 @@ public final class ConstantPool {
 
     private final Object[] entries;
 
+    /**
+     * Значения констант, готовые к загрузке, или {@code null} для вызываемых функций.
+     * Строки разделяются между всеми загрузками: строковые значения никогда не изменяются на месте,
+     * поэтому загрузка литерала сводится к копированию одной ячейки.
+     */
+    private final Address[] values;
+
     public ConstantPool(Object[] entries) {
         if (entries == null) {
             throw new IllegalArgumentException("array of entries must not be null");
@@ -18,17 +28,50 @@ public final class ConstantPool {
             throw new IllegalArgumentException("array of entries must not contain more than ConstantPool.MAX_SIZE elements");
         }
         this.entries = entries;
+        this.values = new Address[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            Object entry = entries[i];
+            if (entry instanceof ResolvableCallee) continue;
+            if (entry instanceof ListHeap || entry instanceof Object[]) {
+                // Список изменяемый, его пришлось бы копировать при каждой загрузке.
+                throw new IllegalArgumentException("list constants are not supported");
+            }
+            Address value = new Address();
+            AddressSupport.assignObject(value, entry);
+            values[i] = value;
+        }
     }
 
     public ResolvableCallee getCallee(int index) {
         return (ResolvableCallee) entries[index];
     }
 
+    /**
+     * Связывает вызываемые функции с функциями окружения, чтобы инструкция вызова не искала их по имени.
+     * Функции, отсутствующие в окружении, остаются несвязанными и будут найдены при первом вызове.
+     */
+    public void linkCallees(JuaEnvironment env) {
+        for (Object entry : entries) {
+            if (!(entry instanceof ResolvableCallee)) continue;
+            ResolvableCallee callee = (ResolvableCallee) entry;
+            if (callee.isResolved()) continue;
+            Function fn = env.findFunction(getUtf8(callee.getUtf8()));
+            if (fn != null) {
+                callee.setResolved(fn);
+            }
+        }
+    }
+
     public String getUtf8(int index) {
         return (String) entries[index];
     }
 
     public void load(int index, Address receiver) {
-        AddressSupport.assignObject(receiver, entries[index]);
+        receiver.set(values[index]);
+    }
+
+    /** Возвращает значение константы. Значение общее для всех загрузок, его нельзя изменять. */
+    public Address get(int index) {
+        return values[index];
     }
 }
@@ -0,0 +1,143 @@
+package jua.runtime.code;
+
+import jua.runtime.interpreter.OPCodes;
+
+/**
+ * Упакованное представление байт-кода: одна инструкция — одно слово {@code int}.
+ * <p>
+ * Младшие {@link #OPCODE_BITS} бит слова занимает опкод, оставшиеся — операнд инструкции.
+ * Поскольку каждая инструкция занимает ровно одно слово, индексы упакованного кода совпадают
+ * с индексами {@link CodeData#getCode() объектного кода}: адреса переходов и таблица строк
+ * остаются без изменений.
+ */
+public final class PackedCode {
+
+    /** Число бит, отведенных под опкод. */
+    public static final int OPCODE_BITS = 8;
+
+    /** Маска опкода. */
+    public static final int OPCODE_MASK = (1 << OPCODE_BITS) - 1;
+
+    /** Максимальное значение операнда. */
+    public static final int MAX_OPERAND = (1 << (32 - OPCODE_BITS)) - 1;
+
+    /** Число бит, отведенных под индекс вызываемой функции в операнде инструкции call. */
+    public static final int CALLEE_BITS = 16;
+
+    /** Максимальное число аргументов, которое можно закодировать в инструкции call. */
+    public static final int MAX_CALL_ARGC = MAX_OPERAND >>> CALLEE_BITS;
+
+    /*
+     * Суперинструкции упакованного кода. Как и в объектном коде, суперинструкция заменяет только первое слово
+     * последовательности, а остальные слова остаются на местах: переходы внутрь последовательности выполняют
+     * ее обычные инструкции. Недостающие операнды суперинструкция читает из следующих слов. Первая инструкция
+     * всегда загружает регистр, номер которого хранится в младших {@link #FUSED_REGISTER_BITS} битах операнда.
+     * Их опкоды не пересекаются с опкодами {@link jua.runtime.interpreter.OPCodes}.
+     */
+
+    /** {@code load a; load b} */
+    public static final int LOAD_LOAD = 0x80;
+
+    /** {@code load a; load b; aload} */
+    public static final int LOAD_LOAD_ARRAY_LOAD = 0x81;
+
+    /** {@code load i; if<cond>} */
+    public static final int LOAD_IF = 0x82;
+
+    /** {@code load a; load b; if<cond>} */
+    public static final int LOAD_LOAD_IF = 0x83;
+
+    /** {@code load i; push c; if<cond>} */
+    public static final int LOAD_CONST_IF = 0x84;
+
+    /** Число бит операнда суперинструкции, отведенных под номер регистра. */
+    public static final int FUSED_REGISTER_BITS = 16;
+
+    /** Максимальный номер регистра, который можно закодировать в суперинструкции. */
+    public static final int MAX_FUSED_REGISTER = (1 << FUSED_REGISTER_BITS) - 1;
+
+    // Биты условия суперинструкции с переходом: переход выполняется при результате сравнения < 0, == 0 или > 0.
+    private static final int BRANCH_SHIFT = OPCODE_BITS + FUSED_REGISTER_BITS;
+    private static final int BRANCH_LT = 1;
+    private static final int BRANCH_EQ = 1 << 1;
+    private static final int BRANCH_GT = 1 << 2;
+    /** Несравнимые операнды считаются меньшими, а не большими, чтобы условие {@code >} или {@code >=} было ложным. */
+    private static final int BRANCH_UNEXPECTED_LESS = 1 << 3;
+
+    public static int encode(int opcode, int operand) {
+        if (opcode < 0 || opcode > OPCODE_MASK) {
+            throw new IllegalArgumentException("opcode: " + opcode);
+        }
+        if (operand < 0 || operand > MAX_OPERAND) {
+            throw new IllegalArgumentException("operand: " + operand);
+        }
+        return opcode | (operand << OPCODE_BITS);
+    }
+
+    public static int encodeCall(int opcode, int calleeId, int argc) {
+        if (calleeId < 0 || calleeId >= (1 << CALLEE_BITS)) {
+            throw new IllegalArgumentException("callee: " + calleeId);
+        }
+        if (argc < 0 || argc > MAX_CALL_ARGC) {
+            throw new IllegalArgumentException("argc: " + argc);
+        }
+        return encode(opcode, calleeId | (argc << CALLEE_BITS));
+    }
+
+    /**
+     * Кодирует суперинструкцию, загружающую регистр {@code register}.
+     * {@code cond} — опкод условного перехода последовательности или 0, если перехода в ней нет.
+     */
+    public static int encodeFused(int opcode, int register, int cond) {
+        if (register < 0 || register > MAX_FUSED_REGISTER) {
+            throw new IllegalArgumentException("register: " + register);
+        }
+        return encode(opcode, register) | (branchBits(cond) << BRANCH_SHIFT);
+    }
+
+    private static int branchBits(int cond) {
+        switch (cond) {
+            case 0: return 0;
+            case OPCodes.IfEq: return BRANCH_EQ;
+            case OPCodes.IfNe: return BRANCH_LT | BRANCH_GT;
+            case OPCodes.IfLt: return BRANCH_LT;
+            case OPCodes.IfLe: return BRANCH_LT | BRANCH_EQ;
+            case OPCodes.IfGt: return BRANCH_GT | BRANCH_UNEXPECTED_LESS;
+            case OPCodes.IfGe: return BRANCH_GT | BRANCH_EQ | BRANCH_UNEXPECTED_LESS;
+            default: throw new IllegalArgumentException("cond: " + cond);
+        }
+    }
+
+    /** Возвращает номер регистра, который загружает суперинструкция или инструкция {@code load}. */
+    public static int fusedRegister(int word) {
+        return operand(word) & MAX_FUSED_REGISTER;
+    }
+
+    /** Возвращает результат сравнения несравнимых операндов для {@link jua.runtime.interpreter.Address#fastCompareWith}. */
+    public static int fusedUnexpected(int word) {
+        return ((word >>> BRANCH_SHIFT) & BRANCH_UNEXPECTED_LESS) != 0 ? -1 : 1;
+    }
+
+    /** Возвращает {@code true}, если суперинструкция с переходом выполняет переход при результате сравнения {@code c}. */
+    public static boolean isBranchTaken(int word, int c) {
+        return ((word >>> (BRANCH_SHIFT + Integer.signum(c) + 1)) & 1) != 0;
+    }
+
+    public static int opcode(int word) {
+        return word & OPCODE_MASK;
+    }
+
+    public static int operand(int word) {
+        return word >>> OPCODE_BITS;
+    }
+
+    public static int calleeId(int word) {
+        return operand(word) & ((1 << CALLEE_BITS) - 1);
+    }
+
+    public static int callArgc(int word) {
+        return operand(word) >>> CALLEE_BITS;
+    }
+
+    private PackedCode() {} // A utility class
+}
@@ -1,93 +1,216 @@
 package jua.runtime.heap;
 
 import jua.runtime.interpreter.Address;
-import jua.runtime.interpreter.AddressSupport;
-import jua.runtime.interpreter.AddressUtils;
 
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.StringJoiner;
 
+import static jua.runtime.Types.*;
+
+/**
+ * Список значений переменной длины.
+ * <p>
+ * Элементы хранятся в параллельных массивах:
+ * тип элемента в {@link #types}, целые и логические значения и биты вещественных в {@link #bits}.
+ * Пока в список не записано значение из кучи, массив ссылок {@link #refs} не создается, и список
+ * чисел занимает 9 байт на элемент вместо отдельного объекта {@link Address} на каждый элемент.
+ * Массив ссылок создается при первой записи значения из кучи и остается до конца жизни списка.
+ * <p>
+ * Емкость массивов растет геометрически, поэтому добавление в конец выполняется за амортизированное O(1).
+ * Вставка и удаление сдвигают хвост списка одним {@link System#arraycopy} на каждый массив.
+ * Лишняя емкость освобождается только явным вызовом {@link #trimToSize()}.
+ * <p>
+ * Элементы не являются объектами {@link Address}, поэтому их значения читаются и записываются копированием
+ * через {@link #get(int, Address)} и {@link #set(int, Address)}.
+ */
 public final class ListHeap extends Heap implements Iterable<Address> {
 
-    private final Address[] data;
+    private static final int MIN_CAPACITY = 4;
+
+    private byte[] types;
+
+    private long[] bits;
 
-    /** Указатель на конец списка */
-    private int key = 0;
+    /** Ссылки на значения из кучи. Создается при первой записи такого значения. */
+    private Heap[] refs;
 
+    /** Число элементов списка. Массивы могут быть длиннее. */
+    private int size;
+
+    /** Создает список из {@code size} значений {@code null}. */
     public ListHeap(int size) {
         if (size < 0) {
             throw new IllegalArgumentException("size must not be negative");
         }
-        data = AddressUtils.allocateMemoryNulls(size, 0);
+        types = new byte[size];
+        bits = new long[size];
+        Arrays.fill(types, T_NULL);
+        this.size = size;
     }
 
     public ListHeap(Address[] source) {
         if (source == null) {
             throw new IllegalArgumentException("source must not be null");
         }
-        data = new Address[source.length];
-        AddressUtils.arraycopy(source, 0, data, 0, source.length);
+        this.types = new byte[source.length];
+        this.bits = new long[source.length];
+        this.size = source.length;
+        for (int i = 0; i < source.length; i++) {
+            set(i, source[i]);
+        }
     }
 
     public int length() {
-        return data.length;
+        return size;
     }
 
-    public int key() {
-        return key;
+    /** Возвращает число элементов, которые поместятся в список без расширения массивов. */
+    public int capacity() {
+        return types.length;
+    }
+
+    /** Гарантирует, что в массивах есть место под {@code capacity} элементов. */
+    public void ensureCapacity(int capacity) {
+        if (types.length < capacity) {
+            int newCapacity = Math.max(capacity, Math.max(types.length * 2, MIN_CAPACITY));
+            resize(newCapacity);
+        }
+    }
+
+    /** Уменьшает емкость массивов до числа элементов. */
+    public void trimToSize() {
+        if (types.length > size) {
+            resize(size);
+        }
     }
 
-    public void setKey(int key) {
-        if (key < 0 || key > length()) {
-            throw new IndexOutOfBoundsException();
+    private void resize(int capacity) {
+        types = Arrays.copyOf(types, capacity);
+        bits = Arrays.copyOf(bits, capacity);
+        if (refs != null) {
+            refs = Arrays.copyOf(refs, capacity);
         }
-        this.key = key;
     }
 
-    public Address get(int index) {
-        return data[index];
+    /** Возвращает тип элемента. */
+    public byte getType(int index) {
+        return types[index];
     }
 
-    public Address get() {
-        return get(key());
+    /** Возвращает примитивное значение элемента в том виде, в котором оно хранится. */
+    public long getBits(int index) {
+        return bits[index];
     }
 
-    public Address add() {
-        int k = key();
-        setKey(k + 1);
-        return data[k];
+    /** Возвращает ссылку элемента, если его значение хранится в куче, иначе {@code null}. */
+    public Heap getHeap(int index) {
+        return refs == null ? null : refs[index];
     }
 
-    public void set(int index, Address value, Address oldValueReceptor) {
-        if (oldValueReceptor != null) {
-            oldValueReceptor.set(data[index]);
+    /** Записывает значение элемента в {@code receiver}. */
+    public void get(int index, Address receiver) {
+        receiver.setBits(types[index], bits[index], getHeap(index));
+    }
+
+    /** Записывает в элемент значение, разложенное на тип, примитивное значение и ссылку. */
+    public void setBits(int index, byte type, long value, Heap heap) {
+        types[index] = type;
+        bits[index] = value;
+        if (isTypeHeap(type)) {
+            if (refs == null) {
+                refs = new Heap[types.length];
+            }
+            refs[index] = heap;
+        } else if (refs != null) {
+            refs[index] = null; // В помощь GC
         }
-        data[index].set(value);
     }
 
-    public void clear() {
-        if (data.length > 0) {
-            data[0].setNull();
-            AddressUtils.fill(data, 1, data.length, data[0]);
+    public void set(int index, Address value) {
+        setBits(index, value.getType(), value.getBits(), value.getHeap());
+    }
+
+    /** Добавляет значение в конец списка. */
+    public void push(Address value) {
+        ensureCapacity(size + 1);
+        set(size++, value);
+    }
+
+    /** Удаляет последний элемент и записывает его значение в {@code receiver}. Список не должен быть пуст. */
+    public void pop(Address receiver) {
+        remove(size - 1, receiver);
+    }
+
+    /** Вставляет значение перед элементом {@code index}. Индекс {@code length()} добавляет значение в конец. */
+    public void insert(int index, Address value) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("index: " + index + ", length: " + size);
         }
+        ensureCapacity(size + 1);
+        int tail = size - index;
+        System.arraycopy(types, index, types, index + 1, tail);
+        System.arraycopy(bits, index, bits, index + 1, tail);
+        if (refs != null) {
+            System.arraycopy(refs, index, refs, index + 1, tail);
+        }
+        size++;
+        set(index, value);
+    }
+
+    /** Удаляет элемент {@code index} и записывает его значение в {@code receiver}. */
+    public void remove(int index, Address receiver) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index + ", length: " + size);
+        }
+        get(index, receiver);
+        int tail = size - index - 1;
+        System.arraycopy(types, index + 1, types, index, tail);
+        System.arraycopy(bits, index + 1, bits, index, tail);
+        size--;
+        if (refs != null) {
+            System.arraycopy(refs, index + 1, refs, index, tail);
+            refs[size] = null; // В помощь GC
+        }
+    }
+
+    /**
+     * Прибавляет {@code delta} к элементу, если он целый или вещественный.
+     * Для элементов других типов ничего не делает и возвращает {@code false}.
+     */
+    public boolean increment(int index, long delta) {
+        switch (types[index]) {
+            case T_INT:
+                bits[index] += delta;
+                return true;
+            case T_FLOAT:
+                bits[index] = Double.doubleToRawLongBits(Double.longBitsToDouble(bits[index]) + delta);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Заменяет все элементы на {@code null}. Длина списка не меняется. */
+    public void clear() {
+        Arrays.fill(types, 0, size, T_NULL);
+        refs = null;
     }
 
     public boolean contains(Address value) {
-        for (Address e : data) {
-            if (e != null) {
-                if (e.fastCompareWith(value, -1) == 0) {
-                    return true;
-                }
+        Address e = new Address();
+        for (int i = 0; i < size; i++) {
+            get(i, e);
+            if (e.fastCompareWith(value, -1) == 0) {
+                return true;
             }
         }
         return false;
     }
 
     public boolean isPresentAt(int index) {
-        return index >= 0 && index < data.length
-                && data[index] != null
-                && !data[index].isNull();
+        return index >= 0 && index < size
+                && types[index] != T_NULL;
     }
 
     public int fastCompare(ListHeap that, int unexpected) {
@@ -97,23 +220,34 @@ public final class ListHeap extends Heap implements Iterable<Address> {
     }
 
     public int compare(ListHeap another, int except) {
-        Address[] te = this.data;
-        Address[] ae = another.data;
-        int minlen = Math.min(te.length, ae.length);
+        Address te = new Address();
+        Address ae = new Address();
+        int minlen = Math.min(this.length(), another.length());
         for (int i = 0; i < minlen; i++) {
-            if (te[i] == null || ae[i] == null) continue;
-            int cmp = te[i].fastCompareWith(ae[i], except);
+            if (this.types[i] == T_INT && another.types[i] == T_INT) {
+                int cmp = Long.compare(this.bits[i], another.bits[i]);
+                if (cmp != 0) return cmp;
+                continue;
+            }
+            this.get(i, te);
+            another.get(i, ae);
+            int cmp = te.fastCompareWith(ae, except);
             if (cmp != 0) return cmp;
         }
-        return te.length - ae.length;
+        return this.length() - another.length();
     }
 
+    /** Возвращает копии элементов списка. */
     public Address[] getArray() {
-        return data.clone();
+        Address[] array = new Address[size];
+        for (int i = 0; i < array.length; i++) {
+            get(i, array[i] = new Address());
+        }
+        return array;
     }
 
     /** Возвращает {@code true}, если список пуст, в противном случае {@code false}. */
-    public boolean isEmpty() { return data.length == 0; }
+    public boolean isEmpty() { return size == 0; }
 
     /** Возвращает {@code false}, если список пуст, в противном случае {@code true}. */
     public boolean nonEmpty() { return !isEmpty(); }
@@ -125,39 +259,53 @@ public final class ListHeap extends Heap implements Iterable<Address> {
 
     @Override
     public ListHeap deepCopy() {
-        int size = data.length;
         ListHeap copy = new ListHeap(size);
-        for (int i = 0; i < size; i++) {
-            Address src = data[i];
-            if (src != null) {
-                Address dst = copy.get(i);
-                src.clone(dst);
+        System.arraycopy(types, 0, copy.types, 0, size);
+        System.arraycopy(bits, 0, copy.bits, 0, size);
+        if (refs != null) {
+            copy.refs = new Heap[size];
+            for (int i = 0; i < size; i++) {
+                if (refs[i] != null) {
+                    copy.refs[i] = refs[i].deepCopy();
+                }
             }
         }
         return copy;
     }
 
+    /** Возвращает итератор по копиям элементов списка. */
     @Override
     public Iterator<Address> iterator() {
-        return Arrays.asList(data).iterator();
+        return Arrays.asList(getArray()).iterator();
     }
 
     @Override
-    public int hashCode() { return Arrays.hashCode(data); }
+    public int hashCode() {
+        // Совпадает с Arrays.hashCode() для массива адресов с теми же значениями.
+        Address e = new Address();
+        int result = 1;
+        for (int i = 0; i < size; i++) {
+            get(i, e);
+            result = 31 * result + e.hashCode();
+        }
+        return result;
+    }
 
     @Override
     public boolean equals(Object o) {
         if (o == this) return true;
         if (o == null || getClass() != o.getClass()) return false;
         ListHeap x = (ListHeap) o;
-        return Arrays.equals(data, x.data);
+        return length() == x.length() && compare(x, Integer.MIN_VALUE) == 0;
     }
 
     @Override
     public String toString() {
         StringJoiner buffer = new StringJoiner(", ", "[", "]");
-        for (Address element : data) {
-            buffer.add(element.toString());
+        Address e = new Address();
+        for (int i = 0; i < size; i++) {
+            get(i, e);
+            buffer.add(e.toString());
         }
         return buffer.toString();
     }
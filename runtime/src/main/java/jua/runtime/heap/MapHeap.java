@@ -0,0 +1,464 @@
+package jua.runtime.heap;
+
+import jua.runtime.interpreter.Address;
+
+import java.util.StringJoiner;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static jua.runtime.Types.*;
+
+/**
+ * Ассоциативный массив с открытой адресацией.
+ * <p>
+ * Записи хранятся в параллельных массивах в порядке добавления, так же как элементы {@link ListHeap}:
+ * для ключей и значений отдельно тип, примитивное значение и ссылка. Массивы ссылок создаются при первой
+ * записи строки, списка или ассоциативного массива. Поиск идет по отдельной таблице индексов записей
+ * размером в степень двойки. Коллизии разрешаются линейным пробированием по схеме Robin Hood: запись,
+ * которая дальше от своей начальной ячейки, вытесняет более близкую. Поэтому поиск отсутствующего ключа
+ * заканчивается, как только расстояние до начальной ячейки у встреченной записи меньше текущего.
+ * При удалении следующие записи цепочки сдвигаются назад, и таблица не содержит надгробий.
+ * <p>
+ * Хеш ключа перемешивается с солью, которая выбирается случайно при запуске. Для строк берется
+ * {@link StringHeap#seededHash()}, а не полиномиальный {@link StringHeap#hashCode()}, чтобы подобранные ключи
+ * не приводили к длинным цепочкам. Ключами могут быть только неизменяемые значения, см. {@link #isKeyType(byte)}.
+ * Ключи сравниваются так же, как {@link Address#fastCompareWith(Address, int)}, поэтому целое число и равное ему
+ * вещественное считаются одним ключом. Ключ {@code NaN} не равен ни одному ключу.
+ * <p>
+ * Чтение отсутствующего ключа возвращает {@code null}.
+ */
+public final class MapHeap extends Heap {
+
+    private static final long SEED = ThreadLocalRandom.current().nextLong();
+
+    private static final int MIN_CAPACITY = 4;
+
+    /** Номера записей, увеличенные на единицу. 0 обозначает пустую ячейку. Длина вдвое больше емкости записей. */
+    private int[] index;
+
+    private int[] hashes;
+
+    /** Тип ключа. {@link jua.runtime.Types#T_UNDEFINED} обозначает удаленную запись. */
+    private byte[] keyTypes;
+    private long[] keyBits;
+    private Heap[] keyRefs;
+
+    private byte[] valueTypes;
+    private long[] valueBits;
+    private Heap[] valueRefs;
+
+    /** Число занятых записей, включая удаленные. */
+    private int used;
+
+    /** Число живых записей. */
+    private int size;
+
+    public MapHeap() {
+        this(MIN_CAPACITY);
+    }
+
+    public MapHeap(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative");
+        }
+        allocate(Math.max(Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1), MIN_CAPACITY));
+    }
+
+    private void allocate(int capacity) {
+        index = new int[capacity * 2];
+        hashes = new int[capacity];
+        keyTypes = new byte[capacity];
+        keyBits = new long[capacity];
+        valueTypes = new byte[capacity];
+        valueBits = new long[capacity];
+        keyRefs = null;
+        valueRefs = null;
+        used = 0;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Возвращает {@code true}, если массив пуст, в противном случае {@code false}. */
+    public boolean isEmpty() { return size == 0; }
+
+    /** Возвращает {@code false}, если массив пуст, в противном случае {@code true}. */
+    public boolean nonEmpty() { return !isEmpty(); }
+
+    /** Записывает значение по ключу в {@code receiver}. Если ключа нет, записывает {@code null} и возвращает {@code false}. */
+    public boolean get(Address key, Address receiver) {
+        int e = find(key.getType(), key.getBits(), key.getHeap());
+        if (e < 0) {
+            receiver.setNull();
+            return false;
+        }
+        receiver.setBits(valueTypes[e], valueBits[e], valueRefs == null ? null : valueRefs[e]);
+        return true;
+    }
+
+    public boolean containsKey(Address key) {
+        return find(key.getType(), key.getBits(), key.getHeap()) >= 0;
+    }
+
+    /** Возвращает {@code true}, если по ключу записано значение, отличное от {@code null}. */
+    public boolean isPresent(Address key) {
+        int e = find(key.getType(), key.getBits(), key.getHeap());
+        return e >= 0 && valueTypes[e] != T_NULL;
+    }
+
+    /**
+     * Возвращает {@code true}, если значение типа {@code type} может быть ключом. Списки и массивы изменяемы:
+     * ключ, измененный после записи, нельзя было бы найти по его хешу, поэтому ключами они быть не могут.
+     */
+    public static boolean isKeyType(byte type) {
+        return type >= T_NULL && type <= T_STRING;
+    }
+
+    /** Записывает значение по ключу. Тип ключа должен проходить проверку {@link #isKeyType(byte)}. */
+    public void put(Address key, Address value) {
+        byte type = key.getType();
+        if (!isKeyType(type)) {
+            throw new IllegalArgumentException("Map key must not be " + key.getTypeName());
+        }
+        long bits = key.getBits();
+        Heap ref = key.getHeap();
+        int hash = hash(type, bits, ref);
+        int e = find(type, bits, ref, hash);
+        if (e < 0) {
+            if (used == keyTypes.length) {
+                grow();
+            }
+            e = used++;
+            size++;
+            hashes[e] = hash;
+            keyTypes[e] = type;
+            keyBits[e] = bits;
+            if (isTypeHeap(type)) {
+                keyRefs()[e] = ref;
+            }
+            insertIndex(e, hash);
+        }
+        setValue(e, value.getType(), value.getBits(), value.getHeap());
+    }
+
+    /**
+     * Прибавляет {@code delta} к значению по ключу, если оно целое или вещественное.
+     * Если ключа нет или значение другого типа, ничего не делает и возвращает {@code false}.
+     */
+    public boolean increment(Address key, long delta) {
+        int e = find(key.getType(), key.getBits(), key.getHeap());
+        if (e < 0) {
+            return false;
+        }
+        switch (valueTypes[e]) {
+            case T_INT:
+                valueBits[e] += delta;
+                return true;
+            case T_FLOAT:
+                valueBits[e] = Double.doubleToRawLongBits(Double.longBitsToDouble(valueBits[e]) + delta);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Удаляет ключ и записывает его значение в {@code receiver}. Если ключа нет, записывает {@code null} и возвращает {@code false}. */
+    public boolean remove(Address key, Address receiver) {
+        byte type = key.getType();
+        long bits = key.getBits();
+        Heap ref = key.getHeap();
+        if (!isKeyType(type)) {
+            receiver.setNull();
+            return false;
+        }
+        int hash = hash(type, bits, ref);
+        int mask = index.length - 1;
+        for (int slot = hash & mask, dist = 0; ; slot = (slot + 1) & mask, dist++) {
+            int e = index[slot] - 1;
+            if (e < 0 || distance(slot, e) < dist) {
+                receiver.setNull();
+                return false;
+            }
+            if (hashes[e] == hash && keyEquals(e, type, bits, ref)) {
+                receiver.setBits(valueTypes[e], valueBits[e], valueRefs == null ? null : valueRefs[e]);
+                removeIndex(slot);
+                keyTypes[e] = T_UNDEFINED;
+                if (keyRefs != null) keyRefs[e] = null; // В помощь GC
+                if (valueRefs != null) valueRefs[e] = null;
+                size--;
+                return true;
+            }
+        }
+    }
+
+    /** Возвращает список ключей в порядке добавления. */
+    public ListHeap keys() {
+        ListHeap list = new ListHeap(size);
+        for (int e = 0, i = 0; e < used; e++) {
+            if (keyTypes[e] != T_UNDEFINED) {
+                list.setBits(i++, keyTypes[e], keyBits[e], keyRefs == null ? null : keyRefs[e]);
+            }
+        }
+        return list;
+    }
+
+    /** Возвращает список значений в порядке добавления ключей. */
+    public ListHeap values() {
+        ListHeap list = new ListHeap(size);
+        for (int e = 0, i = 0; e < used; e++) {
+            if (keyTypes[e] != T_UNDEFINED) {
+                list.setBits(i++, valueTypes[e], valueBits[e], valueRefs == null ? null : valueRefs[e]);
+            }
+        }
+        return list;
+    }
+
+    /* * * * * * * * * * * * * * * * * * * *
+     *               ПОИСК                 *
+     * * * * * * * * * * * * * * * * * * * */
+
+    private int find(byte type, long bits, Heap ref) {
+        if (size == 0 || !isKeyType(type)) {
+            return -1;
+        }
+        return find(type, bits, ref, hash(type, bits, ref));
+    }
+
+    /** Возвращает номер записи с ключом или -1, если ключа нет. */
+    private int find(byte type, long bits, Heap ref, int hash) {
+        int mask = index.length - 1;
+        for (int slot = hash & mask, dist = 0; ; slot = (slot + 1) & mask, dist++) {
+            int e = index[slot] - 1;
+            if (e < 0 || distance(slot, e) < dist) {
+                return -1;
+            }
+            if (hashes[e] == hash && keyEquals(e, type, bits, ref)) {
+                return e;
+            }
+        }
+    }
+
+    /** Возвращает расстояние от начальной ячейки записи {@code e} до ячейки {@code slot}. */
+    private int distance(int slot, int e) {
+        int mask = index.length - 1;
+        return (slot - (hashes[e] & mask)) & mask;
+    }
+
+    private void insertIndex(int e, int hash) {
+        int mask = index.length - 1;
+        int current = e + 1;
+        for (int slot = hash & mask, dist = 0; ; slot = (slot + 1) & mask, dist++) {
+            int occupant = index[slot];
+            if (occupant == 0) {
+                index[slot] = current;
+                return;
+            }
+            int occupantDist = distance(slot, occupant - 1);
+            if (occupantDist < dist) {
+                index[slot] = current;
+                current = occupant;
+                dist = occupantDist;
+            }
+        }
+    }
+
+    private void removeIndex(int slot) {
+        int mask = index.length - 1;
+        int next = (slot + 1) & mask;
+        while (index[next] != 0 && distance(next, index[next] - 1) > 0) {
+            index[slot] = index[next];
+            slot = next;
+            next = (next + 1) & mask;
+        }
+        index[slot] = 0;
+    }
+
+    /** Увеличивает емкость или, если удаленных записей много, только уплотняет записи. */
+    private void grow() {
+        int capacity = keyTypes.length;
+        int newCapacity = size > capacity / 2 ? capacity * 2 : capacity;
+        int[] oldHashes = hashes;
+        byte[] oldKeyTypes = keyTypes;
+        long[] oldKeyBits = keyBits;
+        Heap[] oldKeyRefs = keyRefs;
+        byte[] oldValueTypes = valueTypes;
+        long[] oldValueBits = valueBits;
+        Heap[] oldValueRefs = valueRefs;
+        int oldUsed = used;
+        allocate(newCapacity);
+        for (int e = 0; e < oldUsed; e++) {
+            byte type = oldKeyTypes[e];
+            if (type == T_UNDEFINED) continue;
+            int n = used++;
+            hashes[n] = oldHashes[e];
+            keyTypes[n] = type;
+            keyBits[n] = oldKeyBits[e];
+            if (oldKeyRefs != null && oldKeyRefs[e] != null) {
+                keyRefs()[n] = oldKeyRefs[e];
+            }
+            setValue(n, oldValueTypes[e], oldValueBits[e], oldValueRefs == null ? null : oldValueRefs[e]);
+            insertIndex(n, hashes[n]);
+        }
+        size = used;
+    }
+
+    private void setValue(int e, byte type, long bits, Heap ref) {
+        valueTypes[e] = type;
+        valueBits[e] = bits;
+        if (isTypeHeap(type)) {
+            if (valueRefs == null) {
+                valueRefs = new Heap[valueTypes.length];
+            }
+            valueRefs[e] = ref;
+        } else if (valueRefs != null) {
+            valueRefs[e] = null; // В помощь GC
+        }
+    }
+
+    private Heap[] keyRefs() {
+        if (keyRefs == null) {
+            keyRefs = new Heap[keyTypes.length];
+        }
+        return keyRefs;
+    }
+
+    /* * * * * * * * * * * * * * * * * * * *
+     *        ХЕШИРОВАНИЕ И СРАВНЕНИЕ      *
+     * * * * * * * * * * * * * * * * * * * */
+
+    private static int hash(byte type, long bits, Heap ref) {
+        switch (type) {
+            case T_NULL:
+                return mix(0L);
+            case T_INT:
+            case T_BOOLEAN:
+                return mix(bits);
+            case T_FLOAT: {
+                // Целое вещественное число хешируется как равное ему целое.
+                double d = Double.longBitsToDouble(bits);
+                long l = (long) d;
+                return mix(d == l ? l : bits);
+            }
+            case T_STRING:
+                return mix(((StringHeap) ref).seededHash());
+            default:
+                throw new AssertionError(type);
+        }
+    }
+
+    /** Перемешивает биты значения с солью. Финализатор MurmurHash3. */
+    private static int mix(long v) {
+        v ^= SEED;
+        v = (v ^ (v >>> 33)) * 0xff51afd7ed558ccdL;
+        v = (v ^ (v >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (v ^ (v >>> 33));
+    }
+
+    private boolean keyEquals(int e, byte type, long bits, Heap ref) {
+        byte t = keyTypes[e];
+        long b = keyBits[e];
+        if (t == type) {
+            switch (type) {
+                case T_NULL:
+                    return true;
+                case T_INT:
+                case T_BOOLEAN:
+                    return b == bits;
+                case T_FLOAT: {
+                    double d = Double.longBitsToDouble(bits);
+                    return !Double.isNaN(d) && Double.compare(Double.longBitsToDouble(b), d) == 0;
+                }
+                case T_STRING:
+                    return ((StringHeap) keyRefs[e]).compareTo((StringHeap) ref) == 0;
+                default:
+                    return false;
+            }
+        }
+        if (t == T_INT && type == T_FLOAT) {
+            return Double.compare(b, Double.longBitsToDouble(bits)) == 0;
+        }
+        if (t == T_FLOAT && type == T_INT) {
+            return Double.compare(Double.longBitsToDouble(b), bits) == 0;
+        }
+        return false;
+    }
+
+    /**
+     * Сравнивает массивы на равенство. Возвращает 0, если массивы содержат одинаковые ключи с равными значениями,
+     * иначе разность размеров или {@code unexpected}, если размеры равны. Порядок добавления не учитывается.
+     */
+    public int fastCompare(MapHeap that, int unexpected) {
+        if (this == that) return 0;
+        if (size != that.size) return size - that.size;
+        Address key = new Address();
+        Address value = new Address();
+        Address other = new Address();
+        for (int e = 0; e < used; e++) {
+            if (keyTypes[e] == T_UNDEFINED) continue;
+            key.setBits(keyTypes[e], keyBits[e], keyRefs == null ? null : keyRefs[e]);
+            if (!that.get(key, other)) return unexpected;
+            value.setBits(valueTypes[e], valueBits[e], valueRefs == null ? null : valueRefs[e]);
+            if (value.fastCompareWith(other, unexpected) != 0) return unexpected;
+        }
+        return 0;
+    }
+
+    @Override
+    public MapHeap refCopy() {
+        return this;
+    }
+
+    @Override
+    public MapHeap deepCopy() {
+        MapHeap copy = new MapHeap(size);
+        Address key = new Address();
+        Address value = new Address();
+        Address tmp = new Address();
+        for (int e = 0; e < used; e++) {
+            if (keyTypes[e] == T_UNDEFINED) continue;
+            tmp.setBits(keyTypes[e], keyBits[e], keyRefs == null ? null : keyRefs[e]);
+            tmp.clone(key);
+            tmp.setBits(valueTypes[e], valueBits[e], valueRefs == null ? null : valueRefs[e]);
+            tmp.clone(value);
+            copy.put(key, value);
+        }
+        return copy;
+    }
+
+    @Override
+    public int hashCode() {
+        // Не зависит от порядка добавления, как и сравнение.
+        Address e = new Address();
+        int result = 0;
+        for (int i = 0; i < used; i++) {
+            if (keyTypes[i] == T_UNDEFINED) continue;
+            e.setBits(keyTypes[i], keyBits[i], keyRefs == null ? null : keyRefs[i]);
+            int h = e.hashCode();
+            e.setBits(valueTypes[i], valueBits[i], valueRefs == null ? null : valueRefs[i]);
+            result += h ^ e.hashCode();
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return fastCompare((MapHeap) o, Integer.MIN_VALUE) == 0;
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner buffer = new StringJoiner(", ", "{", "}");
+        Address key = new Address();
+        Address value = new Address();
+        for (int e = 0; e < used; e++) {
+            if (keyTypes[e] == T_UNDEFINED) continue;
+            key.setBits(keyTypes[e], keyBits[e], keyRefs == null ? null : keyRefs[e]);
+            value.setBits(valueTypes[e], valueBits[e], valueRefs == null ? null : valueRefs[e]);
+            buffer.add(key + ": " + value);
+        }
+        return buffer.toString();
+    }
+}
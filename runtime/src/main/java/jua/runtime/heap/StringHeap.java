@@ -1,52 +1,195 @@
 package jua.runtime.heap;
 
+import java.nio.CharBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.IntStream;
 
+/**
+ * Неизменяемая строка Jua.
+ * <p>
+ * Строка имеет одно из двух представлений:
+ * <ul>
+ *     <li>плоское — участок {@link #value} с {@link #offset} длиной {@link #count};</li>
+ *     <li>дерево конкатенации {@link #rope}, листья которого ссылаются на участки буферов других строк.</li>
+ * </ul>
+ * {@link #concat(StringHeap)} и подстроки длиной от {@link #SHARE_MIN_LENGTH} символов не копируют символы,
+ * поэтому сборка строки из многих фрагментов выполняется за линейное время. Дерево заменяется плоским буфером
+ * при первом обращении, которому нужны символы подряд: {@link #charAt(int)}, {@link #hashCode()},
+ * сравнение и вывод.
+ * <p>
+ * Символы строки не меняются после создания, поэтому буферы свободно разделяются между строками,
+ * а {@link #deepCopy()} возвращает ту же строку. Константы, переменные и элементы списков ссылаются на
+ * один объект, а изменение строки в Jua всегда создает новую строку.
+ * <p>
+ * Строку можно читать из нескольких потоков без синхронизации. Замена дерева плоским буфером публикуется
+ * записью в volatile-поле {@link #rope}, а при гонке два потока строят одинаковые буферы.
+ */
 public final class StringHeap extends Heap implements CharSequence, Comparable<StringHeap> {
 
-    private final StringBuilder data;
+    private static final char[] EMPTY = new char[0];
+
+    private static final StringHeap NULL = new StringHeap("null");
+    private static final StringHeap TRUE = new StringHeap("true");
+    private static final StringHeap FALSE = new StringHeap("false");
+
+    /** Соль {@link #seededHash()}. Выбирается случайно при запуске. */
+    private static final long SEED = ThreadLocalRandom.current().nextLong();
+
+    /** Строки до этой длины склеиваются и вырезаются копированием: узел дерева или ссылка на буфер дороже. */
+    private static final int SHARE_MIN_LENGTH = 32;
+
+    /** Возвращает строковое представление {@code null}. */
+    public static StringHeap valueOfNull() {
+        return NULL;
+    }
+
+    public static StringHeap valueOf(long value) {
+        return new StringHeap(Long.toString(value));
+    }
+
+    public static StringHeap valueOf(double value) {
+        return new StringHeap(Double.toString(value));
+    }
+
+    public static StringHeap valueOf(boolean value) {
+        return value ? TRUE : FALSE;
+    }
+
+    private char[] value;
+
+    private int offset;
+
+    private final int count;
+
+    /** Дерево конкатенации. Пока оно есть, {@link #value} и {@link #offset} не используются. */
+    private volatile Rope rope;
 
     private volatile boolean hcCalculated;
     private volatile int hcValue;
 
+    private volatile boolean shCalculated;
+    private volatile long shValue;
+
     public StringHeap() {
-        data = new StringBuilder(0);
+        value = EMPTY;
+        count = 0;
         hcCalculated = true;
         hcValue = 0;
     }
 
     public StringHeap(CharSequence csq) {
-        if (csq instanceof StringHeap) {
-            StringHeap h = (StringHeap) csq;
-            data = new StringBuilder(h.data);
-            hcCalculated = h.hcCalculated;
-            hcValue = h.hcValue;
-        } else {
-            data = new StringBuilder(csq);
-            hcCalculated = false;
-            hcValue = 0;
-        }
+        value = csq.toString().toCharArray();
+        count = value.length;
+        hcCalculated = false;
+        hcValue = 0;
+    }
+
+    /** Создает строку из символов {@code chars}. Массив не копируется и не должен изменяться после вызова. */
+    private StringHeap(char[] chars) {
+        value = chars;
+        count = chars.length;
+        hcCalculated = false;
+        hcValue = 0;
     }
 
     public StringHeap(CharSequence csq, int start, int end) {
+        if (start < 0 || end > csq.length() || start > end) {
+            throw new StringIndexOutOfBoundsException("start " + start + ", end " + end + ", length " + csq.length());
+        }
+        int n = end - start;
         if (csq instanceof StringHeap) {
             StringHeap h = (StringHeap) csq;
-            data = new StringBuilder().append(h.data, start, end);
+            h.flatten();
+            if (n >= SHARE_MIN_LENGTH) {
+                value = h.value;
+                offset = h.offset + start;
+            } else {
+                value = Arrays.copyOfRange(h.value, h.offset + start, h.offset + end);
+            }
         } else {
-            data = new StringBuilder().append(csq, start, end);
+            value = new char[n];
+            for (int i = 0; i < n; i++) {
+                value[i] = csq.charAt(start + i);
+            }
         }
+        count = n;
+        hcCalculated = false;
+        hcValue = 0;
+    }
+
+    private StringHeap(Rope rope) {
+        this.rope = rope;
+        this.count = rope.length;
         hcCalculated = false;
         hcValue = 0;
     }
 
+    /**
+     * Возвращает строку из символов этой строки, за которыми следуют символы {@code other}.
+     * Длинные строки склеиваются узлом дерева без копирования символов.
+     */
+    public StringHeap concat(StringHeap other) {
+        if (other.count == 0) return this;
+        if (count == 0) return other;
+        int length = count + other.count;
+        if (length < 0) {
+            throw new OutOfMemoryError("string length overflow");
+        }
+        if (length >= SHARE_MIN_LENGTH) {
+            return new StringHeap(new Rope(toRope(), other.toRope()));
+        }
+        flatten();
+        other.flatten();
+        char[] chars = Arrays.copyOfRange(value, offset, offset + length);
+        System.arraycopy(other.value, other.offset, chars, count, other.count);
+        return new StringHeap(chars);
+    }
+
+    private Rope toRope() {
+        Rope r = rope;
+        return r != null ? r : new Rope(value, offset, count);
+    }
+
+    /** Заменяет дерево конкатенации плоским буфером. */
+    private void flatten() {
+        Rope r = rope;
+        if (r == null) {
+            return;
+        }
+        char[] dst = new char[count];
+        int pos = 0;
+        // Дерево, построенное склейкой в цикле, вырождено в список, поэтому обход выполняется без рекурсии.
+        ArrayDeque<Rope> pending = new ArrayDeque<>();
+        pending.push(r);
+        while (!pending.isEmpty()) {
+            Rope node = pending.pop();
+            if (node.value != null) {
+                System.arraycopy(node.value, node.offset, dst, pos, node.length);
+                pos += node.length;
+            } else {
+                pending.push(node.right);
+                pending.push(node.left);
+            }
+        }
+        value = dst;
+        offset = 0;
+        rope = null;
+    }
+
     @Override
     public int length() {
-        return data.length();
+        return count;
     }
 
     @Override
     public char charAt(int index) {
-        return data.charAt(index);
+        if (index < 0 || index >= count) {
+            throw new StringIndexOutOfBoundsException("index " + index + ", length " + count);
+        }
+        flatten();
+        return value[offset + index];
     }
 
     @Override
@@ -63,75 +206,29 @@ public final class StringHeap extends Heap implements CharSequence, Comparable<S
     }
 
     public int codePointAt(int index) {
-        return data.codePointAt(index);
+        if (index < 0 || index >= count) {
+            throw new StringIndexOutOfBoundsException("index " + index + ", length " + count);
+        }
+        flatten();
+        return Character.codePointAt(value, offset + index, offset + count);
     }
 
     public int codePointBefore(int index) {
-        return data.codePointBefore(index);
+        if (index < 1 || index > count) {
+            throw new StringIndexOutOfBoundsException("index " + index + ", length " + count);
+        }
+        flatten();
+        return Character.codePointBefore(value, offset + index, offset);
     }
 
     public IntStream codePoints() {
-        return data.codePoints();
+        flatten();
+        return CharBuffer.wrap(value, offset, count).codePoints();
     }
 
     public IntStream chars() {
-        return data.chars();
-    }
-
-    public void setLength(int newLength) {
-        resetCaches();
-        data.setLength(newLength);
-    }
-
-    public StringHeap append(long value) {
-        resetCaches();
-        data.append(value);
-        return this;
-    }
-
-    public StringHeap append(double value) {
-        resetCaches();
-        data.append(value);
-        return this;
-    }
-
-    public StringHeap append(boolean value) {
-        resetCaches();
-        data.append(value);
-        return this;
-    }
-
-    public StringHeap append(CharSequence value) {
-        resetCaches();
-        if (value instanceof StringHeap) {
-            StringHeap h = (StringHeap) value;
-            data.append(h.data);
-        } else {
-            data.append(value);
-        }
-        return this;
-    }
-
-    public StringHeap append(char ch) {
-        resetCaches();
-        data.append(ch);
-        return this;
-    }
-
-    public StringHeap appendCodePoint(int codePoint) {
-        resetCaches();
-        data.appendCodePoint(codePoint);
-        return this;
-    }
-
-    public StringHeap appendNull() {
-        resetCaches();
-        data.append((CharSequence) null);
-        return this;
-    }
-
-    public void resetCaches() {
-        hcCalculated = false;
+        flatten();
+        return CharBuffer.wrap(value, offset, count).chars();
     }
 
     @Override
@@ -139,9 +236,10 @@ public final class StringHeap extends Heap implements CharSequence, Comparable<S
         return this;
     }
 
+    /** Возвращает эту же строку: строки неизменяемы. */
     @Override
     public StringHeap deepCopy() {
-        return new StringHeap(this);
+        return this;
     }
 
     @Override
@@ -149,9 +247,14 @@ public final class StringHeap extends Heap implements CharSequence, Comparable<S
         int len1 = length();
         int len2 = o.length();
         if (len1 != len2) return len1 - len2;
-        for (int i = 0; i < len1; i++) {
-            char c1 = charAt(i);
-            char c2 = o.charAt(i);
+        if (this == o) return 0;
+        flatten();
+        o.flatten();
+        char[] v1 = value;
+        char[] v2 = o.value;
+        for (int i = 0, j1 = offset, j2 = o.offset; i < len1; i++) {
+            char c1 = v1[j1 + i];
+            char c2 = v2[j2 + i];
             if (c1 != c2) return c1 - c2;
         }
         return 0;
@@ -160,9 +263,10 @@ public final class StringHeap extends Heap implements CharSequence, Comparable<S
     @Override
     public int hashCode() {
         if (!hcCalculated) {
+            flatten();
             int hc = 0;
-            for (int i = 0; i < data.length(); i++) {
-                hc = hc * 17 + Character.hashCode(data.charAt(i));
+            for (int i = offset, end = offset + count; i < end; i++) {
+                hc = hc * 17 + Character.hashCode(value[i]);
             }
             hcValue = hc;
             hcCalculated = true;
@@ -170,6 +274,24 @@ public final class StringHeap extends Heap implements CharSequence, Comparable<S
         return hcValue;
     }
 
+    /**
+     * Возвращает хеш строки с солью, которая выбирается случайно при запуске (FNV-1a по символам).
+     * В отличие от {@link #hashCode()}, по нему нельзя заранее подобрать строки с одинаковым хешем.
+     * Используется {@link MapHeap}. Значение вычисляется один раз: строка неизменяема.
+     */
+    public long seededHash() {
+        if (!shCalculated) {
+            flatten();
+            long h = SEED;
+            for (int i = offset, end = offset + count; i < end; i++) {
+                h = (h ^ value[i]) * 0x100000001b3L;
+            }
+            shValue = h;
+            shCalculated = true;
+        }
+        return shValue;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (!(o instanceof StringHeap)) {
@@ -181,6 +303,32 @@ public final class StringHeap extends Heap implements CharSequence, Comparable<S
 
     @Override
     public String toString() {
-        return data.toString();
+        flatten();
+        return new String(value, offset, count);
+    }
+
+    /** Узел дерева конкатенации: лист с участком буфера или пара поддеревьев. */
+    private static final class Rope {
+        final int length;
+        final char[] value;
+        final int offset;
+        final Rope left;
+        final Rope right;
+
+        Rope(char[] value, int offset, int length) {
+            this.length = length;
+            this.value = value;
+            this.offset = offset;
+            this.left = null;
+            this.right = null;
+        }
+
+        Rope(Rope left, Rope right) {
+            this.length = left.length + right.length;
+            this.value = null;
+            this.offset = 0;
+            this.left = left;
+            this.right = right;
+        }
     }
 }
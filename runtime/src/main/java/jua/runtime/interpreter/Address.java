@@ -4,19 +4,32 @@ import jua.runtime.Operations;
 import jua.runtime.Types;
 import jua.runtime.heap.Heap;
 import jua.runtime.heap.ListHeap;
+import jua.runtime.heap.MapHeap;
 import jua.runtime.heap.StringHeap;
 
 import static jua.runtime.Operations.toResultCode;
 import static jua.runtime.interpreter.InterpreterThread.threadError;
 import static jua.runtime.Types.*;
 
+/**
+ * Ячейка значения Jua: регистр или элемент стека операндов.
+ * <p>
+ * Методы операций разбирают на месте только частые сочетания типов: целые с целыми и вещественные с вещественными.
+ * Остальные сочетания, преобразования и сообщения об ошибках вынесены в методы *Slow и *Error, чтобы горячие
+ * методы оставались короче порога встраивания JIT-компилятора JVM.
+ */
 public final class Address implements Comparable<Address> {
 
     /** Тип текущего значения. */
     private byte type;
 
-    private long l;
-    private double d;
+    /**
+     * Значение скалярного типа. Целые и логические значения хранятся как есть, вещественные — битами {@code double}.
+     * Поля для каждого вида значения не заводятся, потому что в каждый момент живо только одно из них,
+     * а адресов в списках бывают миллионы.
+     */
+    private long bits;
+
     private Heap a;
 
     /** Возвращает тип текущего значения. */
@@ -32,9 +45,9 @@ public final class Address implements Comparable<Address> {
      *               ГЕТТЕРЫ               *
      * * * * * * * * * * * * * * * * * * * */
 
-    public long getLong() { return l; }
+    public long getLong() { return bits; }
 
-    public double getDouble() { return d; }
+    public double getDouble() { return Double.longBitsToDouble(bits); }
 
     public boolean getBoolean() {
         return l2b(getLong());
@@ -42,10 +55,18 @@ public final class Address implements Comparable<Address> {
 
     public Heap getHeap() { return a; }
 
+    /**
+     * Возвращает значение скалярного типа в том виде, в котором оно хранится.
+     * Используется {@link ListHeap}.
+     */
+    public long getBits() { return bits; }
+
     public StringHeap getStringHeap() { return (StringHeap) getHeap(); }
 
     public ListHeap getListHeap() { return (ListHeap) getHeap(); }
 
+    public MapHeap getMapHeap() { return (MapHeap) getHeap(); }
+
     /* * * * * * * * * * * * * * * * * * * *
      *           ПРЕОБРАЗОВАНИЯ            *
      * * * * * * * * * * * * * * * * * * * */
@@ -111,6 +132,8 @@ public final class Address implements Comparable<Address> {
                 return s2b(getStringHeap());
             case T_LIST:
                 return e2b(getListHeap());
+            case T_MAP:
+                return e2b(getMapHeap());
             default:
                 // Любой валидный тип можно преобразовать в логический
                 throw new AssertionError(getTypeName());
@@ -119,10 +142,10 @@ public final class Address implements Comparable<Address> {
 
     public StringHeap stringVal() {
         switch (type) {
-            case T_NULL:    return new StringHeap().appendNull();
-            case T_INT:    return new StringHeap().append(getLong());
-            case T_FLOAT:  return new StringHeap().append(getDouble());
-            case T_BOOLEAN: return new StringHeap().append(getBoolean());
+            case T_NULL:    return StringHeap.valueOfNull();
+            case T_INT:    return StringHeap.valueOf(getLong());
+            case T_FLOAT:  return StringHeap.valueOf(getDouble());
+            case T_BOOLEAN: return StringHeap.valueOf(getBoolean());
             case T_STRING:  return getStringHeap();
             default: throw new IllegalArgumentException("Unable to convert " + getTypeName() + " to string");
         }
@@ -131,16 +154,16 @@ public final class Address implements Comparable<Address> {
     public boolean stringVal(Address dst) {
         switch (type) {
             case T_NULL:
-                dst.set(new StringHeap().appendNull());
+                dst.set(StringHeap.valueOfNull());
                 return true;
             case T_INT:
-                dst.set(new StringHeap().append(getLong()));
+                dst.set(StringHeap.valueOf(getLong()));
                 return true;
             case T_FLOAT:
-                dst.set(new StringHeap().append(getDouble()));
+                dst.set(StringHeap.valueOf(getDouble()));
                 return true;
             case T_BOOLEAN:
-                dst.set(new StringHeap().append(getBoolean()));
+                dst.set(StringHeap.valueOf(getBoolean()));
                 return true;
             case T_STRING:
                 dst.set(getStringHeap());
@@ -177,17 +200,17 @@ public final class Address implements Comparable<Address> {
 
     public void set(long _l) {
         type = T_INT;
-        l = _l;
+        bits = _l;
     }
 
     public void set(boolean b) {
         type = T_BOOLEAN;
-        l = b2l(b);
+        bits = b2l(b);
     }
 
     public void set(double _d) {
         type = T_FLOAT;
-        d = _d;
+        bits = Double.doubleToRawLongBits(_d);
     }
 
     public void set(StringHeap s) {
@@ -200,37 +223,36 @@ public final class Address implements Comparable<Address> {
         a = l;
     }
 
+    public void set(MapHeap m) {
+        type = T_MAP;
+        a = m;
+    }
+
+    /**
+     * Записывает значение, разложенное на тип, биты скалярного значения и ссылку.
+     * Используется {@link ListHeap}.
+     */
+    public void setBits(byte type, long bits, Heap heap) {
+        this.type = type;
+        this.bits = bits;
+        this.a = heap;
+    }
+
     @Deprecated
     public void quickSet(Address source) {
         type = source.type;
-        l = source.getLong();
-        d = source.getDouble();
+        bits = source.bits;
         a = source.getHeap();
     }
 
+    /**
+     * Копирует значение {@code source}. Кучи неизменяемы или разделяются по ссылке
+     * ({@link Heap#refCopy()} возвращает тот же объект), поэтому поля копируются без разбора типа.
+     */
     public void set(Address source) {
-        switch (source.type) {
-            case T_NULL:
-                setNull();
-                break;
-            case T_INT:
-                set(source.getLong());
-                break;
-            case T_FLOAT:
-                set(source.getDouble());
-                break;
-            case T_BOOLEAN:
-                set(source.getBoolean());
-                break;
-            case T_STRING:
-                set(source.getStringHeap().refCopy());
-                break;
-            case T_LIST:
-                set(source.getListHeap().refCopy());
-                break;
-            default:
-                throw new AssertionError(source.type);
-        }
+        type = source.type;
+        bits = source.bits;
+        a = source.a;
     }
 
     public void clone(Address receiver) {
@@ -250,6 +272,9 @@ public final class Address implements Comparable<Address> {
             case T_LIST:
                 receiver.set(getListHeap().deepCopy());
                 break;
+            case T_MAP:
+                receiver.set(getMapHeap().deepCopy());
+                break;
             case T_NULL:
                 receiver.setNull();
                 break;
@@ -276,13 +301,22 @@ public final class Address implements Comparable<Address> {
      * * * * * * * * * * * * * * * * * * * */
 
     public boolean add(Address rhs, Address result) {
-        int union = getTypeUnion(type, rhs.type);
-
-        if (getTypeUnion(T_INT, T_INT) == union) {
+        if (type == T_INT && rhs.type == T_INT) {
             result.set(getLong() + rhs.getLong());
             return true;
         }
 
+        if (type == T_FLOAT && rhs.type == T_FLOAT) {
+            result.set(getDouble() + rhs.getDouble());
+            return true;
+        }
+
+        return addSlow(rhs, result);
+    }
+
+    private boolean addSlow(Address rhs, Address result) {
+        int union = getTypeUnion(type, rhs.type);
+
         if (getTypeUnion(T_INT, T_FLOAT) == union) {
             result.set(getLong() + rhs.getDouble());
             return true;
@@ -293,17 +327,9 @@ public final class Address implements Comparable<Address> {
             return true;
         }
 
-        if (getTypeUnion(T_FLOAT, T_FLOAT) == union) {
-            result.set(getDouble() + rhs.getDouble());
-            return true;
-        }
-
         if (getTypeUnion(T_STRING, T_STRING) == union) {
-            if (this == result) {
-                getStringHeap().append(rhs.getStringHeap());
-            } else {
-                result.set(new StringHeap().append(getStringHeap()).append(getStringHeap()));
-            }
+            // Строка слева может быть разделена с переменной, поэтому дописывать в нее нельзя.
+            result.set(getStringHeap().concat(rhs.getStringHeap()));
             return true;
         }
 
@@ -312,7 +338,7 @@ public final class Address implements Comparable<Address> {
             if (!rhs.stringVal(tmp)) {
                 return false;
             }
-            result.set(new StringHeap().append(getStringHeap()).append(tmp.getStringHeap()));
+            result.set(getStringHeap().concat(tmp.getStringHeap()));
             return true;
         }
 
@@ -321,7 +347,7 @@ public final class Address implements Comparable<Address> {
             if (!stringVal(tmp)) {
                 return false;
             }
-            result.set(new StringHeap().append(tmp.getStringHeap()).append(rhs.getStringHeap()));
+            result.set(tmp.getStringHeap().concat(rhs.getStringHeap()));
             return true;
         }
 
@@ -329,13 +355,22 @@ public final class Address implements Comparable<Address> {
     }
 
     public boolean sub(Address rhs, Address result) {
-        int union = getTypeUnion(type, rhs.type);
-
-        if (getTypeUnion(T_INT, T_INT) == union) {
+        if (type == T_INT && rhs.type == T_INT) {
             result.set(getLong() - rhs.getLong());
             return true;
         }
 
+        if (type == T_FLOAT && rhs.type == T_FLOAT) {
+            result.set(getDouble() - rhs.getDouble());
+            return true;
+        }
+
+        return subSlow(rhs, result);
+    }
+
+    private boolean subSlow(Address rhs, Address result) {
+        int union = getTypeUnion(type, rhs.type);
+
         if (getTypeUnion(T_INT, T_FLOAT) == union) {
             result.set((double) getLong() - rhs.getDouble());
             return true;
@@ -346,22 +381,26 @@ public final class Address implements Comparable<Address> {
             return true;
         }
 
-        if (getTypeUnion(T_FLOAT, T_FLOAT) == union) {
-            result.set(getDouble() - rhs.getDouble());
-            return true;
-        }
-
         return binaryOperatorError("-", rhs);
     }
 
     public boolean mul(Address rhs, Address result) {
-        int union = getTypeUnion(type, rhs.type);
-
-        if (getTypeUnion(T_INT, T_INT) == union) {
+        if (type == T_INT && rhs.type == T_INT) {
             result.set(getLong() * rhs.getLong());
             return true;
         }
 
+        if (type == T_FLOAT && rhs.type == T_FLOAT) {
+            result.set(getDouble() * rhs.getDouble());
+            return true;
+        }
+
+        return mulSlow(rhs, result);
+    }
+
+    private boolean mulSlow(Address rhs, Address result) {
+        int union = getTypeUnion(type, rhs.type);
+
         if (getTypeUnion(T_INT, T_FLOAT) == union) {
             result.set((double) getLong() * rhs.getDouble());
             return true;
@@ -372,24 +411,29 @@ public final class Address implements Comparable<Address> {
             return true;
         }
 
-        if (getTypeUnion(T_FLOAT, T_FLOAT) == union) {
-            result.set(getDouble() * rhs.getDouble());
+        return binaryOperatorError("*", rhs);
+    }
+
+    public boolean div(Address rhs, Address result) {
+        if (type == T_INT && rhs.type == T_INT && rhs.getLong() != 0L) {
+            result.set(getLong() / rhs.getLong());
             return true;
         }
 
-        return binaryOperatorError("*", rhs);
+        if (type == T_FLOAT && rhs.type == T_FLOAT) {
+            result.set(getDouble() / rhs.getDouble());
+            return true;
+        }
+
+        return divSlow(rhs, result);
     }
 
-    public boolean div(Address rhs, Address result) {
+    private boolean divSlow(Address rhs, Address result) {
         int union = getTypeUnion(type, rhs.type);
 
         if (getTypeUnion(T_INT, T_INT) == union) {
-            if (rhs.getLong() == 0L) {
-                threadError("integer division by zero");
-                return false;
-            }
-            result.set(getLong() / rhs.getLong());
-            return true;
+            threadError("integer division by zero");
+            return false;
         }
 
         if (getTypeUnion(T_INT, T_FLOAT) == union) {
@@ -402,24 +446,24 @@ public final class Address implements Comparable<Address> {
             return true;
         }
 
-        if (getTypeUnion(T_FLOAT, T_FLOAT) == union) {
-            result.set(getDouble() / rhs.getDouble());
+        return binaryOperatorError("/", rhs);
+    }
+
+    public boolean rem(Address rhs, Address result) {
+        if (type == T_INT && rhs.type == T_INT && rhs.getLong() != 0L) {
+            result.set(getLong() % rhs.getLong());
             return true;
         }
 
-        return binaryOperatorError("/", rhs);
+        return remSlow(rhs, result);
     }
 
-    public boolean rem(Address rhs, Address result) {
+    private boolean remSlow(Address rhs, Address result) {
         int union = getTypeUnion(type, rhs.type);
 
         if (getTypeUnion(T_INT, T_INT) == union) {
-            if (rhs.getLong() == 0L) {
-                threadError("modulo by zero");
-                return false;
-            }
-            result.set(getLong() % rhs.getLong());
-            return true;
+            threadError("modulo by zero");
+            return false;
         }
 
         if (getTypeUnion(T_INT, T_FLOAT) == union) {
@@ -569,12 +613,12 @@ public final class Address implements Comparable<Address> {
 
     public boolean inc() {
         if (type == T_INT) {
-            l++;
+            bits++;
             return true;
         }
 
         if (type == T_FLOAT) {
-            d++;
+            set(getDouble() + 1);
             return true;
         }
 
@@ -583,12 +627,12 @@ public final class Address implements Comparable<Address> {
 
     public boolean dec() {
         if (type == T_INT) {
-            l--;
+            bits--;
             return true;
         }
 
         if (type == T_FLOAT) {
-            d--;
+            set(getDouble() - 1);
             return true;
         }
 
@@ -599,28 +643,54 @@ public final class Address implements Comparable<Address> {
         if (type == T_LIST) {
             int index = validateIndex(key, true);
             if (index >= 0) {
-                Address element = getListHeap().get(index);
-                oldValueReceptor.set(element);
+                ListHeap list = getListHeap();
+                list.get(index, oldValueReceptor);
+                if (list.increment(index, 1)) {
+                    return true;
+                }
+                // Остальные типы не поддерживают инкремент, и копия элемента нужна только для сообщения об ошибке.
+                Address element = new Address();
+                list.get(index, element);
                 return element.inc();
             }
             return false;
         }
-        threadError("trying to increment array-element of %s", getTypeName());
-        return false;
+        if (type == T_MAP) {
+            return mapIncrement(key, oldValueReceptor, 1);
+        }
+        return typeError("trying to increment array-element of %s");
     }
 
     public boolean arrayDec(Address key, Address oldValueReceptor) {
         if (type == T_LIST) {
             int index = validateIndex(key, true);
             if (index >= 0) {
-                Address element = getListHeap().get(index);
-                oldValueReceptor.set(element);
+                ListHeap list = getListHeap();
+                list.get(index, oldValueReceptor);
+                if (list.increment(index, -1)) {
+                    return true;
+                }
+                Address element = new Address();
+                list.get(index, element);
                 return element.dec();
             }
             return false;
         }
-        threadError("trying to decrement array-element of %s", getTypeName());
-        return false;
+        if (type == T_MAP) {
+            return mapIncrement(key, oldValueReceptor, -1);
+        }
+        return typeError("trying to decrement array-element of %s");
+    }
+
+    private boolean mapIncrement(Address key, Address oldValueReceptor, long delta) {
+        MapHeap map = getMapHeap();
+        map.get(key, oldValueReceptor);
+        if (map.increment(key, delta)) {
+            return true;
+        }
+        Address element = new Address();
+        map.get(key, element);
+        return delta > 0 ? element.inc() : element.dec();
     }
 
     private boolean unaryOperatorError(String operator) {
@@ -633,26 +703,35 @@ public final class Address implements Comparable<Address> {
         if (type == T_LIST) {
             int index = validateIndex(key, true);
             if (index >= 0) {
-                getListHeap().set(index, value, null);
+                getListHeap().set(index, value);
                 return true;
             }
             return false;
         }
-        threadError("trying to store array-element to %s", getTypeName());
-        return false;
+        if (type == T_MAP) {
+            if (!MapHeap.isKeyType(key.type)) {
+                return key.typeError("Cannot use %s as map key");
+            }
+            getMapHeap().put(key, value);
+            return true;
+        }
+        return typeError("trying to store array-element to %s");
     }
 
     public boolean load(Address key, Address receptor) {
         if (type == T_LIST) {
             int index = validateIndex(key, true);
             if (index >= 0) {
-                receptor.set(getListHeap().get(index));
+                getListHeap().get(index, receptor);
                 return true;
             }
             return false;
         }
-        threadError("trying to load array-element from %s", getTypeName());
-        return false;
+        if (type == T_MAP) {
+            getMapHeap().get(key, receptor);
+            return true;
+        }
+        return typeError("trying to load array-element from %s");
     }
 
     public int contains(Address key) {
@@ -663,7 +742,10 @@ public final class Address implements Comparable<Address> {
             }
             return Operations.RESULT_FAILURE;
         }
-        threadError("trying to check array-element from %s", getTypeName());
+        if (type == T_MAP) {
+            return toResultCode(getMapHeap().isPresent(key));
+        }
+        typeError("trying to check array-element from %s");
         return Operations.RESULT_FAILURE;
     }
 
@@ -674,13 +756,25 @@ public final class Address implements Comparable<Address> {
                     longIndex >= 0 && longIndex < getListHeap().length()) {
                 return (int) longIndex;
             }
-            threadError("index %d out of the list bounds %d", longIndex, getListHeap().length());
+        }
+        return indexError(indexAddress);
+    }
+
+    private int indexError(Address indexAddress) {
+        if (indexAddress.getType() == T_INT) {
+            threadError("index %d out of the list bounds %d", indexAddress.getLong(), getListHeap().length());
         } else {
             threadError("trying to access a list with non-integer key");
         }
         return -1;
     }
 
+    /** Сообщает об операции, неприменимой к типу значения. Формат содержит одно место для имени типа. */
+    private boolean typeError(String format) {
+        threadError(format, getTypeName());
+        return false;
+    }
+
     public boolean length(Address receptor) {
         if (type == T_STRING) {
             receptor.set(getStringHeap().length());
@@ -692,8 +786,12 @@ public final class Address implements Comparable<Address> {
             return true;
         }
 
-        threadError("trying to calculate the length of %s", getTypeName());
-        return false;
+        if (type == T_MAP) {
+            receptor.set(getMapHeap().size());
+            return true;
+        }
+
+        return typeError("trying to calculate the length of %s");
     }
 
     @Deprecated
@@ -718,29 +816,35 @@ public final class Address implements Comparable<Address> {
         if (typeUnion == getTypeUnion(T_INT, T_INT) || typeUnion == getTypeUnion(T_BOOLEAN, T_BOOLEAN))
             return Long.compare(getLong(), o.getLong());
 
+        if (typeUnion == getTypeUnion(T_FLOAT, T_FLOAT))
+            return Double.compare(getDouble(), o.getDouble());
+
+        return compareToSlow(o);
+    }
+
+    private int compareToSlow(Address o) {
+        int typeUnion = getTypeUnion(type, o.type);
+
         if (typeUnion == getTypeUnion(T_INT, T_FLOAT) || typeUnion == getTypeUnion(T_BOOLEAN, T_FLOAT))
             return Double.compare(getLong(), o.getDouble());
 
         if (typeUnion == getTypeUnion(T_INT, T_STRING))
-            return new StringHeap().append(getLong()).compareTo(o.getStringHeap());
+            return StringHeap.valueOf(getLong()).compareTo(o.getStringHeap());
 
         if (typeUnion == getTypeUnion(T_FLOAT, T_INT) || typeUnion == getTypeUnion(T_FLOAT, T_BOOLEAN))
             return Double.compare(getDouble(), o.getLong());
 
-        if (typeUnion == getTypeUnion(T_FLOAT, T_FLOAT))
-            return Double.compare(getDouble(), o.getDouble());
-
         if (typeUnion == getTypeUnion(T_FLOAT, T_STRING))
-            return new StringHeap().append(getDouble()).compareTo(o.getStringHeap());
+            return StringHeap.valueOf(getDouble()).compareTo(o.getStringHeap());
 
         if (typeUnion == getTypeUnion(T_STRING, T_INT))
-            return getStringHeap().compareTo(new StringHeap().append(getLong()));
+            return getStringHeap().compareTo(StringHeap.valueOf(getLong()));
 
         if (typeUnion == getTypeUnion(T_STRING, T_FLOAT))
-            return getStringHeap().compareTo(new StringHeap().append(getBoolean()));
+            return getStringHeap().compareTo(StringHeap.valueOf(getBoolean()));
 
         if (typeUnion == getTypeUnion(T_STRING, T_BOOLEAN))
-            return getStringHeap().compareTo(new StringHeap().append(getBoolean()));
+            return getStringHeap().compareTo(StringHeap.valueOf(getBoolean()));
 
         if (typeUnion == getTypeUnion(T_STRING, T_STRING))
             return getStringHeap().compareTo(o.getStringHeap());
@@ -749,12 +853,16 @@ public final class Address implements Comparable<Address> {
     }
 
     public int fastCompareWith(Address a, int unexpected) {
-        int union = getTypeUnion(type, a.type);
-
-        if (getTypeUnion(T_INT, T_INT) == union) {
+        if (type == T_INT && a.type == T_INT) {
             return Long.compare(getLong(), a.getLong());
         }
 
+        return fastCompareSlow(a, unexpected);
+    }
+
+    private int fastCompareSlow(Address a, int unexpected) {
+        int union = getTypeUnion(type, a.type);
+
         if (getTypeUnion(T_INT, T_FLOAT) == union) {
             return Double.compare(getLong(), a.getDouble());
         }
@@ -778,6 +886,10 @@ public final class Address implements Comparable<Address> {
             return getListHeap().fastCompare(a.getListHeap(), unexpected);
         }
 
+        if (getTypeUnion(T_MAP, T_MAP) == union) {
+            return getMapHeap().fastCompare(a.getMapHeap(), unexpected);
+        }
+
         if (getTypeUnion(T_NULL, T_NULL) == union) {
             return 0;
         }
@@ -798,6 +910,7 @@ public final class Address implements Comparable<Address> {
             case T_BOOLEAN:   c = 'Z'; break;
             case T_STRING:    c = 'S'; break;
             case T_LIST:      c = 'L'; break;
+            case T_MAP:       c = 'M'; break;
             default: throw new AssertionError(type);
         }
         int h = hashCode();
@@ -814,6 +927,7 @@ public final class Address implements Comparable<Address> {
             case T_BOOLEAN: return hashOfBoolean(getBoolean());
             case T_STRING:  return hashOfString(getStringHeap());
             case T_LIST:    return hashOfList(getListHeap());
+            case T_MAP:     return hashOfMap(getMapHeap());
             default: throw new AssertionError(type);
         }
     }
@@ -844,6 +958,7 @@ public final class Address implements Comparable<Address> {
             case T_BOOLEAN:   return Boolean.toString(getBoolean());
             case T_STRING:    return '"' + getStringHeap().toString() + '"';
             case T_LIST:      return  getListHeap().toString();
+            case T_MAP:       return  getMapHeap().toString();
             case T_UNDEFINED: // fallthrough
             default: throw new AssertionError(type);
         }
@@ -874,6 +989,7 @@ public final class Address implements Comparable<Address> {
             case T_BOOLEAN:   return "B" + getBoolean();
             case T_STRING:    return "S" + getStringHeap();
             case T_LIST:      return "E" + getListHeap();
+            case T_MAP:       return "M" + getMapHeap();
             default: throw new AssertionError(type);
         }
     }
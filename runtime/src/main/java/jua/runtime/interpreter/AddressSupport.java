@@ -1,6 +1,7 @@
 package jua.runtime.interpreter;
 
 import jua.runtime.heap.ListHeap;
+import jua.runtime.heap.MapHeap;
 import jua.runtime.heap.StringHeap;
 
 import static jua.runtime.Types.*;
@@ -27,20 +28,25 @@ public class AddressSupport {
         } else if (o instanceof Byte) {
             address.set((byte) o);
         } else if (o instanceof CharSequence) {
+            // Строки неизменяемы, поэтому константа разделяется всеми, кто ее загружает.
             StringHeap sh
                     = (o instanceof StringHeap)
-                    ? ((StringHeap) o).deepCopy()
+                    ? (StringHeap) o
                     : new StringHeap(o.toString());
             address.set(sh);
         } else if (o instanceof ListHeap) {
             address.set((ListHeap) o);
+        } else if (o instanceof MapHeap) {
+            address.set((MapHeap) o);
         } else if (o instanceof Address) {
             address.set((Address) o);
         } else if (o instanceof Object[]) {
             Object[] javaArray = (Object[]) o;
             ListHeap array = new ListHeap(javaArray.length);
+            Address element = new Address();
             for (int i = 0; i < javaArray.length; i++) {
-                assignObject(array.get(i), javaArray[i]);
+                assignObject(element, javaArray[i]);
+                array.set(i, element);
             }
             address.set(array);
         } else {
@@ -60,6 +66,8 @@ public class AddressSupport {
                 return a.getStringHeap();
             case T_LIST:
                 return a.getListHeap();
+            case T_MAP:
+                return a.getMapHeap();
             case T_NULL:
                 return null;
             default:
@@ -5,30 +5,42 @@ import jua.runtime.JuaEnvironment;
 import jua.runtime.Types;
 import jua.runtime.code.CodeData;
 import jua.runtime.code.ConstantPool;
+import jua.runtime.code.PackedCode;
 import jua.runtime.code.ResolvableCallee;
+import jua.runtime.heap.Heap;
 import jua.runtime.heap.ListHeap;
+import jua.runtime.heap.MapHeap;
 import jua.runtime.interpreter.instruction.Instruction;
+import jua.runtime.jit.CompiledCode;
+import jua.runtime.jit.JitCompiler;
+import jua.runtime.tree.TreeCode;
 
 import static jua.runtime.Operations.isResultFalse;
 import static jua.runtime.Operations.isResultTrue;
+import static jua.runtime.Types.*;
 
 public final class ExecutionContext {
 
+    private final InterpreterThread thread;
+
     private final ThreadStack stack;
 
     private final ThreadMemory memory;
 
     private ConstantPool constantPool;
 
-    private int nextCP;
+    /** Объектный код функции, которую выполняет скомпилированный код. Нужен для {@link #executeInstruction(int)}. */
+    private Instruction[] instructions;
+
+    /** Считать ли обратные переходы для JIT-компилятора. Компилятор включается до создания потоков. */
+    private final boolean jit = JitCompiler.isEnabled();
 
     private int msg = 0;
     private Function msgCallee;
     private int msgArgc = 0;
 
-    private final Address tmp = new Address();
-
-    public ExecutionContext(ThreadStack stack, ThreadMemory memory) {
+    public ExecutionContext(InterpreterThread thread, ThreadStack stack, ThreadMemory memory) {
+        this.thread = thread;
         this.stack = stack;
         this.memory = memory;
     }
@@ -45,48 +57,672 @@ public final class ExecutionContext {
         this.msg = msg;
     }
 
+    /**
+     * Выполняет код начиная с указанного фрейма.
+     * <p>
+     * Вызовы пользовательских функций и возвраты из них обрабатываются здесь же, без возврата в цикл потока:
+     * фрейм создается или удаляется на месте, и выполнение продолжается в коде новой функции.
+     * В цикл потока передаются только вызовы нативных функций, возврат из самого внешнего фрейма и ошибки.
+     */
     public int execute(InterpreterFrame frame) {
-        msg = 0;
-        msgCallee = null;
-        msgArgc = 0;
+        while (true) {
+            msg = 0;
+            msgCallee = null;
+            msgArgc = 0;
+
+            CodeData code = frame.getFunction().getCode();
+            constantPool = code.getConstantPool();
+
+            memory.setCurrentFrame(frame);
+            CompiledCode compiled = frame.getFunction().getCompiledCode();
+            TreeCode tree = frame.getFunction().getTreeCode();
+            if (tree != null) {
+                executeTree(frame, tree);
+            } else if (compiled != null) {
+                executeCompiled(frame, code, compiled);
+            } else if (code.isPacked()) {
+                executePacked(frame, code);
+            } else {
+                executeInstructions(frame, code);
+            }
+
+            if (msg == 0) {
+                // Выполнение переходит в скомпилированный код посреди цикла или возвращается из него в интерпретатор.
+                continue;
+            }
+            if (msg == InterpreterThread.MSG_CALLING_FRAME && msgCallee.isUserDefined()) {
+                InterpreterFrame callee = thread.enterUserFrame(msgCallee, msgArgc);
+                if (callee != null) {
+                    frame = callee;
+                    continue;
+                }
+                // Превышена глубина вызовов, msg уже равно MSG_CRASHED.
+            }
+            if (msg == InterpreterThread.MSG_TAIL_CALLING_FRAME) {
+                frame = thread.reenterUserFrame(msgCallee, msgArgc);
+                continue;
+            }
+            if (msg == InterpreterThread.MSG_POPPING_FRAME && isUserFrame(frame.getCaller())) {
+                frame = thread.leaveUserFrame();
+                continue;
+            }
 
-        JuaEnvironment env = JuaEnvironment.getEnvironment();
+            constantPool = null;
+            instructions = null;
+            return msg;
+        }
+    }
 
-        CodeData code = env.getFunctionById(frame.getFunctionId()).getCode();
-        constantPool = code.getConstantPool();
-        Instruction[] instructions = code.getCode();
+    /**
+     * Выполняет функцию деревом. Вложенные вызовы дерево выполняет само,
+     * поэтому сюда управление возвращается только после возврата из функции или при ошибке.
+     */
+    private void executeTree(InterpreterFrame frame, TreeCode tree) {
+        if (tree.execute(thread, frame, memory, stack.pushGet())) {
+            msg = InterpreterThread.MSG_POPPING_FRAME;
+        }
+        // Иначе msg уже равно MSG_CRASHED.
+    }
+
+    private static boolean isUserFrame(InterpreterFrame frame) {
+        return frame != null && frame.getFunction().isUserDefined();
+    }
 
-        memory.setCurrentFrame(frame);
+    private void executeInstructions(InterpreterFrame frame, CodeData code) {
+        Instruction[] instructions = code.getCode();
         int cp = frame.getCP();
         while (true) {
-            nextCP = cp + 1;
 //            Histogram.get().start(instructions[cp].opcode());
-            instructions[cp].execute(this);
+            cp = instructions[cp].execute(this, cp);
 //            Histogram.get().end(instructions[cp].opcode());
-            cp = nextCP;
             if (msg != 0) {
-                if (msg != InterpreterThread.MSG_CRASHED) {
-                    frame.setCP(cp);
+                // cp хранится только в локальной переменной и попадает во фрейм при вызове, возврате или ошибке.
+                // Даже при ошибке cp указывает за выполненную инструкцию, как и при вызове функции:
+                // номер строки определяется по cp - 1. Суперинструкции перескакивают до упавшей инструкции.
+                frame.setCP(cp);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Выполняет {@link CodeData#getPackedCode() упакованный код} в едином цикле с диспетчеризацией через switch.
+     * <p>
+     * Указатели cp и tos хранятся в локальных переменных и записываются во фрейм и стек только при выходе из цикла.
+     * Сообщение потоку проверяется только после инструкций, которые могут его выставить: вызовов и инструкций
+     * без собственной ветки. Операции над значениями сообщают об ошибке результатом {@code false}.
+     * Редкие инструкции, не имеющие собственной ветки, выполняются через объектное представление:
+     * чем меньше тело цикла, тем больше горячих путей JIT-компилятор сможет встроить.
+     * <p>
+     * Значение ячейки {@code tos - 1} хранится в локальных переменных {@code tt}, {@code tb} и {@code tr},
+     * а сама ячейка может быть устаревшей. Бинарная операция читает из стека только левый операнд и оставляет
+     * результат в локальных переменных, а инструкция, кладущая значение на стек, сначала записывает прежнюю вершину
+     * в ее ячейку. Перед вызовами, инструкциями без собственной ветки и при выходе из цикла вершина записывается
+     * в стек, а после них читается из него заново. Регистры в локальных переменных не кэшируются.
+     * <p>
+     * Под стеком операндов упакованного кода лежит запасной регистр, поэтому ячейка {@code tos - 1} есть всегда,
+     * даже при пустом стеке операндов. Вершина выгружается и читается без проверки глубины стека: в цикле
+     * из одного большого метода каждая такая проверка, ни разу не сработавшая до компиляции, при первом срабатывании
+     * заставляет JIT-компилятор JVM выбросить и заново скомпилировать весь метод.
+     */
+    private void executePacked(InterpreterFrame frame, CodeData code) {
+        final int[] packed = code.getPackedCode();
+        final Instruction[] instructions = code.getCode();
+        final ConstantPool constantPool = this.constantPool;
+        // Стек зарезервирован при входе во фрейм, поэтому внутри цикла он не расширяется.
+        final Address[] stk = stack.array();
+        final Address[] regs = memory.array();
+        final int rb = frame.getRegBase();
+        final Function fn = frame.getFunction();
+        // JIT-компилятор не доверяет финальным полям экземпляра, поэтому флаг читается в локальную переменную.
+        final boolean jit = this.jit;
+        int tos = stack.tos();
+        int cp = frame.getCP();
+        int next;
+
+        Address top = stk[tos - 1];
+        byte tt = top.getType();
+        long tb = top.getBits();
+        Heap tr = top.getHeap();
+
+        dispatch:
+        while (true) {
+            int word = packed[cp];
+            next = cp + 1;
+            switch (word & PackedCode.OPCODE_MASK) {
+                case OPCodes.Nop:
+                    break;
+                case OPCodes.ConstNull:
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    tos++;
+                    tt = T_NULL;
+                    break;
+                case OPCodes.ConstTrue:
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    tos++;
+                    tt = T_BOOLEAN;
+                    tb = b2l(true);
+                    break;
+                case OPCodes.ConstFalse:
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    tos++;
+                    tt = T_BOOLEAN;
+                    tb = b2l(false);
+                    break;
+                case OPCodes.ConstIntM1:
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    tos++;
+                    tt = T_INT;
+                    tb = -1L;
+                    break;
+                case OPCodes.ConstInt0:
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    tos++;
+                    tt = T_INT;
+                    tb = 0L;
+                    break;
+                case OPCodes.ConstInt1:
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    tos++;
+                    tt = T_INT;
+                    tb = 1L;
+                    break;
+                case OPCodes.ConstInt2:
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    tos++;
+                    tt = T_INT;
+                    tb = 2L;
+                    break;
+                case OPCodes.Push:
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    tos++;
+                    top = constantPool.get(word >>> PackedCode.OPCODE_BITS);
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    break;
+                case OPCodes.Dup:
+                    stk[tos++ - 1].setBits(tt, tb, tr);
+                    break;
+                case OPCodes.DupX2:
+                    // C B A -> A C B A, A остается на вершине.
+                    stk[tos - 1].set(stk[tos - 2]);
+                    stk[tos - 2].set(stk[tos - 3]);
+                    stk[tos - 3].setBits(tt, tb, tr);
+                    tos++;
+                    break;
+                case OPCodes.Dup2:
+                    // B A -> B A B A
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    stk[tos].set(stk[tos - 2]);
+                    tos += 2;
+                    break;
+                case OPCodes.Pop:
+                    top = stk[--tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    break;
+                case OPCodes.Pop2:
+                    tos -= 2;
+                    top = stk[tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    break;
+                case OPCodes.Add: {
+                    top = stk[--tos - 1];
+                    if (top.getType() == T_INT && tt == T_INT) {
+                        tb = top.getBits() + tb;
+                        break;
+                    }
+                    boolean ok = binary(OPCodes.Add, top, stk[tos], tt, tb, tr);
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (!ok) break dispatch;
+                    break;
+                }
+                case OPCodes.Sub: {
+                    top = stk[--tos - 1];
+                    if (top.getType() == T_INT && tt == T_INT) {
+                        tb = top.getBits() - tb;
+                        break;
+                    }
+                    boolean ok = binary(OPCodes.Sub, top, stk[tos], tt, tb, tr);
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (!ok) break dispatch;
+                    break;
+                }
+                case OPCodes.Mul: {
+                    top = stk[--tos - 1];
+                    if (top.getType() == T_INT && tt == T_INT) {
+                        tb = top.getBits() * tb;
+                        break;
+                    }
+                    boolean ok = binary(OPCodes.Mul, top, stk[tos], tt, tb, tr);
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (!ok) break dispatch;
+                    break;
+                }
+                case OPCodes.Rem: {
+                    top = stk[--tos - 1];
+                    if (top.getType() == T_INT && tt == T_INT && tb != 0L) {
+                        tb = top.getBits() % tb;
+                        break;
+                    }
+                    boolean ok = binary(OPCodes.Rem, top, stk[tos], tt, tb, tr);
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (!ok) break dispatch;
+                    break;
+                }
+                case OPCodes.Div:
+                case OPCodes.Shl:
+                case OPCodes.Shr: {
+                    top = stk[--tos - 1];
+                    boolean ok = binary(word & PackedCode.OPCODE_MASK, top, stk[tos], tt, tb, tr);
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (!ok) break dispatch;
+                    break;
+                }
+                case OPCodes.Length:
+                case OPCodes.Neg:
+                case OPCodes.Not: {
+                    top = stk[tos - 1];
+                    top.setBits(tt, tb, tr);
+                    boolean ok = unary(word & PackedCode.OPCODE_MASK, top);
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (!ok) break dispatch;
+                    break;
+                }
+                case OPCodes.Load:
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    tos++;
+                    top = regs[rb + (word >>> PackedCode.OPCODE_BITS)];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    break;
+                case OPCodes.Load0:
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    tos++;
+                    top = regs[rb];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    break;
+                case OPCodes.Load1:
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    tos++;
+                    top = regs[rb + 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    break;
+                case OPCodes.Load2:
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    tos++;
+                    top = regs[rb + 2];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    break;
+                case OPCodes.Store:
+                    regs[rb + (word >>> PackedCode.OPCODE_BITS)].setBits(tt, tb, tr);
+                    top = stk[--tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    break;
+                case OPCodes.Store0:
+                    regs[rb].setBits(tt, tb, tr);
+                    top = stk[--tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    break;
+                case OPCodes.Store1:
+                    regs[rb + 1].setBits(tt, tb, tr);
+                    top = stk[--tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    break;
+                case OPCodes.Store2:
+                    regs[rb + 2].setBits(tt, tb, tr);
+                    top = stk[--tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    break;
+                case OPCodes.Inc:
+                    if (!regs[rb + (word >>> PackedCode.OPCODE_BITS)].inc()) break dispatch;
+                    break;
+                case OPCodes.Dec:
+                    if (!regs[rb + (word >>> PackedCode.OPCODE_BITS)].dec()) break dispatch;
+                    break;
+                case OPCodes.ArrayLoad: {
+                    top = stk[--tos - 1];
+                    if (top.getType() == T_LIST && tt == T_INT) {
+                        // Элемент по индексу в пределах списка читается из его массивов прямо в вершину.
+                        ListHeap list = top.getListHeap();
+                        if (tb >= 0L && tb < list.length()) {
+                            int index = (int) tb;
+                            tt = list.getType(index);
+                            tb = list.getBits(index);
+                            tr = list.getHeap(index);
+                            break;
+                        }
+                    }
+                    stk[tos].setBits(tt, tb, tr);
+                    boolean ok = top.load(stk[tos], top);
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (!ok) break dispatch;
+                    break;
+                }
+                case OPCodes.ArrayStore: {
+                    Address container = stk[tos - 3];
+                    Address key = stk[tos - 2];
+                    boolean ok;
+                    if (container.getType() == T_LIST && key.getType() == T_INT
+                            && key.getBits() >= 0L && key.getBits() < container.getListHeap().length()) {
+                        // Значение с вершины пишется прямо в массивы списка.
+                        container.getListHeap().setBits((int) key.getBits(), tt, tb, tr);
+                        ok = true;
+                    } else {
+                        stk[tos - 1].setBits(tt, tb, tr);
+                        ok = container.store(key, stk[tos - 1]);
+                    }
+                    tos -= 3;
+                    top = stk[tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (!ok) break dispatch;
+                    break;
+                }
+                case OPCodes.Goto:
+                    next = word >>> PackedCode.OPCODE_BITS;
+                    break;
+                case OPCodes.IfEq: {
+                    int c = compare(stk[tos - 2], stk[tos - 1], tt, tb, tr, 1);
+                    tos -= 2;
+                    top = stk[tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (c == 0) {
+                        next = word >>> PackedCode.OPCODE_BITS;
+                    }
+                    break;
+                }
+                case OPCodes.IfNe: {
+                    int c = compare(stk[tos - 2], stk[tos - 1], tt, tb, tr, 1);
+                    tos -= 2;
+                    top = stk[tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (c != 0) {
+                        next = word >>> PackedCode.OPCODE_BITS;
+                    }
+                    break;
+                }
+                case OPCodes.IfGt: {
+                    int c = compare(stk[tos - 2], stk[tos - 1], tt, tb, tr, -1);
+                    tos -= 2;
+                    top = stk[tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (c > 0) {
+                        next = word >>> PackedCode.OPCODE_BITS;
+                    }
+                    break;
+                }
+                case OPCodes.IfGe: {
+                    int c = compare(stk[tos - 2], stk[tos - 1], tt, tb, tr, -1);
+                    tos -= 2;
+                    top = stk[tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (c >= 0) {
+                        next = word >>> PackedCode.OPCODE_BITS;
+                    }
+                    break;
+                }
+                case OPCodes.IfLt: {
+                    int c = compare(stk[tos - 2], stk[tos - 1], tt, tb, tr, 1);
+                    tos -= 2;
+                    top = stk[tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (c < 0) {
+                        next = word >>> PackedCode.OPCODE_BITS;
+                    }
+                    break;
+                }
+                case OPCodes.IfLe: {
+                    int c = compare(stk[tos - 2], stk[tos - 1], tt, tb, tr, 1);
+                    tos -= 2;
+                    top = stk[tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (c <= 0) {
+                        next = word >>> PackedCode.OPCODE_BITS;
+                    }
+                    break;
+                }
+                case OPCodes.IfZ:
+                case OPCodes.IfNz: {
+                    boolean value;
+                    if (tt == T_INT || tt == T_BOOLEAN) {
+                        value = l2b(tb);
+                    } else {
+                        stk[tos - 1].setBits(tt, tb, tr);
+                        value = stk[tos - 1].booleanVal();
+                    }
+                    top = stk[--tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (value == ((word & PackedCode.OPCODE_MASK) == OPCodes.IfNz)) {
+                        next = word >>> PackedCode.OPCODE_BITS;
+                    }
+                    break;
+                }
+                case OPCodes.IfNull:
+                case OPCodes.IfNonNull: {
+                    boolean isNull = tt == T_NULL;
+                    top = stk[--tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (isNull == ((word & PackedCode.OPCODE_MASK) == OPCodes.IfNull)) {
+                        next = word >>> PackedCode.OPCODE_BITS;
+                    }
+                    break;
+                }
+                case PackedCode.LOAD_LOAD:
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    stk[tos].set(regs[rb + PackedCode.fusedRegister(word)]);
+                    tos += 2;
+                    top = regs[rb + PackedCode.fusedRegister(packed[cp + 1])];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    next = cp + 2;
+                    break;
+                case PackedCode.LOAD_LOAD_ARRAY_LOAD: {
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    top = stk[tos++];
+                    boolean ok = regs[rb + PackedCode.fusedRegister(word)]
+                            .load(regs[rb + PackedCode.fusedRegister(packed[cp + 1])], top);
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    next = cp + 3;
+                    if (!ok) break dispatch;
+                    break;
                 }
+                case PackedCode.LOAD_IF: {
+                    Address rhs = regs[rb + PackedCode.fusedRegister(word)];
+                    int c;
+                    if (tt == T_INT && rhs.getType() == T_INT) {
+                        c = Long.compare(tb, rhs.getBits());
+                    } else {
+                        top = stk[tos - 1];
+                        top.setBits(tt, tb, tr);
+                        c = top.fastCompareWith(rhs, PackedCode.fusedUnexpected(word));
+                    }
+                    top = stk[--tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    next = PackedCode.isBranchTaken(word, c) ? PackedCode.operand(packed[cp + 1]) : cp + 2;
+                    break;
+                }
+                case PackedCode.LOAD_LOAD_IF: {
+                    int c = regs[rb + PackedCode.fusedRegister(word)].fastCompareWith(
+                            regs[rb + PackedCode.fusedRegister(packed[cp + 1])], PackedCode.fusedUnexpected(word));
+                    next = PackedCode.isBranchTaken(word, c) ? PackedCode.operand(packed[cp + 2]) : cp + 3;
+                    break;
+                }
+                case PackedCode.LOAD_CONST_IF: {
+                    int c = regs[rb + PackedCode.fusedRegister(word)].fastCompareWith(
+                            constantPool.get(PackedCode.operand(packed[cp + 1])), PackedCode.fusedUnexpected(word));
+                    next = PackedCode.isBranchTaken(word, c) ? PackedCode.operand(packed[cp + 2]) : cp + 3;
+                    break;
+                }
+                case OPCodes.Call:
+                case OPCodes.TailCall:
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    stack.tos(tos);
+                    if ((word & PackedCode.OPCODE_MASK) == OPCodes.Call) {
+                        doCall(PackedCode.calleeId(word), PackedCode.callArgc(word), next);
+                    } else {
+                        doTailCall(PackedCode.calleeId(word), PackedCode.callArgc(word), next);
+                    }
+                    tos = stack.tos();
+                    top = stk[tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (msg != 0) break dispatch;
+                    break;
+                case OPCodes.Return:
+                    msg = InterpreterThread.MSG_POPPING_FRAME;
+                    break dispatch;
+                case OPCodes.Leave:
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    tos++;
+                    tt = T_NULL;
+                    msg = InterpreterThread.MSG_POPPING_FRAME;
+                    break dispatch;
+                default:
+                    stk[tos - 1].setBits(tt, tb, tr);
+                    stack.tos(tos);
+                    next = instructions[cp].execute(this, cp);
+                    tos = stack.tos();
+                    top = stk[tos - 1];
+                    tt = top.getType();
+                    tb = top.getBits();
+                    tr = top.getHeap();
+                    if (msg != 0) break dispatch;
+            }
+            if (jit && next <= cp && fn.countBackedge() >= JitCompiler.BACKEDGE_THRESHOLD && JitCompiler.onBackedge(fn)) {
+                // Цикл скомпилирован: продолжаем его выполнение в скомпилированном коде.
                 break;
             }
-            frame.setCP(cp);
+            cp = next;
         }
+        // Как и в объектном цикле, при ошибке cp указывает за упавшую инструкцию.
+        stk[tos - 1].setBits(tt, tb, tr);
+        stack.tos(tos);
+        frame.setCP(next);
+    }
 
-        constantPool = null;
-        return msg;
+    /**
+     * Сравнивает {@code lhs} со значением вершины стека. Если операнды не целые,
+     * вершина записывается в {@code slot} и сравнивается через {@link Address#fastCompareWith}.
+     */
+    private static int compare(Address lhs, Address slot, byte tt, long tb, Heap tr, int unexpected) {
+        if (lhs.getType() == T_INT && tt == T_INT) {
+            return Long.compare(lhs.getBits(), tb);
+        }
+        slot.setBits(tt, tb, tr);
+        return lhs.fastCompareWith(slot, unexpected);
     }
 
-    public ConstantPool getConstantPool() {
-        return constantPool;
+    /**
+     * Записывает в {@code rhs} значение вершины стека и выполняет бинарную операцию над {@code lhs} и {@code rhs},
+     * оставляя результат в {@code lhs}.
+     */
+    private static boolean binary(int opcode, Address lhs, Address rhs, byte tt, long tb, Heap tr) {
+        rhs.setBits(tt, tb, tr);
+        switch (opcode) {
+            case OPCodes.Add: return lhs.add(rhs, lhs);
+            case OPCodes.Sub: return lhs.sub(rhs, lhs);
+            case OPCodes.Mul: return lhs.mul(rhs, lhs);
+            case OPCodes.Div: return lhs.div(rhs, lhs);
+            case OPCodes.Rem: return lhs.rem(rhs, lhs);
+            case OPCodes.Shl: return lhs.shl(rhs, lhs);
+            case OPCodes.Shr: return lhs.shr(rhs, lhs);
+            default: throw new AssertionError(opcode);
+        }
+    }
+
+    /** Выполняет унарную операцию над {@code value} на месте. */
+    private static boolean unary(int opcode, Address value) {
+        switch (opcode) {
+            case OPCodes.Length: return value.length(value);
+            case OPCodes.Neg: return value.neg(value);
+            case OPCodes.Not: return value.not(value);
+            default: throw new AssertionError(opcode);
+        }
     }
 
-    public int getNextCp() {
-        return nextCP;
+    /**
+     * Выполняет код, скомпилированный JIT-компилятором. Если в скомпилированном коде не подтвердилось
+     * предположение о типах, код выбрасывается, а выполнение продолжается в интерпретаторе с той же инструкции.
+     */
+    private void executeCompiled(InterpreterFrame frame, CodeData code, CompiledCode compiled) {
+        this.instructions = code.getCode();
+        int cp = compiled.run(this, constantPool, stack, stack.array(), memory.array(),
+                frame.getRegBase(), stack.tos(), frame.getCP());
+        if (cp < 0) {
+            frame.setCP(~cp);
+            JitCompiler.deoptimize(frame.getFunction(), compiled);
+        } else {
+            frame.setCP(cp);
+        }
     }
 
-    public void setNextCp(int nextCp) {
-        this.nextCP = nextCp;
+    /**
+     * Выполняет одну инструкцию объектного кода и возвращает индекс следующей.
+     * Используется скомпилированным кодом для редких инструкций.
+     */
+    public int executeInstruction(int cp) {
+        return instructions[cp].execute(this, cp);
+    }
+
+    public ConstantPool getConstantPool() {
+        return constantPool;
     }
 
     public int getMsg() {
@@ -298,147 +934,128 @@ public final class ExecutionContext {
 
     public void doNewList() {
         Address value = getStack().getStackAddressBack(1);
+        newList(value, value);
+    }
+
+    private static void newList(Address size, Address result) {
         long a;
-        if (!value.hasType(Types.T_INT) ||
-                (a = value.getLong()) < 0 ||
+        if (!size.hasType(Types.T_INT) ||
+                (a = size.getLong()) < 0 ||
                 Integer.MAX_VALUE < a) {
             InterpreterThread.currentThread().error("List size must be an unsigned 32-bit integer");
             return;
         }
-        value.set(new ListHeap((int) a));
+        result.set(new ListHeap((int) a));
     }
 
-    public void doJumpIfEq(int nextCp) {
+    public void doNewMap() {
+        getStack().pushGet().set(new MapHeap());
+    }
+
+    public boolean doJumpIfEq() {
         Address lhs = getStack().getStackAddressBack(2);
         Address rhs = getStack().getStackAddressBack(1);
         getStack().subTos(2);
-        if (lhs.fastCompareWith(rhs, 1) == 0) {
-            setNextCp(nextCp);
-        }
+        return lhs.fastCompareWith(rhs, 1) == 0;
     }
 
-    public void doJumpIfntEq(int thenCp) {
+    public boolean doJumpIfntEq() {
         Address rhs = getStack().popGet();
         Address lhs = getStack().popGet();
-        if (lhs.fastCompareWith(rhs, 1) != 0)
-            setNextCp(thenCp);
+        return lhs.fastCompareWith(rhs, 1) != 0;
     }
 
-    public void doJumpIfGt(int nextCp) {
+    public boolean doJumpIfGt() {
         Address lhs = getStack().getStackAddressBack(2);
         Address rhs = getStack().getStackAddressBack(1);
         getStack().subTos(2);
-        if (lhs.fastCompareWith(rhs, -1) > 0) {
-            setNextCp(nextCp);
-        }
+        return lhs.fastCompareWith(rhs, -1) > 0;
     }
 
-    public void doJumpIfGe(int nextCp) {
+    public boolean doJumpIfGe() {
         Address lhs = getStack().getStackAddressBack(2);
         Address rhs = getStack().getStackAddressBack(1);
         getStack().subTos(2);
-        if (lhs.fastCompareWith(rhs, -1) >= 0) {
-            setNextCp(nextCp);
-        }
+        return lhs.fastCompareWith(rhs, -1) >= 0;
     }
 
-    public void doJumpIfLt(int nextCp) {
+    public boolean doJumpIfLt() {
         Address lhs = getStack().getStackAddressBack(2);
         Address rhs = getStack().getStackAddressBack(1);
         getStack().subTos(2);
-        if (lhs.fastCompareWith(rhs, 1) < 0) {
-            setNextCp(nextCp);
-        }
+        return lhs.fastCompareWith(rhs, 1) < 0;
     }
 
-    public void doJumpIfLe(int nextCp) {
+    public boolean doJumpIfLe() {
         Address lhs = getStack().getStackAddressBack(2);
         Address rhs = getStack().getStackAddressBack(1);
         getStack().subTos(2);
-        if (lhs.fastCompareWith(rhs, 1) <= 0) {
-            setNextCp(nextCp);
-        }
+        return lhs.fastCompareWith(rhs, 1) <= 0;
     }
 
-    public void doJumpIfNull(int nextCp) {
+    public boolean doJumpIfNull() {
         Address value = getStack().getStackAddressBack(1);
         getStack().subTos(1);
-        if (value.isNull()) {
-            setNextCp(nextCp);
-        }
+        return value.isNull();
     }
 
-    public void doJumpIfNonZero(int nextCp) {
+    public boolean doJumpIfNonZero() {
         Address value = getStack().getStackAddressBack(1);
         getStack().subTos(1);
-        if (value.booleanVal()) {
-            setNextCp(nextCp);
-        }
+        return value.booleanVal();
     }
 
-    public void doJumpIfZero(int nextCp) {
+    public boolean doJumpIfZero() {
         Address value = getStack().getStackAddressBack(1);
         getStack().subTos(1);
-        if (!value.booleanVal()) {
-            setNextCp(nextCp);
-        }
+        return !value.booleanVal();
     }
 
-    public void doJumpIfntNull(int nextCp) {
+    public boolean doJumpIfntNull() {
         Address value = getStack().getStackAddressBack(1);
         getStack().subTos(1);
-        if (!value.isNull()) {
-            setNextCp(nextCp);
-        }
+        return !value.isNull();
     }
 
-    public void doJumpIfPresent(int nextCp) {
+    public boolean doJumpIfPresent() {
         Address key = getStack().popGet();
         Address arr = getStack().popGet();
         int responseCode = arr.contains(key);
-        if (isResultTrue(responseCode)) {
-            setNextCp(nextCp);
-        }
+        return isResultTrue(responseCode);
     }
 
-    public void doJumpIfAbsent(int nextCp) {
+    public boolean doJumpIfAbsent() {
         Address key = getStack().popGet();
         Address arr = getStack().popGet();
         int responseCode = arr.contains(key);
-        if (isResultFalse(responseCode)) {
-            setNextCp(nextCp);
-        }
+        return isResultFalse(responseCode);
     }
 
-    public void doLinearSwitch(int[] labels, int[] cps, int defaultCp) {
+    public int doLinearSwitch(int[] labels, int[] cps, int defaultCp) {
         Address selector = getStack().popGet();
 
         // Не скалярные значения семантически запрещены
         if (!selector.isScalar()) {
-            setNextCp(defaultCp);
-            return;
+            return defaultCp;
         }
 
         int selectorHash = selector.hashCode();
 
         for (int i = 0; i < labels.length; i++) {
-            getConstantPool().load(labels[i], tmp);
-            int kHash = tmp.hashCode();
-            if (selectorHash == kHash && selector.fastCompareWith(tmp, 1) == 0) {
-                setNextCp(cps[i]);
-                return;
+            Address k = getConstantPool().get(labels[i]);
+            if (selectorHash == k.hashCode() && selector.fastCompareWith(k, 1) == 0) {
+                return cps[i];
             }
         }
-        setNextCp(defaultCp); /* default ip */
+        return defaultCp; /* default ip */
     }
 
-    public void doBinarySwitch(int[] labels, int[] cps, int defaultCp) {
+    public int doBinarySwitch(int[] labels, int[] cps, int defaultCp) {
         Address selector = getStack().popGet();
 
         // Не скалярные значения семантически запрещены
         if (!selector.isScalar()) {
-            setNextCp(defaultCp);
-            return;
+            return defaultCp;
         }
 
         int l = 0;
@@ -446,8 +1063,8 @@ public final class ExecutionContext {
 
         while (l <= h) {
             int x = (l + h) >> 1;
-            getConstantPool().load(labels[x], tmp);
-            int d = selector.compareTo(tmp);
+            Address k = getConstantPool().get(labels[x]);
+            int d = selector.compareTo(k);
 
             if (d > 0) {
                 l = x + 1;
@@ -458,17 +1075,22 @@ public final class ExecutionContext {
                 /* assert d != 2; */
 
                 // Если selector != k, значит один из операндов это NaN и цикл все равно завершен.
-                if (selector.fastCompareWith(tmp, 1) == 0) {
-                    setNextCp(cps[x]);
+                if (selector.fastCompareWith(k, 1) == 0) {
+                    return cps[x];
                 }
-                return;
+                break;
             }
         }
 
-        setNextCp(defaultCp); /* default offset */
+        return defaultCp; /* default offset */
     }
 
-    public void doCall(int calleeId, int argCount) {
+    /**
+     * Вызывает функцию. {@code nextCp} — индекс инструкции, следующей за вызовом.
+     * Листовая нативная функция выполняется на месте, без сообщения потоку, поэтому cp вызывающего фрейма
+     * записывается до вызова: по нему определяется строка вызова, если функция выбросит исключение.
+     */
+    public void doCall(int calleeId, int argCount, int nextCp) {
 //        Histogram.get().start(OPCodes._JoinNativeFrame);
 //        Histogram.get().start(OPCodes._JoinFrame);
         ResolvableCallee callee = getConstantPool().getCallee(calleeId);
@@ -481,11 +1103,33 @@ public final class ExecutionContext {
             callee.setResolved(fn);
         }
 
+        if (fn.isLeaf()) {
+            // Листовая нативная функция читает аргументы прямо из стека и пишет результат на место первого из них.
+            int base = stack.tos() - argCount;
+            Address[] stk = stack.array();
+            thread.currentFrame().setCP(nextCp);
+            if (thread.invokeLeaf(fn, stk, base, argCount, stk[base])) {
+                stack.tos(base + 1);
+            }
+            return;
+        }
+
         msg = InterpreterThread.MSG_CALLING_FRAME;
         msgCallee = fn;
         msgArgc = argCount;
     }
 
+    /**
+     * Вызов в хвостовой позиции. Пользовательская функция занимает фрейм вызывающей,
+     * нативная вызывается как обычно, и ее результат возвращает следующая инструкция {@code return}.
+     */
+    public void doTailCall(int calleeId, int argCount, int nextCp) {
+        doCall(calleeId, argCount, nextCp);
+        if (msgCallee != null && msgCallee.isUserDefined()) {
+            msg = InterpreterThread.MSG_TAIL_CALLING_FRAME;
+        }
+    }
+
     public void doReturn() {
         msg = InterpreterThread.MSG_POPPING_FRAME;
 //        Histogram.get().start(OPCodes._PopFrame);
@@ -497,6 +1141,244 @@ public final class ExecutionContext {
 //        Histogram.get().start(OPCodes._PopFrame);
     }
 
+    /*
+     * Суперинструкции. Через объединенные инструкции перескакивает сама суперинструкция.
+     */
+
+    public void doLoadLoad(int a, int b) {
+        getStack().push(getMemory().get(a));
+        getStack().push(getMemory().get(b));
+    }
+
+    public void doLoadLoadArrayLoad(int a, int b) {
+        Address arr = getStack().pushGet();
+        arr.set(getMemory().get(a));
+        arr.load(getMemory().get(b), arr);
+    }
+
+    public void doLoadConstOp(int i, Address c, int op) {
+        Address lhs = getStack().pushGet();
+        lhs.set(getMemory().get(i));
+        switch (op) {
+            case OPCodes.Add: lhs.add(c, lhs); break;
+            case OPCodes.Sub: lhs.sub(c, lhs); break;
+            case OPCodes.Mul: lhs.mul(c, lhs); break;
+            case OPCodes.Div: lhs.div(c, lhs); break;
+            case OPCodes.Rem: lhs.rem(c, lhs); break;
+            case OPCodes.Shl: lhs.shl(c, lhs); break;
+            case OPCodes.Shr: lhs.shr(c, lhs); break;
+            default: throw new AssertionError(op);
+        }
+    }
+
+    public boolean doLoadIf(int i, int cond) {
+        Address lhs = getStack().getStackAddressBack(1);
+        getStack().subTos(1);
+        return compare(cond, lhs, getMemory().get(i));
+    }
+
+    public boolean doLoadLoadIf(int a, int b, int cond) {
+        return compare(cond, getMemory().get(a), getMemory().get(b));
+    }
+
+    public boolean doLoadConstIf(int i, Address c, int cond) {
+        return compare(cond, getMemory().get(i), c);
+    }
+
+    /**
+     * Выполняет сравнение так же, как условная инструкция перехода {@code cond}.
+     */
+    private static boolean compare(int cond, Address lhs, Address rhs) {
+        switch (cond) {
+            case OPCodes.IfEq: return lhs.fastCompareWith(rhs, 1) == 0;
+            case OPCodes.IfNe: return lhs.fastCompareWith(rhs, 1) != 0;
+            case OPCodes.IfGt: return lhs.fastCompareWith(rhs, -1) > 0;
+            case OPCodes.IfGe: return lhs.fastCompareWith(rhs, -1) >= 0;
+            case OPCodes.IfLt: return lhs.fastCompareWith(rhs, 1) < 0;
+            case OPCodes.IfLe: return lhs.fastCompareWith(rhs, 1) <= 0;
+            default: throw new AssertionError(cond);
+        }
+    }
+
+    /*
+     * Регистровые инструкции. Операнды — номера регистров текущего фрейма.
+     */
+
+    public void regMove(int d, int s) {
+        memory.get(d).set(memory.get(s));
+    }
+
+    public void regConst(int d, Address value) {
+        memory.get(d).set(value);
+    }
+
+    public void regLdc(int d, int cpi) {
+        getConstantPool().load(cpi, memory.get(d));
+    }
+    public void regAdd(int d, int a, int b) {
+        memory.get(a).add(memory.get(b), memory.get(d));
+    }
+    public void regSub(int d, int a, int b) {
+        memory.get(a).sub(memory.get(b), memory.get(d));
+    }
+    public void regMul(int d, int a, int b) {
+        memory.get(a).mul(memory.get(b), memory.get(d));
+    }
+    public void regDiv(int d, int a, int b) {
+        memory.get(a).div(memory.get(b), memory.get(d));
+    }
+    public void regRem(int d, int a, int b) {
+        memory.get(a).rem(memory.get(b), memory.get(d));
+    }
+    public void regAnd(int d, int a, int b) {
+        memory.get(a).and(memory.get(b), memory.get(d));
+    }
+    public void regOr(int d, int a, int b) {
+        memory.get(a).or(memory.get(b), memory.get(d));
+    }
+    public void regXor(int d, int a, int b) {
+        memory.get(a).xor(memory.get(b), memory.get(d));
+    }
+    public void regShl(int d, int a, int b) {
+        memory.get(a).shl(memory.get(b), memory.get(d));
+    }
+    public void regShr(int d, int a, int b) {
+        memory.get(a).shr(memory.get(b), memory.get(d));
+    }
+    public void regBinaryConst(int op, int d, int a, Address k) {
+        Address lhs = memory.get(a);
+        Address result = memory.get(d);
+        switch (op) {
+            case OPCodes.Add: lhs.add(k, result); break;
+            case OPCodes.Sub: lhs.sub(k, result); break;
+            case OPCodes.Mul: lhs.mul(k, result); break;
+            case OPCodes.Div: lhs.div(k, result); break;
+            case OPCodes.Rem: lhs.rem(k, result); break;
+            case OPCodes.And: lhs.and(k, result); break;
+            case OPCodes.Or: lhs.or(k, result); break;
+            case OPCodes.Xor: lhs.xor(k, result); break;
+            case OPCodes.Shl: lhs.shl(k, result); break;
+            case OPCodes.Shr: lhs.shr(k, result); break;
+            default: throw new AssertionError(op);
+        }
+    }
+    public void regNeg(int d, int s) {
+        memory.get(s).neg(memory.get(d));
+    }
+    public void regPos(int d, int s) {
+        memory.get(s).pos(memory.get(d));
+    }
+    public void regNot(int d, int s) {
+        memory.get(s).not(memory.get(d));
+    }
+    public void regLength(int d, int s) {
+        memory.get(s).length(memory.get(d));
+    }
+    public void regArrayLoad(int d, int a, int k) {
+        memory.get(a).load(memory.get(k), memory.get(d));
+    }
+
+    public void regArrayStore(int a, int k, int v) {
+        memory.get(a).store(memory.get(k), memory.get(v));
+    }
+
+    public void regArrayInc(int d, int a, int k) {
+        memory.get(a).arrayInc(memory.get(k), memory.get(d));
+    }
+
+    public void regArrayDec(int d, int a, int k) {
+        memory.get(a).arrayDec(memory.get(k), memory.get(d));
+    }
+
+    public void regNewList(int d, int s) {
+        newList(memory.get(s), memory.get(d));
+    }
+
+    public void regNewMap(int d) {
+        memory.get(d).set(new MapHeap());
+    }
+    public boolean regIfEq(int a, int b) {
+        return compare(OPCodes.IfEq, memory.get(a), memory.get(b));
+    }
+    public boolean regIfNe(int a, int b) {
+        return compare(OPCodes.IfNe, memory.get(a), memory.get(b));
+    }
+    public boolean regIfGt(int a, int b) {
+        return compare(OPCodes.IfGt, memory.get(a), memory.get(b));
+    }
+    public boolean regIfGe(int a, int b) {
+        return compare(OPCodes.IfGe, memory.get(a), memory.get(b));
+    }
+    public boolean regIfLt(int a, int b) {
+        return compare(OPCodes.IfLt, memory.get(a), memory.get(b));
+    }
+    public boolean regIfLe(int a, int b) {
+        return compare(OPCodes.IfLe, memory.get(a), memory.get(b));
+    }
+    public boolean regIfConst(int cond, int a, Address k) {
+        return compare(cond, memory.get(a), k);
+    }
+
+    public boolean regIfZ(int s) {
+        return !memory.get(s).booleanVal();
+    }
+
+    public boolean regIfNz(int s) {
+        return memory.get(s).booleanVal();
+    }
+
+    public boolean regIfNull(int s) {
+        return memory.get(s).isNull();
+    }
+
+    public boolean regIfNonNull(int s) {
+        return !memory.get(s).isNull();
+    }
+
+    public boolean regIfPresent(int a, int k) {
+        return isResultTrue(memory.get(a).contains(memory.get(k)));
+    }
+
+    public boolean regIfAbsent(int a, int k) {
+        return isResultFalse(memory.get(a).contains(memory.get(k)));
+    }
+
+    public void regCall(int calleeId, int[] args, int nextCp) {
+        for (int arg : args) {
+            stack.push(memory.get(arg));
+        }
+        doCall(calleeId, args.length, nextCp);
+    }
+
+    public void regTailCall(int calleeId, int[] args, int nextCp) {
+        for (int arg : args) {
+            stack.push(memory.get(arg));
+        }
+        doTailCall(calleeId, args.length, nextCp);
+    }
+
+    public void regMoveResult(int d) {
+        memory.get(d).set(stack.popGet());
+    }
+
+    public void regReturn(int s) {
+        stack.push(memory.get(s));
+        msg = InterpreterThread.MSG_POPPING_FRAME;
+    }
+
+    public void regShload(int d, int index) {
+        memory.get(d).set(memory.getShared(index));
+    }
+
+    public void regShstore(int index, int s) {
+        memory.getShared(index).set(memory.get(s));
+    }
+
+    public int regSwitch(int s, Instruction delegate, int cp) {
+        stack.push(memory.get(s));
+        return delegate.execute(this, cp);
+    }
+
     public void shareLoad(int index) {
         getStack().push(memory.getShared(index));
     }
@@ -1,31 +1,89 @@
 package jua.runtime.interpreter;
 
+import java.util.Arrays;
+
+/**
+ * Пул фреймов потока.
+ * <p>
+ * Фреймы создаются блоками по {@link #CHUNK_SIZE} штук по мере роста глубины вызовов и остаются в пуле
+ * после возврата, поэтому вызовы на уже достигнутой глубине ничего не выделяют. При расширении пула
+ * существующие блоки не копируются. Глубина вызовов ограничена: при превышении {@link #allocate()}
+ * возвращает {@code null}, и поток сообщает об ошибке переполнения стека.
+ */
 public final class FrameFactory {
 
-    private final InterpreterFrame[] frames;
+    private static final int CHUNK_BITS = 7;
+
+    /** Число фреймов в одном блоке. */
+    public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    /** Максимальная глубина вызовов по умолчанию. */
+    public static final int DEFAULT_MAX_DEPTH = 100_000;
+
+    private InterpreterFrame[][] chunks = new InterpreterFrame[4][];
+
+    private int chunkCount = 0;
 
     private int top = 0;
 
-    public FrameFactory() {
-        int p = 128;
-        frames = new InterpreterFrame[p];
-        for (int i = 0; i < p; i++) {
-            frames[i] = new InterpreterFrame();
-        }
-    }
+    private int maxDepth = DEFAULT_MAX_DEPTH;
 
+    /** Наибольшая глубина вызовов, достигнутая за время работы потока. */
+    private int highWaterMark = 0;
+
+    /** Возвращает свободный фрейм или {@code null}, если достигнута максимальная глубина вызовов. */
     public InterpreterFrame allocate() {
-        InterpreterFrame frame;
-        if (top >= frames.length) {
-            frame = new InterpreterFrame();
-        } else {
-            frame = frames[top];
+        if (top >= maxDepth) {
+            return null;
+        }
+        int chunk = top >>> CHUNK_BITS;
+        if (chunk == chunkCount) {
+            addChunk();
         }
+        InterpreterFrame frame = chunks[chunk][top & (CHUNK_SIZE - 1)];
         top++;
+        if (top > highWaterMark) {
+            highWaterMark = top;
+        }
         return frame;
     }
 
     public void release() {
         top--;
     }
+
+    private void addChunk() {
+        if (chunkCount == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunkCount * 2);
+        }
+        InterpreterFrame[] chunk = new InterpreterFrame[CHUNK_SIZE];
+        for (int i = 0; i < CHUNK_SIZE; i++) {
+            chunk[i] = new InterpreterFrame();
+        }
+        chunks[chunkCount++] = chunk;
+    }
+
+    public int getDepth() {
+        return top;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        if (maxDepth <= 0) {
+            throw new IllegalArgumentException("max depth must be positive: " + maxDepth);
+        }
+        this.maxDepth = maxDepth;
+    }
+
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /** Возвращает число фреймов, созданных пулом. */
+    public int getAllocatedFrames() {
+        return chunkCount * CHUNK_SIZE;
+    }
 }
@@ -1,18 +1,22 @@
 package jua.runtime.interpreter;
 
+import jua.runtime.Function;
+
 public final class InterpreterFrame {
 
     private InterpreterFrame caller;
-    private int functionId;
+    private Function function;
     private int cp;
     private int regBase;
+    /** Номер выполняемой строки. Используется только функциями, которые выполняются деревом. */
+    private int lineNumber;
 
     public void setCaller(InterpreterFrame caller) {
         this.caller = caller;
     }
 
-    public void setFunctionId(int functionId) {
-        this.functionId = functionId;
+    public void setFunction(Function function) {
+        this.function = function;
     }
 
     public void setCP(int cp) {
@@ -26,12 +30,16 @@ public final class InterpreterFrame {
         this.regBase = regBase;
     }
 
+    public void setLineNumber(int lineNumber) {
+        this.lineNumber = lineNumber;
+    }
+
     public InterpreterFrame getCaller() {
         return caller;
     }
 
-    public int getFunctionId() {
-        return functionId;
+    public Function getFunction() {
+        return function;
     }
 
     public int getCP() {
@@ -41,4 +49,8 @@ public final class InterpreterFrame {
     public int getRegBase() {
         return regBase;
     }
+
+    public int getLineNumber() {
+        return lineNumber;
+    }
 }
@@ -2,6 +2,8 @@ package jua.runtime.interpreter;
 
 import jua.runtime.Function;
 import jua.runtime.JuaEnvironment;
+import jua.runtime.code.CodeData;
+import jua.runtime.jit.JitCompiler;
 import jua.runtime.RuntimeErrorException;
 import jua.runtime.StackTraceElement;
 import jua.runtime.utils.Assert;
@@ -17,6 +19,7 @@ public final class InterpreterThread {
     public static final int MSG_UNSTARTED         = 0; /* Поток создан, но не запущен */
     public static final int MSG_RUNNING_FRAME     = 1; /* Поток выполняет фрейм */
     public static final int MSG_CALLING_FRAME     = 2; /* Поток вызывает фрейм */
+    public static final int MSG_TAIL_CALLING_FRAME = 3; /* Поток заменяет текущий фрейм вызываемым */
     public static final int MSG_POPPING_FRAME     = 4; /* Поток возвращает фрейм */
     public static final int MSG_CRASHED           = 6; /* В потоке произошла ошибка */
     public static final int MSG_HALTED            = 7; /* Поток прерван */
@@ -58,19 +61,27 @@ public final class InterpreterThread {
     private int msg = MSG_UNSTARTED;
 
     private final ThreadStack stack = new ThreadStack();
-    private final ThreadMemory memory = new ThreadMemory();
+    private final ThreadMemory memory = new ThreadMemory(stack);
     private final FrameFactory frameFactory = new FrameFactory();
     private InterpreterFrame current = null;
 
+    /** Окно аргументов, ячейки для значений по умолчанию и результат вызова листовой нативной функции. */
+    private Address[] leafArgs = new Address[0];
+    private Address[] leafDefaults = new Address[0];
+    private final Address leafResult = new Address();
+
     private final ExecutionContext executionContext;
 
+    /** JIT-компилятор включается до создания потоков, поэтому его состояние читается один раз. */
+    private final boolean jit = JitCompiler.isEnabled();
+
     public InterpreterThread(Thread jvmThread, JuaEnvironment environment) {
         Objects.requireNonNull(jvmThread, "JVM thread");
         Objects.requireNonNull(environment, "environment");
         bind();
         this.jvmThread = jvmThread;
         this.environment = environment;
-        executionContext = new ExecutionContext(stack(), memory());
+        executionContext = new ExecutionContext(this, stack(), memory());
     }
 
     public ThreadStack stack() {
@@ -99,27 +110,51 @@ public final class InterpreterThread {
         return environment;
     }
 
-    private void pushFrame() {
+    /** Максимальная глубина вызовов. При ее превышении поток завершается ошибкой переполнения стека. */
+    public void setMaxCallDepth(int maxCallDepth) {
+        frameFactory.setMaxDepth(maxCallDepth);
+    }
+
+    public int getMaxCallDepth() {
+        return frameFactory.getMaxDepth();
+    }
+
+    /** Возвращает текущую глубину вызовов. */
+    public int getCallDepth() {
+        return frameFactory.getDepth();
+    }
+
+    /** Возвращает наибольшую глубину вызовов, достигнутую потоком. */
+    public int getPeakCallDepth() {
+        return frameFactory.getHighWaterMark();
+    }
+
+    /** Возвращает число фреймов, созданных потоком. */
+    public int getAllocatedFrames() {
+        return frameFactory.getAllocatedFrames();
+    }
+
+    /**
+     * Создает фрейм и делает его текущим.
+     * Возвращает {@code false}, если достигнута максимальная глубина вызовов. В этом случае поток уже завершен ошибкой.
+     */
+    private boolean pushFrame(Function callee, int regBase) {
         InterpreterFrame frame = frameFactory.allocate();
-        frame.setCaller(currentFrame());
-        frame.setFunctionId(callee.runtimeId);
-        if (currentFrame() == null) {
-            frame.setRegBase(0);
-        } else {
-            InterpreterFrame caller = currentFrame().getCaller();
-            Function f = JuaEnvironment.getEnvironment().getFunctionById(current.getFunctionId());
-            if (caller == null) {
-                if (f.isUserDefined()) {
-                    frame.setRegBase(f.getCode().getRegNumber());
-                } else {
-                    frame.setRegBase(0);
-                }
-            } else {
-                frame.setRegBase(caller.getRegBase() + f.getCode().getRegNumber());
-            }
+        if (frame == null) {
+            error("stack overflow: call depth exceeds %d", frameFactory.getMaxDepth());
+            return false;
         }
+        frame.setCaller(currentFrame());
+        frame.setFunction(callee);
+        frame.setRegBase(regBase);
         frame.setCP(0);
         current = frame;
+        return true;
+    }
+
+    /** Регистры фрейма без собственного окна регистров совпадают с регистрами вызывающего. */
+    private int inheritedRegBase() {
+        return current == null ? 0 : current.getRegBase();
     }
 
     private void popFrame() {
@@ -129,18 +164,16 @@ public final class InterpreterThread {
 
     private void enterFrame() {
         Assert.checkNonNull(callee, "callee is not set");
-        pushFrame();
         if (callee.isUserDefined()) {
-            memory.acquire(callee.getCode().getRegNumber());
-            for (int i = 0; i < numArgs; i++) {
-                memory.get(numArgs - i - 1).set(stack().popGet());
-            }
-            for (int i = numArgs; i < callee.getMaxArgc(); i++) {
-                memory.get(i).set(callee.getDefaults()[i - callee.getMinArgc()]);
+            if (enterUserFrame(callee, numArgs) == null) {
+                return;
             }
 //            Histogram.get().end(OPCodes._JoinFrame);
             set_msg(MSG_RUNNING_FRAME);
         } else {
+            if (!pushFrame(callee, inheritedRegBase())) {
+                return;
+            }
             Address[] args = AddressUtils.allocateMemory(callee.getMaxArgc(), 0);
             for (int i = 0; i < numArgs; i++) {
                 args[numArgs - i - 1].set(stack().popGet());
@@ -160,13 +193,148 @@ public final class InterpreterThread {
         }
     }
 
-    private void leaveFrame() {
-        Function fn = JuaEnvironment.getEnvironment().getFunctionById(currentFrame().getFunctionId());
-        if (fn.isUserDefined()) {
-            stack.cleanup();
-            memory.release(fn.getCode().getRegNumber());
+    /**
+     * Создает фрейм пользовательской функции. Аргументы, лежащие на вершине стека,
+     * становятся первыми регистрами вызываемой функции на месте, без копирования.
+     * Вызывается как из цикла потока, так и напрямую из цикла выполнения.
+     * Возвращает {@code null}, если достигнута максимальная глубина вызовов.
+     */
+    InterpreterFrame enterUserFrame(Function fn, int argc) {
+        if (jit) JitCompiler.onInvocation(fn);
+        int base = stack.tos() - argc;
+        if (!pushFrame(fn, base)) {
+            return null;
+        }
+        openRegisters(fn, base, argc);
+        return current;
+    }
+
+    /**
+     * Заменяет текущий фрейм пользовательской функции фреймом вызываемой функции.
+     * Фрейм и окно регистров переиспользуются, поэтому хвостовая рекурсия выполняется в постоянной памяти.
+     * Вызывающий фрейм при этом пропадает из трассировки стека.
+     */
+    InterpreterFrame reenterUserFrame(Function fn, int argc) {
+        if (jit) JitCompiler.onInvocation(fn);
+        int base = current.getRegBase();
+        int args = stack.tos() - argc;
+        Address[] data = stack.array();
+        for (int i = 0; i < argc; i++) {
+            data[base + i].set(data[args + i]);
+        }
+        for (int i = base + argc; i < args + argc; i++) {
+            data[i].reset();
         }
+        current.setFunction(fn);
+        current.setCP(0);
+        openRegisters(fn, base, argc);
+        return current;
+    }
+
+    /**
+     * Дополняет переданные аргументы до окна регистров функции: очищает локальные переменные,
+     * подставляет значения по умолчанию и переносит вершину стека за окно.
+     * Место под регистры и весь стек операндов функции резервируется здесь,
+     * с запасом в одну ячейку под результат инструкции {@code leave}.
+     */
+    private void openRegisters(Function fn, int base, int argc) {
+        CodeData code = fn.getCode();
+        int regNumber = code.getRegNumber();
+        stack.tos(base + argc);
+        stack.reserve(regNumber - argc + code.getStackWide() + 1);
+        Address[] data = stack.array();
+        for (int i = argc; i < regNumber; i++) {
+            data[base + i].reset();
+        }
+        for (int i = argc; i < fn.getMaxArgc(); i++) {
+            data[base + i].set(fn.getDefaults()[i - fn.getMinArgc()]);
+        }
+        stack.tos(base + regNumber);
+        memory.setCurrentFrame(current);
+    }
+
+    /**
+     * Удаляет фрейм пользовательской функции. Результат функции переносится на место ее первого аргумента.
+     * Возвращает вызывающий фрейм.
+     */
+    InterpreterFrame leaveUserFrame() {
+        CodeData code = current.getFunction().getCode();
+        int base = current.getRegBase();
+        stack.collapse(base, base + code.getRegNumber() + code.getStackWide());
         popFrame();
+        return current;
+    }
+
+    /**
+     * Создает фрейм вызываемой функции, не трогая стек и регистры.
+     * Используется исполнителем дерева, который сам передает аргументы и результат.
+     * Возвращает {@code null}, если достигнута максимальная глубина вызовов.
+     */
+    public InterpreterFrame pushCallFrame(Function fn) {
+        return pushFrame(fn, inheritedRegBase()) ? current : null;
+    }
+
+    /** Удаляет фрейм, созданный {@link #pushCallFrame(Function)}. */
+    public void popCallFrame() {
+        popFrame();
+    }
+
+    /**
+     * Вызывает {@link Function#isLeaf() листовую} нативную функцию без фрейма. Аргументы лежат в ячейках
+     * {@code slots} начиная с {@code from}: функция получает окно из тех же объектов {@link Address},
+     * а недостающие аргументы заполняются значениями по умолчанию во временных ячейках потока.
+     * Результат сначала пишется во временную ячейку, так как {@code result} может совпадать с первым аргументом.
+     * Временные ячейки одни на поток, поэтому листовая функция не должна вызывать код Jua.
+     * <p>
+     * Фрейм создается только при ошибке, чтобы нативная функция попала в трассировку стека.
+     * Возвращает {@code false}, если функция завершилась ошибкой.
+     */
+    public boolean invokeLeaf(Function fn, Address[] slots, int from, int argc, Address result) {
+        int total = fn.getMaxArgc();
+        if (leafArgs.length < total) {
+            leafArgs = new Address[total];
+            leafDefaults = AddressUtils.allocateMemory(total, 0);
+        }
+        Address[] args = leafArgs;
+        System.arraycopy(slots, from, args, 0, argc);
+        for (int i = argc; i < total; i++) {
+            args[i] = leafDefaults[i];
+            args[i].set(fn.getDefaults()[i - fn.getMinArgc()]);
+        }
+        // Функции без результата, например print, не пишут в ячейку результата.
+        leafResult.setNull();
+        boolean success;
+        try {
+            success = fn.nativeExecutor().execute(args, argc, leafResult);
+        } catch (RuntimeException | Error e) {
+            attachLeafFrame(fn);
+            throw e;
+        }
+        if (!success) {
+            attachLeafFrame(fn);
+            return false;
+        }
+        result.set(leafResult);
+        return true;
+    }
+
+    private void attachLeafFrame(Function fn) {
+        InterpreterFrame frame = frameFactory.allocate();
+        if (frame != null) {
+            frame.setCaller(current);
+            frame.setFunction(fn);
+            frame.setRegBase(inheritedRegBase());
+            frame.setCP(0);
+            current = frame;
+        }
+    }
+
+    private void leaveFrame() {
+        if (current.getFunction().isUserDefined()) {
+            leaveUserFrame();
+        } else {
+            popFrame();
+        }
 //        Histogram.get().end(OPCodes._PopFrame);
 //        Histogram.get().end(OPCodes._PopNativeFrame);
         if (current == null) {
@@ -225,6 +393,7 @@ public final class InterpreterThread {
      */
     public boolean callAndWait(Function function, Address[] args, Address returnAddress) {
         prepareCall(function, args.length);
+        stack().reserve(args.length);
         for (Address arg : args) {
             stack().push(arg);
         }
@@ -254,9 +423,7 @@ public final class InterpreterThread {
         int i = limit;
 
         while (frame != null && i > 0) {
-            if (!JuaEnvironment.getEnvironment()
-                    .getFunctionById(frame.getFunctionId())
-                    .isHidden()) {
+            if (!frame.getFunction().isHidden()) {
                 stackTrace.add(toStackTraceElement(frame));
             }
             frame = frame.getCaller();
@@ -268,14 +435,15 @@ public final class InterpreterThread {
 
     /** Возвращает номер строки, которая сейчас выполняется. */
     int executingLineNumber(InterpreterFrame frame) {
-        Function f = JuaEnvironment.getEnvironment().getFunctionById(frame.getFunctionId());
+        Function f = frame.getFunction();
         if (!f.isUserDefined()) return -1; // native function
+        if (f.getTreeCode() != null) return frame.getLineNumber();
         int cp = frame.getCP() - 1;
         return f.userCode().getLineNumberTable().getLineNumber(cp);
     }
 
     StackTraceElement toStackTraceElement(InterpreterFrame frame) {
-        Function f = env.getFunctionById(frame.getFunctionId());
+        Function f = frame.getFunction();
         return new StackTraceElement(f.getModule(), f.getName(), executingLineNumber(frame));
     }
 
@@ -316,7 +484,7 @@ public final class InterpreterThread {
             String details;
             if (currentFrame() == null) {
                 details = "<NO FRAME>";
-            } else if (!env.getFunctionById(currentFrame().getFunctionId()).isUserDefined()) {
+            } else if (!currentFrame().getFunction().isUserDefined()) {
                 details = "<NATIVE>";
             } else {
                 details = "CP=" + currentFrame().getCP() +
@@ -71,8 +71,9 @@ public interface OPCodes {
             // Мнимые инструкции, которые нужны лишь для гистограммы
             Shload = 66,
             Shstore = 67,
+            TailCall = 68,
 
-    _InstrCount = Shstore + 1;
+    _InstrCount = TailCall + 1;
 
     String[] NAMES = {
             "Nop",
@@ -141,9 +142,8 @@ public interface OPCodes {
             "Call",
             "Return",
             "Leave",
-            "_JoinFrame",
-            "_PopFrame",
-            "_JoinNativeFrame",
-            "_PopNativeFrame"
+            "Shload",
+            "Shstore",
+            "TailCall"
     };
 }
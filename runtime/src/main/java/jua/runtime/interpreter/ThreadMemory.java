@@ -2,16 +2,21 @@ package jua.runtime.interpreter;
 
 import java.util.Objects;
 
+/**
+ * Регистры текущего фрейма.
+ * <p>
+ * Отдельной памяти под регистры нет: окно регистров каждого фрейма лежит в стеке потока,
+ * сразу под его стеком операндов. Аргументы, которые вызывающая функция положила на стек,
+ * становятся первыми регистрами вызываемой без копирования.
+ */
 public final class ThreadMemory {
 
-    private Address[] data;
-
-    private int top = 0;
+    private final ThreadStack stack;
 
     private int fRegBase = 0;
 
-    public ThreadMemory() {
-        data = AddressUtils.allocateMemory(32, 0);
+    public ThreadMemory(ThreadStack stack) {
+        this.stack = Objects.requireNonNull(stack);
     }
 
     public void setCurrentFrame(InterpreterFrame frame) {
@@ -20,41 +25,32 @@ public final class ThreadMemory {
     }
 
     public Address get(int offset) {
-        return data[fRegBase + offset];
+        return stack.array()[fRegBase + offset];
     }
 
     public Address getShared(int offset) {
-        return data[offset];
-    }
-
-    public void acquire(int capacity) {
-        checkAndGrow(capacity);
-        top += capacity;
+        // Регистры <main> лежат в самом начале стека.
+        return stack.array()[offset];
     }
 
-    private void checkAndGrow(int capacity) {
-        if (data.length - top < capacity) {
-            data = AddressUtils.reallocateWithNewLength(data, (top + capacity) * 2);
-        }
-    }
-
-    public void release(int capacity) {
-        int a = top - capacity;
-        for (int t = a; t < top; t++) {
-            data[t].reset();
-        }
-        top = a;
+    /**
+     * Возвращает массив, в котором хранятся регистры. Это тот же массив, что и у стека потока.
+     * Массив действителен до следующего расширения стека.
+     */
+    Address[] array() {
+        return stack.array();
     }
 
     public void debug() {
-        System.out.println("Memory used: " + top);
+        Address[] data = stack.array();
+        System.out.println("Memory used: " + stack.tos());
         System.out.print(" > ");
-        for (int i = 0; i < top; i++) {
+        for (int i = 0; i < stack.tos(); i++) {
             System.out.printf("%-2s ", data[i].getTypeName().charAt(0));
         }
         System.out.println();
         System.out.print(" > ");
-        for (int i = 0; i < top; i++) {
+        for (int i = 0; i < stack.tos(); i++) {
             System.out.printf("%02x ", i);
         }
         System.out.println();
@@ -2,6 +2,13 @@ package jua.runtime.interpreter;
 
 import jua.runtime.Types;
 
+/**
+ * Стек значений потока. В нем лежат окна регистров и стеки операндов всех пользовательских фреймов.
+ * <p>
+ * Байт-код проверяется верификатором при загрузке, поэтому глубина стека каждой функции известна заранее.
+ * Место под регистры и операнды резервируется одним вызовом {@link #reserve(int)} при входе во фрейм,
+ * а операции со стеком не проверяют ни переполнение, ни исчерпание стека.
+ */
 public final class ThreadStack {
 
     private Address[] data;
@@ -34,7 +41,6 @@ public final class ThreadStack {
      * @deprecated Use {@link #peek(int)}
      */
     public Address getStackAddress(int offset) {
-        ensureCapacity(offset + 1);
         return peek(offset);
     }
 
@@ -47,12 +53,10 @@ public final class ThreadStack {
      */
     public void addTos(int tos) {
         this.tos += tos;
-        validate();
     }
 
     public void subTos(int tos) {
         this.tos -= tos;
-        validate();
     }
 
     /**
@@ -64,6 +68,19 @@ public final class ThreadStack {
         }
     }
 
+    /**
+     * Переносит значение с вершины стека в ячейку {@code base} и очищает ячейки выше нее, но ниже {@code end}.
+     * Так возвращается результат функции: он занимает место ее первого аргумента.
+     */
+    public void collapse(int base, int end) {
+        data[base].set(data[tos - 1]);
+        int limit = Math.min(Math.max(end, tos), data.length);
+        for (int i = base + 1; i < limit; i++) {
+            data[i].reset();
+        }
+        tos = base + 1;
+    }
+
     /**
      * Этот метод НЕ будет провоцировать расширение памяти.
      * Чтобы расширить память, надо использовать {@link #push(Address)}.
@@ -99,14 +116,28 @@ public final class ThreadStack {
     }
 
     public Address pushGet() {
-        ensureCapacity(1);
         Address a = data[tos];
         tos++;
         return a;
     }
 
     public void push(Address address) {
-        pushGet().set(address);
+        data[tos++].set(address);
+    }
+
+    /**
+     * Гарантирует, что на стек можно будет положить еще {@code count} значений без расширения памяти.
+     */
+    public void reserve(int count) {
+        ensureCapacity(count);
+    }
+
+    /**
+     * Возвращает массив, в котором хранятся значения стека.
+     * Массив действителен до следующего расширения памяти.
+     */
+    Address[] array() {
+        return data;
     }
 
     private void checkAndShrink() {
@@ -124,7 +155,6 @@ public final class ThreadStack {
     }
 
     public void dup() {
-        ensureCapacity(1);
         // -1  0
         //  A
         //  A  A
@@ -133,7 +163,6 @@ public final class ThreadStack {
     }
 
     public void dupX1() {
-        ensureCapacity(1);
         // Нужно переместить 2 элемента на 1 позицию вправо
         // Затем последний элемент скопировать в элемент на 2 позиции левее.
 
@@ -147,7 +176,6 @@ public final class ThreadStack {
     }
 
     public void dupX2() {
-        ensureCapacity(1);
         // Нужно переместить 3 элемента на 2 позиции вправо
         // Затем последний элемент скопировать в элемент на 3 позиции левее.
 
@@ -162,14 +190,12 @@ public final class ThreadStack {
     }
 
     public void dup2() {
-        ensureCapacity(2);
         peek(0).set(peek(-2));
         peek(1).set(peek(-1));
         tos += 2;
     }
 
     public void dup2X1() {
-        ensureCapacity(2);
         // Нужно переместить 3 элемента на 2 позиции вправо
         // Затем 2 последних элементах скопировать в элементы на 3 позиции левее.
 
@@ -186,7 +212,6 @@ public final class ThreadStack {
     }
 
     public void dup2X2() {
-        ensureCapacity(2);
         // Нужно переместить 4 элемента на 2 позиции вправо
         // Затем 2 последних элементах скопировать в элементы на 4 позиции левее.
 
@@ -198,8 +223,9 @@ public final class ThreadStack {
         peek(1).set(peek(-1));
         peek(0).set(peek(-2));
         peek(-1).set(peek(-3));
+        peek(-2).set(peek(-4));
         peek(-3).set(peek(1));
-        peek(-4).set(peek(10));
+        peek(-4).set(peek(0));
         tos += 2;
     }
 
@@ -8,8 +8,10 @@ public interface Instruction {
      * Выполняет инструкцию.
      *
      * @param context Контекст выполнения функции.
+     * @param cp      Индекс выполняемой инструкции.
+     * @return Индекс инструкции, которая выполняется следующей.
      */
-    void execute(ExecutionContext context);
+    int execute(ExecutionContext context, int cp);
 
     int opcode();
 }
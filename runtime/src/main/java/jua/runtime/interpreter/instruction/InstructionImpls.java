@@ -8,7 +8,7 @@ public interface InstructionImpls {
 
     class Nop implements Instruction {
         @Override
-        public void execute(ExecutionContext context) {}
+        public int execute(ExecutionContext context, int cp) { return cp + 1; }
 
         @Override
         public int opcode() { return Nop; }
@@ -16,8 +16,9 @@ public interface InstructionImpls {
 
     class ConstIntM1 implements Instruction {
         @Override
-        public void execute(ExecutionContext context) {
+        public int execute(ExecutionContext context, int cp) {
             context.doConstInt(-1);
+            return cp + 1;
         }
 
         @Override
@@ -26,7 +27,10 @@ public interface InstructionImpls {
 
     class ConstInt0 implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doConstInt(0); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doConstInt(0);
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return ConstInt0; }
@@ -34,7 +38,10 @@ public interface InstructionImpls {
 
     class ConstInt1 implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doConstInt(1); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doConstInt(1);
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return ConstInt1; }
@@ -42,7 +49,10 @@ public interface InstructionImpls {
 
     class ConstInt2 implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doConstInt(2); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doConstInt(2);
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return ConstInt2; }
@@ -50,7 +60,10 @@ public interface InstructionImpls {
 
     class ConstFalse implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doConstFalse(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doConstFalse();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return ConstFalse; }
@@ -58,7 +71,10 @@ public interface InstructionImpls {
 
     class ConstTrue implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doConstTrue(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doConstTrue();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return ConstTrue; }
@@ -66,7 +82,10 @@ public interface InstructionImpls {
 
     class ConstNull implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doConstNull(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doConstNull();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return ConstNull; }
@@ -80,7 +99,10 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) { context.doPush(cpi); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doPush(cpi);
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Push; }
@@ -88,7 +110,10 @@ public interface InstructionImpls {
 
     class Dup implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doDup(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doDup();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Dup; }
@@ -96,7 +121,10 @@ public interface InstructionImpls {
 
     class DupX1 implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doDupX1(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doDupX1();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return DupX1; }
@@ -104,7 +132,10 @@ public interface InstructionImpls {
 
     class DupX2 implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doDupX2(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doDupX2();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return DupX2; }
@@ -112,7 +143,10 @@ public interface InstructionImpls {
 
     class Dup2 implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doDup2(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doDup2();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Dup2; }
@@ -120,7 +154,10 @@ public interface InstructionImpls {
 
     class Dup2X1 implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doDup2x1(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doDup2x1();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Dup2X1; }
@@ -128,7 +165,10 @@ public interface InstructionImpls {
 
     class Dup2X2 implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doDup2x2(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doDup2x2();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Dup2X2; }
@@ -136,7 +176,10 @@ public interface InstructionImpls {
 
     class Pop implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doPop(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doPop();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Pop; }
@@ -144,7 +187,10 @@ public interface InstructionImpls {
 
     class Pop2 implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doPop2(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doPop2();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Pop2; }
@@ -152,7 +198,10 @@ public interface InstructionImpls {
 
     class Add implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doAdd(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doAdd();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Add; }
@@ -160,7 +209,10 @@ public interface InstructionImpls {
 
     class Sub implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doSub(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doSub();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Sub; }
@@ -168,7 +220,10 @@ public interface InstructionImpls {
 
     class Mul implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doMul(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doMul();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Mul; }
@@ -176,7 +231,10 @@ public interface InstructionImpls {
 
     class Div implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doDiv(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doDiv();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Div; }
@@ -184,7 +242,10 @@ public interface InstructionImpls {
 
     class Rem implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doRem(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doRem();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Rem; }
@@ -192,7 +253,10 @@ public interface InstructionImpls {
 
     class Shl implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doShl(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doShl();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Shl; }
@@ -200,7 +264,10 @@ public interface InstructionImpls {
 
     class Shr implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doShr(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doShr();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Shr; }
@@ -208,7 +275,10 @@ public interface InstructionImpls {
 
     class And implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doAnd(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doAnd();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return And; }
@@ -216,7 +286,10 @@ public interface InstructionImpls {
 
     class Or implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doOr(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doOr();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Or; }
@@ -224,7 +297,10 @@ public interface InstructionImpls {
 
     class Xor implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doXor(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doXor();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Xor; }
@@ -232,7 +308,10 @@ public interface InstructionImpls {
 
     class Pos implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doPos(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doPos();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Pos; }
@@ -240,7 +319,10 @@ public interface InstructionImpls {
 
     class Neg implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doNeg(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doNeg();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Neg; }
@@ -248,7 +330,10 @@ public interface InstructionImpls {
 
     class Not implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doNot(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doNot();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Not; }
@@ -256,7 +341,10 @@ public interface InstructionImpls {
 
     class Length implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doLength(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doLength();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Length; }
@@ -264,7 +352,10 @@ public interface InstructionImpls {
 
     class Load0 implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doLoad(0); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doLoad(0);
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Load0; }
@@ -272,7 +363,10 @@ public interface InstructionImpls {
 
     class Load1 implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doLoad(1); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doLoad(1);
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Load1; }
@@ -280,7 +374,10 @@ public interface InstructionImpls {
 
     class Load2 implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doLoad(2); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doLoad(2);
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Load2; }
@@ -294,7 +391,10 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) { context.doLoad(i); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doLoad(i);
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Load; }
@@ -302,7 +402,10 @@ public interface InstructionImpls {
 
     class Store0 implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doStore(0); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doStore(0);
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Store0; }
@@ -310,7 +413,10 @@ public interface InstructionImpls {
 
     class Store1 implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doStore(1); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doStore(1);
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Store1; }
@@ -318,7 +424,10 @@ public interface InstructionImpls {
 
     class Store2 implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doStore(2); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doStore(2);
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Store2; }
@@ -332,7 +441,10 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) { context.doStore(i); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doStore(i);
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Store; }
@@ -346,7 +458,10 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) { context.doInc(i); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doInc(i);
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Inc; }
@@ -360,7 +475,10 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) { context.doDec(i); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doDec(i);
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Dec; }
@@ -368,7 +486,10 @@ public interface InstructionImpls {
 
     class ArrayLoad implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doArrayLoad(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doArrayLoad();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return ArrayLoad; }
@@ -376,7 +497,10 @@ public interface InstructionImpls {
 
     class ArrayStore implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doArrayStore(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doArrayStore();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return ArrayStore; }
@@ -384,7 +508,10 @@ public interface InstructionImpls {
 
     class ArrayInc implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doArrayInc(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doArrayInc();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return ArrayInc; }
@@ -392,7 +519,10 @@ public interface InstructionImpls {
 
     class ArrayDec implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doArrayDec(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doArrayDec();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return ArrayDec; }
@@ -400,12 +530,26 @@ public interface InstructionImpls {
 
     class NewList implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doNewList(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doNewList();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return NewList; }
     }
 
+    class NewMap implements Instruction {
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.doNewMap();
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return NewMap; }
+    }
+
     abstract class JumpInstruction implements Instruction {
         private final int nextCp;
 
@@ -424,7 +568,7 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) { context.setNextCp(getNextCp()); }
+        public int execute(ExecutionContext context, int cp) { return getNextCp(); }
 
         @Override
         public int opcode() { return Goto; }
@@ -436,8 +580,8 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) {
-            context.doJumpIfEq(getNextCp());
+        public int execute(ExecutionContext context, int cp) {
+            return context.doJumpIfEq() ? getNextCp() : cp + 1;
         }
 
         @Override
@@ -450,8 +594,8 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) {
-            context.doJumpIfntEq(getNextCp());
+        public int execute(ExecutionContext context, int cp) {
+            return context.doJumpIfntEq() ? getNextCp() : cp + 1;
         }
 
         @Override
@@ -464,8 +608,8 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) {
-            context.doJumpIfGt(getNextCp());
+        public int execute(ExecutionContext context, int cp) {
+            return context.doJumpIfGt() ? getNextCp() : cp + 1;
         }
 
         @Override
@@ -478,8 +622,8 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) {
-            context.doJumpIfLe(getNextCp());
+        public int execute(ExecutionContext context, int cp) {
+            return context.doJumpIfLe() ? getNextCp() : cp + 1;
         }
 
         @Override
@@ -492,8 +636,8 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) {
-            context.doJumpIfLt(getNextCp());
+        public int execute(ExecutionContext context, int cp) {
+            return context.doJumpIfLt() ? getNextCp() : cp + 1;
         }
 
         @Override
@@ -506,8 +650,8 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) {
-            context.doJumpIfGe(getNextCp());
+        public int execute(ExecutionContext context, int cp) {
+            return context.doJumpIfGe() ? getNextCp() : cp + 1;
         }
 
         @Override
@@ -520,8 +664,8 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) {
-            context.doJumpIfNonZero(getNextCp());
+        public int execute(ExecutionContext context, int cp) {
+            return context.doJumpIfNonZero() ? getNextCp() : cp + 1;
         }
 
         @Override
@@ -534,8 +678,8 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) {
-            context.doJumpIfZero(getNextCp());
+        public int execute(ExecutionContext context, int cp) {
+            return context.doJumpIfZero() ? getNextCp() : cp + 1;
         }
 
         @Override
@@ -551,8 +695,8 @@ public interface InstructionImpls {
         public int opcode() { return IfNull; }
 
         @Override
-        public void execute(ExecutionContext context) {
-            context.doJumpIfNull(getNextCp());
+        public int execute(ExecutionContext context, int cp) {
+            return context.doJumpIfNull() ? getNextCp() : cp + 1;
         }
     }
 
@@ -562,8 +706,8 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) {
-            context.doJumpIfntNull(getNextCp());
+        public int execute(ExecutionContext context, int cp) {
+            return context.doJumpIfntNull() ? getNextCp() : cp + 1;
         }
 
         @Override
@@ -576,8 +720,8 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) {
-            context.doJumpIfPresent(getNextCp());
+        public int execute(ExecutionContext context, int cp) {
+            return context.doJumpIfPresent() ? getNextCp() : cp + 1;
         }
 
         @Override
@@ -590,8 +734,8 @@ public interface InstructionImpls {
         }
         
         @Override
-        public void execute(ExecutionContext context) {
-            context.doJumpIfAbsent(getNextCp());
+        public int execute(ExecutionContext context, int cp) {
+            return context.doJumpIfAbsent() ? getNextCp() : cp + 1;
         }
 
         @Override
@@ -610,7 +754,7 @@ public interface InstructionImpls {
         }
         
         @Override
-        public void execute(ExecutionContext context) { context.doLinearSwitch(labels, cps, defaultCp); }
+        public int execute(ExecutionContext context, int cp) { return context.doLinearSwitch(labels, cps, defaultCp); }
 
         @Override
         public int opcode() { return LinearSwitch; }
@@ -628,7 +772,7 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) { context.doBinarySwitch(labels, cps, defaultCp); }
+        public int execute(ExecutionContext context, int cp) { return context.doBinarySwitch(labels, cps, defaultCp); }
 
         @Override
         public int opcode() { return BinarySwitch; }
@@ -644,15 +788,40 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) { context.doCall(calleeId, argCount); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doCall(calleeId, argCount, cp + 1);
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Call; }
     }
 
+    class TailCall implements Instruction {
+        private final int calleeId;
+        private final int argCount;
+
+        public TailCall(int calleeId, int argCount) {
+            this.calleeId = calleeId;
+            this.argCount = argCount;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.doTailCall(calleeId, argCount, cp + 1);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return TailCall; }
+    }
+
     class Return implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doReturn(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doReturn();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Return; }
@@ -660,7 +829,10 @@ public interface InstructionImpls {
 
     class Leave implements Instruction {
         @Override
-        public void execute(ExecutionContext context) { context.doLeave(); }
+        public int execute(ExecutionContext context, int cp) {
+            context.doLeave();
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Leave; }
@@ -674,7 +846,10 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) { context.shareLoad(index); }
+        public int execute(ExecutionContext context, int cp) {
+            context.shareLoad(index);
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Shload; }
@@ -688,7 +863,10 @@ public interface InstructionImpls {
         }
 
         @Override
-        public void execute(ExecutionContext context) { context.shareStore(index); }
+        public int execute(ExecutionContext context, int cp) {
+            context.shareStore(index);
+            return cp + 1;
+        }
 
         @Override
         public int opcode() { return Shstore; }
@@ -0,0 +1,893 @@
+package jua.runtime.interpreter.instruction;
+
+import jua.runtime.interpreter.Address;
+import jua.runtime.interpreter.ExecutionContext;
+
+import static jua.runtime.interpreter.OPCodes.*;
+
+/**
+ * Регистровый набор инструкций.
+ * <p>
+ * Инструкции работают напрямую с регистрами фрейма в {@link jua.runtime.interpreter.ThreadMemory}, минуя стек.
+ * Операнды — номера регистров относительно начала фрейма: сначала идут локальные переменные,
+ * затем временные регистры. Стек используется только для передачи аргументов и результата вызова.
+ * Инструкции без операндов-регистров ({@code goto}, {@code inc}, {@code dec}, {@code leave})
+ * берутся из {@link InstructionImpls}.
+ * {@link Instruction#opcode()} возвращает опкод ближайшей по смыслу стековой инструкции.
+ */
+public interface RegisterInstructions {
+
+    /** {@code mov d, s} */
+    class Move implements Instruction {
+        private final int d;
+        private final int s;
+
+        public Move(int d, int s) {
+            this.d = d;
+            this.s = s;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regMove(d, s);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Load; }
+    }
+
+    /** {@code const d, value}. Значение не должно быть строкой: строки копируются при загрузке. */
+    class Const implements Instruction {
+        private final int d;
+        private final Address value;
+
+        public Const(int d, Address value) {
+            this.d = d;
+            this.value = value;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regConst(d, value);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Push; }
+    }
+
+    /** {@code ldc d, #cpi} */
+    class Ldc implements Instruction {
+        private final int d;
+        private final int cpi;
+
+        public Ldc(int d, int cpi) {
+            this.d = d;
+            this.cpi = cpi;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regLdc(d, cpi);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Push; }
+    }
+
+    /** {@code add d, a, b} */
+    class Add implements Instruction {
+        private final int d;
+        private final int a;
+        private final int b;
+
+        public Add(int d, int a, int b) {
+            this.d = d;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regAdd(d, a, b);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Add; }
+    }
+
+    /** {@code sub d, a, b} */
+    class Sub implements Instruction {
+        private final int d;
+        private final int a;
+        private final int b;
+
+        public Sub(int d, int a, int b) {
+            this.d = d;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regSub(d, a, b);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Sub; }
+    }
+
+    /** {@code mul d, a, b} */
+    class Mul implements Instruction {
+        private final int d;
+        private final int a;
+        private final int b;
+
+        public Mul(int d, int a, int b) {
+            this.d = d;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regMul(d, a, b);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Mul; }
+    }
+
+    /** {@code div d, a, b} */
+    class Div implements Instruction {
+        private final int d;
+        private final int a;
+        private final int b;
+
+        public Div(int d, int a, int b) {
+            this.d = d;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regDiv(d, a, b);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Div; }
+    }
+
+    /** {@code rem d, a, b} */
+    class Rem implements Instruction {
+        private final int d;
+        private final int a;
+        private final int b;
+
+        public Rem(int d, int a, int b) {
+            this.d = d;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regRem(d, a, b);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Rem; }
+    }
+
+    /** {@code and d, a, b} */
+    class And implements Instruction {
+        private final int d;
+        private final int a;
+        private final int b;
+
+        public And(int d, int a, int b) {
+            this.d = d;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regAnd(d, a, b);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return And; }
+    }
+
+    /** {@code or d, a, b} */
+    class Or implements Instruction {
+        private final int d;
+        private final int a;
+        private final int b;
+
+        public Or(int d, int a, int b) {
+            this.d = d;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regOr(d, a, b);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Or; }
+    }
+
+    /** {@code xor d, a, b} */
+    class Xor implements Instruction {
+        private final int d;
+        private final int a;
+        private final int b;
+
+        public Xor(int d, int a, int b) {
+            this.d = d;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regXor(d, a, b);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Xor; }
+    }
+
+    /** {@code shl d, a, b} */
+    class Shl implements Instruction {
+        private final int d;
+        private final int a;
+        private final int b;
+
+        public Shl(int d, int a, int b) {
+            this.d = d;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regShl(d, a, b);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Shl; }
+    }
+
+    /** {@code shr d, a, b} */
+    class Shr implements Instruction {
+        private final int d;
+        private final int a;
+        private final int b;
+
+        public Shr(int d, int a, int b) {
+            this.d = d;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regShr(d, a, b);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Shr; }
+    }
+
+    /** {@code <op> d, a, k}, где k — числовая константа. */
+    class BinaryConst implements Instruction {
+        private final int op;
+        private final int d;
+        private final int a;
+        private final Address k;
+
+        public BinaryConst(int op, int d, int a, Address k) {
+            this.op = op;
+            this.d = d;
+            this.a = a;
+            this.k = k;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regBinaryConst(op, d, a, k);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return op; }
+    }
+
+    /** {@code neg d, s} */
+    class Neg implements Instruction {
+        private final int d;
+        private final int s;
+
+        public Neg(int d, int s) {
+            this.d = d;
+            this.s = s;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regNeg(d, s);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Neg; }
+    }
+
+    /** {@code pos d, s} */
+    class Pos implements Instruction {
+        private final int d;
+        private final int s;
+
+        public Pos(int d, int s) {
+            this.d = d;
+            this.s = s;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regPos(d, s);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Pos; }
+    }
+
+    /** {@code not d, s} */
+    class Not implements Instruction {
+        private final int d;
+        private final int s;
+
+        public Not(int d, int s) {
+            this.d = d;
+            this.s = s;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regNot(d, s);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Not; }
+    }
+
+    /** {@code length d, s} */
+    class Length implements Instruction {
+        private final int d;
+        private final int s;
+
+        public Length(int d, int s) {
+            this.d = d;
+            this.s = s;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regLength(d, s);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Length; }
+    }
+
+    /** {@code aload d, a[k]} */
+    class ArrayLoad implements Instruction {
+        private final int d;
+        private final int a;
+        private final int k;
+
+        public ArrayLoad(int d, int a, int k) {
+            this.d = d;
+            this.a = a;
+            this.k = k;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regArrayLoad(d, a, k);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return ArrayLoad; }
+    }
+
+    /** {@code astore a[k], v} */
+    class ArrayStore implements Instruction {
+        private final int a;
+        private final int k;
+        private final int v;
+
+        public ArrayStore(int a, int k, int v) {
+            this.a = a;
+            this.k = k;
+            this.v = v;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regArrayStore(a, k, v);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return ArrayStore; }
+    }
+
+    /** {@code ainc d, a[k]}, в d записывается старое значение. */
+    class ArrayInc implements Instruction {
+        private final int d;
+        private final int a;
+        private final int k;
+
+        public ArrayInc(int d, int a, int k) {
+            this.d = d;
+            this.a = a;
+            this.k = k;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regArrayInc(d, a, k);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return ArrayInc; }
+    }
+
+    /** {@code adec d, a[k]}, в d записывается старое значение. */
+    class ArrayDec implements Instruction {
+        private final int d;
+        private final int a;
+        private final int k;
+
+        public ArrayDec(int d, int a, int k) {
+            this.d = d;
+            this.a = a;
+            this.k = k;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regArrayDec(d, a, k);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return ArrayDec; }
+    }
+
+    /** {@code newlist d, s} */
+    class NewList implements Instruction {
+        private final int d;
+        private final int s;
+
+        public NewList(int d, int s) {
+            this.d = d;
+            this.s = s;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regNewList(d, s);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return NewList; }
+    }
+
+    /** {@code newmap d} */
+    class NewMap implements Instruction {
+        private final int d;
+
+        public NewMap(int d) {
+            this.d = d;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regNewMap(d);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return NewMap; }
+    }
+
+    /** {@code ifeq a, b, L} */
+    class IfEq extends InstructionImpls.JumpInstruction {
+        private final int a;
+        private final int b;
+
+        public IfEq(int a, int b, int thenCp) {
+            super(thenCp);
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) { return context.regIfEq(a, b) ? getNextCp() : cp + 1; }
+
+        @Override
+        public int opcode() { return IfEq; }
+    }
+
+    /** {@code ifne a, b, L} */
+    class IfNe extends InstructionImpls.JumpInstruction {
+        private final int a;
+        private final int b;
+
+        public IfNe(int a, int b, int thenCp) {
+            super(thenCp);
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) { return context.regIfNe(a, b) ? getNextCp() : cp + 1; }
+
+        @Override
+        public int opcode() { return IfNe; }
+    }
+
+    /** {@code ifgt a, b, L} */
+    class IfGt extends InstructionImpls.JumpInstruction {
+        private final int a;
+        private final int b;
+
+        public IfGt(int a, int b, int thenCp) {
+            super(thenCp);
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) { return context.regIfGt(a, b) ? getNextCp() : cp + 1; }
+
+        @Override
+        public int opcode() { return IfGt; }
+    }
+
+    /** {@code ifge a, b, L} */
+    class IfGe extends InstructionImpls.JumpInstruction {
+        private final int a;
+        private final int b;
+
+        public IfGe(int a, int b, int thenCp) {
+            super(thenCp);
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) { return context.regIfGe(a, b) ? getNextCp() : cp + 1; }
+
+        @Override
+        public int opcode() { return IfGe; }
+    }
+
+    /** {@code iflt a, b, L} */
+    class IfLt extends InstructionImpls.JumpInstruction {
+        private final int a;
+        private final int b;
+
+        public IfLt(int a, int b, int thenCp) {
+            super(thenCp);
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) { return context.regIfLt(a, b) ? getNextCp() : cp + 1; }
+
+        @Override
+        public int opcode() { return IfLt; }
+    }
+
+    /** {@code ifle a, b, L} */
+    class IfLe extends InstructionImpls.JumpInstruction {
+        private final int a;
+        private final int b;
+
+        public IfLe(int a, int b, int thenCp) {
+            super(thenCp);
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) { return context.regIfLe(a, b) ? getNextCp() : cp + 1; }
+
+        @Override
+        public int opcode() { return IfLe; }
+    }
+
+    /** {@code <cond> a, k, L}, где k — числовая константа. */
+    class IfConst extends InstructionImpls.JumpInstruction {
+        private final int cond;
+        private final int a;
+        private final Address k;
+
+        public IfConst(int cond, int a, Address k, int thenCp) {
+            super(thenCp);
+            this.cond = cond;
+            this.a = a;
+            this.k = k;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) { return context.regIfConst(cond, a, k) ? getNextCp() : cp + 1; }
+
+        @Override
+        public int opcode() { return cond; }
+    }
+
+    /** {@code ifz s, L} */
+    class IfZ extends InstructionImpls.JumpInstruction {
+        private final int s;
+
+        public IfZ(int s, int thenCp) {
+            super(thenCp);
+            this.s = s;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) { return context.regIfZ(s) ? getNextCp() : cp + 1; }
+
+        @Override
+        public int opcode() { return IfZ; }
+    }
+
+    /** {@code ifnz s, L} */
+    class IfNz extends InstructionImpls.JumpInstruction {
+        private final int s;
+
+        public IfNz(int s, int thenCp) {
+            super(thenCp);
+            this.s = s;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) { return context.regIfNz(s) ? getNextCp() : cp + 1; }
+
+        @Override
+        public int opcode() { return IfNz; }
+    }
+
+    /** {@code ifnull s, L} */
+    class IfNull extends InstructionImpls.JumpInstruction {
+        private final int s;
+
+        public IfNull(int s, int thenCp) {
+            super(thenCp);
+            this.s = s;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) { return context.regIfNull(s) ? getNextCp() : cp + 1; }
+
+        @Override
+        public int opcode() { return IfNull; }
+    }
+
+    /** {@code ifnonnull s, L} */
+    class IfNonNull extends InstructionImpls.JumpInstruction {
+        private final int s;
+
+        public IfNonNull(int s, int thenCp) {
+            super(thenCp);
+            this.s = s;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) { return context.regIfNonNull(s) ? getNextCp() : cp + 1; }
+
+        @Override
+        public int opcode() { return IfNonNull; }
+    }
+
+    /** {@code ifpresent a[k], L} */
+    class IfPresent extends InstructionImpls.JumpInstruction {
+        private final int a;
+        private final int k;
+
+        public IfPresent(int a, int k, int thenCp) {
+            super(thenCp);
+            this.a = a;
+            this.k = k;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) { return context.regIfPresent(a, k) ? getNextCp() : cp + 1; }
+
+        @Override
+        public int opcode() { return IfPresent; }
+    }
+
+    /** {@code ifabsent a[k], L} */
+    class IfAbsent extends InstructionImpls.JumpInstruction {
+        private final int a;
+        private final int k;
+
+        public IfAbsent(int a, int k, int thenCp) {
+            super(thenCp);
+            this.a = a;
+            this.k = k;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) { return context.regIfAbsent(a, k) ? getNextCp() : cp + 1; }
+
+        @Override
+        public int opcode() { return IfAbsent; }
+    }
+
+    /** {@code call #callee, args...}. Результат остается на стеке и забирается следующей инструкцией {@link MoveResult}. */
+    class Call implements Instruction {
+        private final int calleeId;
+        private final int[] args;
+
+        public Call(int calleeId, int[] args) {
+            this.calleeId = calleeId;
+            this.args = args;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regCall(calleeId, args, cp + 1);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Call; }
+    }
+
+    /**
+     * {@code tailcall #callee, args...}. Переиспользует фрейм вызывающей функции.
+     * Если вызываемая функция нативная, результат забирается следующей инструкцией {@link MoveResult}.
+     */
+    class TailCall implements Instruction {
+        private final int calleeId;
+        private final int[] args;
+
+        public TailCall(int calleeId, int[] args) {
+            this.calleeId = calleeId;
+            this.args = args;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regTailCall(calleeId, args, cp + 1);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return TailCall; }
+    }
+
+    /** {@code movres d} */
+    class MoveResult implements Instruction {
+        private final int d;
+
+        public MoveResult(int d) {
+            this.d = d;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regMoveResult(d);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Store; }
+    }
+
+    /** {@code return s} */
+    class Return implements Instruction {
+        private final int s;
+
+        public Return(int s) {
+            this.s = s;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regReturn(s);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Return; }
+    }
+
+    /** {@code shload d, #index} */
+    class Shload implements Instruction {
+        private final int d;
+        private final int index;
+
+        public Shload(int d, int index) {
+            this.d = d;
+            this.index = index;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regShload(d, index);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Shload; }
+    }
+
+    /** {@code shstore #index, s} */
+    class Shstore implements Instruction {
+        private final int index;
+        private final int s;
+
+        public Shstore(int index, int s) {
+            this.index = index;
+            this.s = s;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.regShstore(index, s);
+            return cp + 1;
+        }
+
+        @Override
+        public int opcode() { return Shstore; }
+    }
+
+    /** Переход по таблице. Селектор кладется на стек, после чего выполняется стековая инструкция-переключатель. */
+    class Switch implements Instruction {
+        private final int s;
+        private final Instruction delegate;
+
+        public Switch(int s, Instruction delegate) {
+            this.s = s;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) { return context.regSwitch(s, delegate, cp); }
+
+        @Override
+        public int opcode() { return delegate.opcode(); }
+    }
+}
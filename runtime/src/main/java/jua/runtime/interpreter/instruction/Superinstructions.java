@@ -0,0 +1,134 @@
+package jua.runtime.interpreter.instruction;
+
+import jua.runtime.interpreter.Address;
+import jua.runtime.interpreter.ExecutionContext;
+
+import static jua.runtime.interpreter.OPCodes.*;
+
+/**
+ * Суперинструкции — частые последовательности инструкций, выполняемые за одну диспетчеризацию.
+ * <p>
+ * Суперинструкция заменяет только первую инструкцию последовательности, остальные остаются на своих
+ * местах, поэтому переходы внутрь последовательности и таблица строк остаются корректными.
+ * Выполнив последовательность, суперинструкция перескакивает через входящие в нее инструкции.
+ * {@link Instruction#opcode()} возвращает опкод первой инструкции последовательности.
+ */
+public interface Superinstructions {
+
+    /** {@code load a; load b} */
+    class LoadLoad implements Instruction {
+        private final int a, b;
+
+        public LoadLoad(int a, int b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.doLoadLoad(a, b);
+            return cp + 2;
+        }
+
+        @Override
+        public int opcode() { return Load; }
+    }
+
+    /** {@code load a; load b; aload} */
+    class LoadLoadArrayLoad implements Instruction {
+        private final int a, b;
+
+        public LoadLoadArrayLoad(int a, int b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.doLoadLoadArrayLoad(a, b);
+            return cp + 3;
+        }
+
+        @Override
+        public int opcode() { return Load; }
+    }
+
+    /** {@code load i; const c; <op>}, где op — бинарная арифметическая операция. */
+    class LoadConstOp implements Instruction {
+        private final int i;
+        private final Address c;
+        private final int op;
+
+        public LoadConstOp(int i, Address c, int op) {
+            this.i = i;
+            this.c = c;
+            this.op = op;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) {
+            context.doLoadConstOp(i, c, op);
+            return cp + 3;
+        }
+
+        @Override
+        public int opcode() { return Load; }
+    }
+
+    /** {@code load i; if<cond>} */
+    class LoadIf extends InstructionImpls.JumpInstruction {
+        private final int i;
+        private final int cond;
+
+        public LoadIf(int i, int cond, int thenCp) {
+            super(thenCp);
+            this.i = i;
+            this.cond = cond;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) { return context.doLoadIf(i, cond) ? getNextCp() : cp + 2; }
+
+        @Override
+        public int opcode() { return Load; }
+    }
+
+    /** {@code load a; load b; if<cond>} */
+    class LoadLoadIf extends InstructionImpls.JumpInstruction {
+        private final int a, b;
+        private final int cond;
+
+        public LoadLoadIf(int a, int b, int cond, int thenCp) {
+            super(thenCp);
+            this.a = a;
+            this.b = b;
+            this.cond = cond;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) { return context.doLoadLoadIf(a, b, cond) ? getNextCp() : cp + 3; }
+
+        @Override
+        public int opcode() { return Load; }
+    }
+
+    /** {@code load i; const c; if<cond>} */
+    class LoadConstIf extends InstructionImpls.JumpInstruction {
+        private final int i;
+        private final Address c;
+        private final int cond;
+
+        public LoadConstIf(int i, Address c, int cond, int thenCp) {
+            super(thenCp);
+            this.i = i;
+            this.c = c;
+            this.cond = cond;
+        }
+
+        @Override
+        public int execute(ExecutionContext context, int cp) { return context.doLoadConstIf(i, c, cond) ? getNextCp() : cp + 3; }
+
+        @Override
+        public int opcode() { return Load; }
+    }
+}
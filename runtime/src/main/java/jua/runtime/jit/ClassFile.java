@@ -0,0 +1,197 @@
+package jua.runtime.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Минимальный генератор class-файлов: пул констант, класс и его методы.
+ * <p>
+ * Класс генерируется с версией 49 (Java 5), для которой JVM не требует таблиц {@code StackMapTable}
+ * и проверяет код выводом типов.
+ */
+final class ClassFile {
+
+    private static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_Utf8 = 1;
+    private static final int CONSTANT_Integer = 3;
+    private static final int CONSTANT_Long = 5;
+    private static final int CONSTANT_Class = 7;
+    private static final int CONSTANT_Methodref = 10;
+    private static final int CONSTANT_InterfaceMethodref = 11;
+    private static final int CONSTANT_NameAndType = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndices = new HashMap<>();
+    private int poolCount = 1;
+
+    private final List<Method> methods = new ArrayList<>();
+
+    private static final class Method {
+        final int access, name, descriptor;
+        final CodeBuffer code;
+
+        Method(int access, int name, int descriptor, CodeBuffer code) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.code = code;
+        }
+    }
+
+    int utf8(String value) {
+        Integer index = poolIndices.get("U" + value);
+        if (index != null) return index;
+        try {
+            pool.writeByte(CONSTANT_Utf8);
+            pool.writeUTF(value);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return register("U" + value, 1);
+    }
+
+    int integer(int value) {
+        Integer index = poolIndices.get("I" + value);
+        if (index != null) return index;
+        try {
+            pool.writeByte(CONSTANT_Integer);
+            pool.writeInt(value);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return register("I" + value, 1);
+    }
+
+    int longConstant(long value) {
+        Integer index = poolIndices.get("J" + value);
+        if (index != null) return index;
+        try {
+            pool.writeByte(CONSTANT_Long);
+            pool.writeLong(value);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        // Константа типа long занимает две ячейки пула.
+        return register("J" + value, 2);
+    }
+
+    int classRef(String internalName) {
+        Integer index = poolIndices.get("C" + internalName);
+        if (index != null) return index;
+        int name = utf8(internalName);
+        writeEntry(CONSTANT_Class, name);
+        return register("C" + internalName, 1);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_Methodref, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_InterfaceMethodref, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        String key = "M" + tag + owner + '.' + name + descriptor;
+        Integer index = poolIndices.get(key);
+        if (index != null) return index;
+        int ownerIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        writeEntry(tag, ownerIndex, nameAndType);
+        return register(key, 1);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "N" + name + ':' + descriptor;
+        Integer index = poolIndices.get(key);
+        if (index != null) return index;
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        writeEntry(CONSTANT_NameAndType, nameIndex, descriptorIndex);
+        return register(key, 1);
+    }
+
+    private void writeEntry(int tag, int... u2) {
+        try {
+            pool.writeByte(tag);
+            for (int value : u2) pool.writeShort(value);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private int register(String key, int size) {
+        int index = poolCount;
+        poolCount += size;
+        if (poolCount > 0xFFFF) {
+            throw new JitBailout("constant pool overflow");
+        }
+        poolIndices.put(key, index);
+        return index;
+    }
+
+    void addMethod(int access, String name, String descriptor, CodeBuffer code) {
+        methods.add(new Method(access, utf8(name), utf8(descriptor), code));
+    }
+
+    byte[] toByteArray(String thisName, String superName, String... interfaces) {
+        int thisIndex = classRef(thisName);
+        int superIndex = classRef(superName);
+        int[] interfaceIndices = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceIndices[i] = classRef(interfaces[i]);
+        }
+        int codeAttribute = utf8("Code");
+        byte[][] codes = new byte[methods.size()][];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = methods.get(i).code.toByteArray();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaceIndices.length);
+            for (int index : interfaceIndices) out.writeShort(index);
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (int i = 0; i < codes.length; i++) {
+                Method method = methods.get(i);
+                out.writeShort(method.access);
+                out.writeShort(method.name);
+                out.writeShort(method.descriptor);
+                out.writeShort(1); // attributes
+                out.writeShort(codeAttribute);
+                out.writeInt(12 + codes[i].length);
+                out.writeShort(method.code.getMaxStack());
+                out.writeShort(method.code.getMaxLocals());
+                out.writeInt(codes[i].length);
+                out.write(codes[i]);
+                out.writeShort(0); // exception table
+                out.writeShort(0); // attributes
+            }
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,230 @@
+package jua.runtime.jit;
+
+import java.util.Arrays;
+
+/**
+ * Буфер байт-кода одного метода с поддержкой меток.
+ * <p>
+ * Смещения переходов записываются после привязки всех меток, в {@link #toByteArray()}.
+ * Переходы кодируются двумя байтами, поэтому размер метода ограничен 32 КБ.
+ */
+final class CodeBuffer {
+
+    static final int ICONST_0 = 3;
+    static final int LCONST_0 = 9;
+    static final int BIPUSH = 16;
+    static final int SIPUSH = 17;
+    static final int LDC_W = 19;
+    static final int LDC2_W = 20;
+    static final int ILOAD = 21;
+    static final int ALOAD = 25;
+    static final int AALOAD = 50;
+    static final int ISTORE = 54;
+    static final int ASTORE = 58;
+    static final int POP = 87;
+    static final int DUP = 89;
+    static final int IADD = 96;
+    static final int LADD = 97;
+    static final int ISUB = 100;
+    static final int LSUB = 101;
+    static final int LMUL = 105;
+    static final int IINC = 132;
+    static final int LCMP = 148;
+    static final int IFEQ = 153;
+    static final int IFNE = 154;
+    static final int IFLT = 155;
+    static final int IFGE = 156;
+    static final int IFGT = 157;
+    static final int IFLE = 158;
+    static final int IF_ICMPNE = 160;
+    static final int GOTO = 167;
+    static final int TABLESWITCH = 170;
+    static final int IRETURN = 172;
+    static final int RETURN = 177;
+    static final int INVOKEVIRTUAL = 182;
+    static final int INVOKESPECIAL = 183;
+    static final int NEW = 187;
+    static final int ATHROW = 191;
+
+    private static final int MAX_CODE_SIZE = Short.MAX_VALUE;
+
+    private final ClassFile classFile;
+
+    private byte[] code = new byte[256];
+    private int length = 0;
+
+    /** Адреса меток или -1, если метка еще не привязана. */
+    private int[] labels = new int[16];
+    private int labelCount = 0;
+
+    /** Тройки (адрес инструкции, адрес смещения, метка) для 2-байтовых и 4-байтовых смещений. */
+    private int[] fixups = new int[48];
+    private int fixupCount = 0;
+
+    private int maxStack, maxLocals;
+
+    CodeBuffer(ClassFile classFile) {
+        this.classFile = classFile;
+    }
+
+    void setMaxs(int maxStack, int maxLocals) {
+        this.maxStack = maxStack;
+        this.maxLocals = maxLocals;
+    }
+
+    int getMaxStack() { return maxStack; }
+
+    int getMaxLocals() { return maxLocals; }
+
+    int newLabel() {
+        if (labelCount == labels.length) {
+            labels = Arrays.copyOf(labels, labelCount * 2);
+        }
+        labels[labelCount] = -1;
+        return labelCount++;
+    }
+
+    void bind(int label) {
+        labels[label] = length;
+    }
+
+    void op(int opcode) {
+        u1(opcode);
+    }
+
+    void iconst(int value) {
+        if (value >= -1 && value <= 5) {
+            u1(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            u1(BIPUSH);
+            u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            u1(SIPUSH);
+            u2(value);
+        } else {
+            u1(LDC_W);
+            u2(classFile.integer(value));
+        }
+    }
+
+    void lconst(long value) {
+        if (value == 0L || value == 1L) {
+            u1(LCONST_0 + (int) value);
+        } else {
+            u1(LDC2_W);
+            u2(classFile.longConstant(value));
+        }
+    }
+
+    void iload(int local) { localOp(ILOAD, local); }
+
+    void istore(int local) { localOp(ISTORE, local); }
+
+    void aload(int local) { localOp(ALOAD, local); }
+
+    void astore(int local) { localOp(ASTORE, local); }
+
+    private void localOp(int opcode, int local) {
+        u1(opcode);
+        u1(local);
+    }
+
+    void iinc(int local, int delta) {
+        u1(IINC);
+        u1(local);
+        u1(delta);
+    }
+
+    void invokevirtual(String owner, String name, String descriptor) {
+        u1(INVOKEVIRTUAL);
+        u2(classFile.methodRef(owner, name, descriptor));
+    }
+
+    void invokespecial(String owner, String name, String descriptor) {
+        u1(INVOKESPECIAL);
+        u2(classFile.methodRef(owner, name, descriptor));
+    }
+
+    void anew(String internalName) {
+        u1(NEW);
+        u2(classFile.classRef(internalName));
+    }
+
+    void jump(int opcode, int label) {
+        int insn = length;
+        u1(opcode);
+        addFixup(insn, length, label);
+        u2(0);
+    }
+
+    void tableswitch(int low, int[] targets, int defaultLabel) {
+        int insn = length;
+        u1(TABLESWITCH);
+        while ((length & 3) != 0) u1(0);
+        addFixup(insn, length, ~defaultLabel);
+        u4(0);
+        u4(low);
+        u4(low + targets.length - 1);
+        for (int target : targets) {
+            addFixup(insn, length, ~target);
+            u4(0);
+        }
+    }
+
+    private void addFixup(int insn, int offset, int label) {
+        if (fixupCount + 3 > fixups.length) {
+            fixups = Arrays.copyOf(fixups, fixups.length * 2);
+        }
+        fixups[fixupCount++] = insn;
+        fixups[fixupCount++] = offset;
+        fixups[fixupCount++] = label;
+    }
+
+    private void u1(int value) {
+        if (length == code.length) {
+            if (length >= MAX_CODE_SIZE) {
+                throw new JitBailout("method too large");
+            }
+            code = Arrays.copyOf(code, length * 2);
+        }
+        code[length++] = (byte) value;
+    }
+
+    private void u2(int value) {
+        u1(value >> 8);
+        u1(value);
+    }
+
+    private void u4(int value) {
+        u2(value >> 16);
+        u2(value);
+    }
+
+    byte[] toByteArray() {
+        if (length > MAX_CODE_SIZE) {
+            throw new JitBailout("method too large");
+        }
+        for (int i = 0; i < fixupCount; i += 3) {
+            int insn = fixups[i];
+            int at = fixups[i + 1];
+            int label = fixups[i + 2];
+            // Отрицательная метка означает 4-байтовое смещение.
+            boolean wide = label < 0;
+            int target = labels[wide ? ~label : label];
+            if (target < 0) {
+                throw new IllegalStateException("unbound label");
+            }
+            int offset = target - insn;
+            if (wide) {
+                code[at] = (byte) (offset >> 24);
+                code[at + 1] = (byte) (offset >> 16);
+                code[at + 2] = (byte) (offset >> 8);
+                code[at + 3] = (byte) offset;
+            } else {
+                code[at] = (byte) (offset >> 8);
+                code[at + 1] = (byte) offset;
+            }
+        }
+        return Arrays.copyOf(code, length);
+    }
+}
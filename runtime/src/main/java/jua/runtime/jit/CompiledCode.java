@@ -0,0 +1,25 @@
+package jua.runtime.jit;
+
+import jua.runtime.code.ConstantPool;
+import jua.runtime.interpreter.Address;
+import jua.runtime.interpreter.ExecutionContext;
+import jua.runtime.interpreter.ThreadStack;
+
+/**
+ * Код функции, скомпилированный в байт-код JVM.
+ * <p>
+ * Выполнение можно начать с любой инструкции исходного кода, поэтому в скомпилированный код
+ * можно перейти из интерпретатора посреди цикла (OSR) и вернуться в него после вызова функции.
+ */
+public interface CompiledCode {
+
+    /**
+     * Выполняет код, начиная с инструкции {@code cp}, пока не будет выставлено сообщение потоку.
+     * Перед возвратом вершина стека записывается в {@code stack}.
+     *
+     * @return индекс инструкции, с которой следует продолжить выполнение, либо {@code ~cp},
+     * если проверка типов не прошла и инструкцию {@code cp} нужно выполнить в интерпретаторе.
+     */
+    int run(ExecutionContext context, ConstantPool constantPool, ThreadStack stack,
+            Address[] stk, Address[] regs, int regBase, int tos, int cp);
+}
@@ -0,0 +1,13 @@
+package jua.runtime.jit;
+
+/**
+ * Выбрасывается, если функцию не удается скомпилировать. Функция продолжает выполняться интерпретатором.
+ */
+final class JitBailout extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    JitBailout(String message) {
+        super(message, null, false, false);
+    }
+}
@@ -0,0 +1,117 @@
+package jua.runtime.jit;
+
+import jua.runtime.Function;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Компилирует горячие функции в байт-код JVM.
+ * <p>
+ * Функция считается горячей, если ее вызвали {@link #INVOCATION_THRESHOLD} раз или в ней выполнено
+ * {@link #BACKEDGE_THRESHOLD} обратных переходов. Компиляция выполняется в отдельном потоке,
+ * а пока она идет, функция продолжает выполняться интерпретатором. Готовый код записывается в функцию,
+ * и следующий вызов или обратный переход в интерпретаторе переходит в скомпилированный код.
+ * <p>
+ * Сначала код компилируется в предположении, что арифметика и сравнения выполняются над целыми числами.
+ * Если предположение не подтвердилось, код выбрасывается ({@link #deoptimize}),
+ * а функция перекомпилируется без предположений о типах.
+ */
+public final class JitCompiler {
+
+    public static final int INVOCATION_THRESHOLD = 1000;
+
+    public static final int BACKEDGE_THRESHOLD = 10000;
+
+    private static volatile boolean enabled = false;
+
+    private static ExecutorService executor;
+
+    /** Функции, компиляция которых уже запрошена. */
+    private static final Set<Function> requested = ConcurrentHashMap.newKeySet();
+
+    /** Функции, у которых не подтвердилось предположение о типах. */
+    private static final Set<Function> deoptimized = ConcurrentHashMap.newKeySet();
+
+    private static final AtomicInteger classCounter = new AtomicInteger();
+
+    public static synchronized void enable() {
+        if (enabled) return;
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "Jua JIT compiler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        enabled = true;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Вызывается при входе в пользовательскую функцию, если компилятор {@link #isEnabled() включен}. */
+    public static void onInvocation(Function fn) {
+        if (fn.countInvocation() == INVOCATION_THRESHOLD) {
+            requestCompilation(fn);
+        }
+    }
+
+    /**
+     * Вызывается интерпретатором, когда счетчик обратных переходов функции достиг {@link #BACKEDGE_THRESHOLD}.
+     * Возвращает {@code true}, если для функции уже есть скомпилированный код и в него можно перейти.
+     */
+    public static boolean onBackedge(Function fn) {
+        fn.resetBackedgeCounter();
+        requestCompilation(fn);
+        return fn.getCompiledCode() != null;
+    }
+
+    /**
+     * Выбрасывает скомпилированный код, в котором не подтвердилось предположение о типах,
+     * и запрашивает компиляцию без предположений.
+     */
+    public static void deoptimize(Function fn, CompiledCode code) {
+        if (fn.getCompiledCode() != code) return;
+        fn.setCompiledCode(null);
+        if (deoptimized.add(fn)) {
+            requested.remove(fn);
+            requestCompilation(fn);
+        }
+    }
+
+    private static void requestCompilation(Function fn) {
+        if (!enabled || !fn.getCode().isPacked()) return;
+        if (!requested.add(fn)) return;
+        boolean speculative = !deoptimized.contains(fn);
+        executor.execute(() -> compile(fn, speculative));
+    }
+
+    private static void compile(Function fn, boolean speculative) {
+        String className = "jua/jit/Compiled" + classCounter.incrementAndGet();
+        try {
+            byte[] bytes = new JitTranslator(fn.getCode(), speculative).translate(className);
+            Class<?> c = new CompiledCodeLoader().define(className.replace('/', '.'), bytes);
+            fn.setCompiledCode((CompiledCode) c.getDeclaredConstructor().newInstance());
+        } catch (JitBailout | ReflectiveOperationException | LinkageError e) {
+            // Функция остается в интерпретаторе. Повторно ее компиляция не запрашивается.
+            deoptimized.add(fn);
+        }
+    }
+
+    /** Каждый класс загружается своим загрузчиком, чтобы выброшенный код мог быть выгружен. */
+    private static final class CompiledCodeLoader extends ClassLoader {
+
+        CompiledCodeLoader() {
+            super(JitCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private JitCompiler() {} // A utility class
+}
@@ -0,0 +1,436 @@
+package jua.runtime.jit;
+
+import jua.runtime.Types;
+import jua.runtime.code.CodeData;
+import jua.runtime.code.PackedCode;
+import jua.runtime.interpreter.OPCodes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static jua.runtime.jit.CodeBuffer.*;
+
+/**
+ * Транслирует {@link CodeData#getPackedCode() упакованный код} функции в класс,
+ * реализующий {@link CompiledCode}.
+ * <p>
+ * Каждой инструкции соответствует шаблон байт-кода JVM, повторяющий соответствующую ветку
+ * {@code ExecutionContext.executePacked}. Метод начинается с таблицы переходов по индексу инструкции,
+ * поэтому выполнение можно начать с любой инструкции. Редкие инструкции выполняются через объектный код.
+ * <p>
+ * В спекулятивном режиме арифметика и сравнения считают операнды целыми числами.
+ * Если проверка типов не проходит, метод возвращает {@code ~cp} и выполнение продолжается в интерпретаторе.
+ */
+final class JitTranslator {
+
+    private static final String CONTEXT = "jua/runtime/interpreter/ExecutionContext";
+    private static final String ADDRESS = "jua/runtime/interpreter/Address";
+    private static final String STACK = "jua/runtime/interpreter/ThreadStack";
+    private static final String CONSTANT_POOL = "jua/runtime/code/ConstantPool";
+    private static final String COMPILED_CODE = "jua/runtime/jit/CompiledCode";
+
+    private static final String RUN_DESCRIPTOR = "(L" + CONTEXT + ";L" + CONSTANT_POOL + ";L" + STACK + ";"
+            + "[L" + ADDRESS + ";[L" + ADDRESS + ";III)I";
+
+    // Локальные переменные метода run.
+    private static final int CONTEXT_LOCAL = 1;
+    private static final int POOL_LOCAL = 2;
+    private static final int STACK_LOCAL = 3;
+    private static final int STK_LOCAL = 4;
+    private static final int REGS_LOCAL = 5;
+    private static final int RB_LOCAL = 6;
+    private static final int TOS_LOCAL = 7;
+    private static final int CP_LOCAL = 8;
+    private static final int LHS_LOCAL = 9;
+    private static final int RHS_LOCAL = 10;
+    private static final int MAX_LOCALS = 11;
+    private static final int MAX_STACK = 8;
+
+    private final ClassFile classFile = new ClassFile();
+    private final CodeBuffer code = new CodeBuffer(classFile);
+    private final int[] packed;
+    private final boolean speculative;
+
+    private int[] labels;
+    private int exitLabel;
+    /** Пары (метка заглушки, значение cp), которые выносятся в конец метода. */
+    private final List<int[]> stubs = new ArrayList<>();
+
+    JitTranslator(CodeData codeData, boolean speculative) {
+        this.packed = codeData.getPackedCode();
+        this.speculative = speculative;
+    }
+
+    byte[] translate(String className) {
+        classFile.addMethod(ClassFile.ACC_PUBLIC, "<init>", "()V", constructor());
+        classFile.addMethod(ClassFile.ACC_PUBLIC | ClassFile.ACC_FINAL, "run", RUN_DESCRIPTOR, run());
+        return classFile.toByteArray(className, "java/lang/Object", COMPILED_CODE);
+    }
+
+    private CodeBuffer constructor() {
+        CodeBuffer init = new CodeBuffer(classFile);
+        init.aload(0);
+        init.invokespecial("java/lang/Object", "<init>", "()V");
+        init.op(RETURN);
+        init.setMaxs(1, 1);
+        return init;
+    }
+
+    private CodeBuffer run() {
+        labels = new int[packed.length];
+        for (int cp = 0; cp < packed.length; cp++) {
+            labels[cp] = code.newLabel();
+        }
+        int dispatchLabel = code.newLabel();
+        int badLabel = code.newLabel();
+        exitLabel = code.newLabel();
+
+        code.bind(dispatchLabel);
+        code.iload(CP_LOCAL);
+        code.tableswitch(0, labels, badLabel);
+
+        for (int cp = 0; cp < packed.length; cp++) {
+            code.bind(labels[cp]);
+            translateInstruction(cp, dispatchLabel);
+        }
+
+        // Сюда управление не попадает: последняя инструкция функции всегда передает управление.
+        code.bind(badLabel);
+        code.anew("java/lang/IllegalStateException");
+        code.op(DUP);
+        code.invokespecial("java/lang/IllegalStateException", "<init>", "()V");
+        code.op(ATHROW);
+
+        for (int[] stub : stubs) {
+            code.bind(stub[0]);
+            code.iconst(stub[1]);
+            code.istore(CP_LOCAL);
+            code.jump(GOTO, exitLabel);
+        }
+
+        code.bind(exitLabel);
+        syncTos();
+        code.iload(CP_LOCAL);
+        code.op(IRETURN);
+
+        code.setMaxs(MAX_STACK, MAX_LOCALS);
+        return code;
+    }
+
+    private void translateInstruction(int cp, int dispatchLabel) {
+        int word = packed[cp];
+        int operand = PackedCode.operand(word);
+        switch (PackedCode.opcode(word)) {
+            case OPCodes.Nop:
+                break;
+            case OPCodes.ConstNull:
+                pushSlot();
+                code.invokevirtual(ADDRESS, "setNull", "()V");
+                break;
+            case OPCodes.ConstTrue:
+            case OPCodes.ConstFalse:
+                pushSlot();
+                code.iconst(PackedCode.opcode(word) == OPCodes.ConstTrue ? 1 : 0);
+                code.invokevirtual(ADDRESS, "set", "(Z)V");
+                break;
+            case OPCodes.ConstIntM1:
+            case OPCodes.ConstInt0:
+            case OPCodes.ConstInt1:
+            case OPCodes.ConstInt2:
+                pushSlot();
+                code.lconst(PackedCode.opcode(word) - OPCodes.ConstInt0);
+                code.invokevirtual(ADDRESS, "set", "(J)V");
+                break;
+            case OPCodes.Push:
+                code.aload(POOL_LOCAL);
+                code.iconst(operand);
+                pushSlot();
+                code.invokevirtual(CONSTANT_POOL, "load", "(IL" + ADDRESS + ";)V");
+                break;
+            case OPCodes.Dup:
+                code.aload(STK_LOCAL);
+                code.iload(TOS_LOCAL);
+                code.op(AALOAD);
+                slot(1);
+                code.invokevirtual(ADDRESS, "set", "(L" + ADDRESS + ";)V");
+                code.iinc(TOS_LOCAL, 1);
+                break;
+            case OPCodes.Pop:
+                code.iinc(TOS_LOCAL, -1);
+                break;
+            case OPCodes.Pop2:
+                code.iinc(TOS_LOCAL, -2);
+                break;
+            case OPCodes.Add:
+                if (speculative) {
+                    intIntOp(cp, LADD);
+                } else {
+                    binaryOp(cp, "add");
+                }
+                break;
+            case OPCodes.Sub:
+                if (speculative) {
+                    intIntOp(cp, LSUB);
+                } else {
+                    binaryOp(cp, "sub");
+                }
+                break;
+            case OPCodes.Mul:
+                if (speculative) {
+                    intIntOp(cp, LMUL);
+                } else {
+                    binaryOp(cp, "mul");
+                }
+                break;
+            case OPCodes.Div: binaryOp(cp, "div"); break;
+            case OPCodes.Rem: binaryOp(cp, "rem"); break;
+            case OPCodes.Shl: binaryOp(cp, "shl"); break;
+            case OPCodes.Shr: binaryOp(cp, "shr"); break;
+            case OPCodes.Length: unaryOp(cp, "length"); break;
+            case OPCodes.Neg: unaryOp(cp, "neg"); break;
+            case OPCodes.Not: unaryOp(cp, "not"); break;
+            case OPCodes.Load: load(operand); break;
+            // Остальные инструкции последовательности остаются на своих местах и транслируются отдельно.
+            case PackedCode.LOAD_LOAD:
+            case PackedCode.LOAD_LOAD_ARRAY_LOAD:
+            case PackedCode.LOAD_IF:
+            case PackedCode.LOAD_LOAD_IF:
+            case PackedCode.LOAD_CONST_IF:
+                load(PackedCode.fusedRegister(word));
+                break;
+            case OPCodes.Load0: load(0); break;
+            case OPCodes.Load1: load(1); break;
+            case OPCodes.Load2: load(2); break;
+            case OPCodes.Store: store(operand); break;
+            case OPCodes.Store0: store(0); break;
+            case OPCodes.Store1: store(1); break;
+            case OPCodes.Store2: store(2); break;
+            case OPCodes.Inc:
+            case OPCodes.Dec:
+                reg(operand);
+                code.invokevirtual(ADDRESS, PackedCode.opcode(word) == OPCodes.Inc ? "inc" : "dec", "()Z");
+                code.op(POP);
+                checkMsg(cp);
+                break;
+            case OPCodes.ArrayLoad:
+                binaryOp(cp, "load");
+                break;
+            case OPCodes.ArrayStore:
+                slot(3);
+                slot(2);
+                slot(1);
+                code.invokevirtual(ADDRESS, "store", "(L" + ADDRESS + ";L" + ADDRESS + ";)Z");
+                code.op(POP);
+                code.iinc(TOS_LOCAL, -3);
+                checkMsg(cp);
+                break;
+            case OPCodes.Goto:
+                code.jump(GOTO, labels[operand]);
+                break;
+            case OPCodes.IfEq: compare(cp, IFEQ, 1, operand); break;
+            case OPCodes.IfNe: compare(cp, IFNE, 1, operand); break;
+            case OPCodes.IfGt: compare(cp, IFGT, -1, operand); break;
+            case OPCodes.IfGe: compare(cp, IFGE, -1, operand); break;
+            case OPCodes.IfLt: compare(cp, IFLT, 1, operand); break;
+            case OPCodes.IfLe: compare(cp, IFLE, 1, operand); break;
+            case OPCodes.IfZ: test("booleanVal", IFEQ, operand); break;
+            case OPCodes.IfNz: test("booleanVal", IFNE, operand); break;
+            case OPCodes.IfNull: test("isNull", IFNE, operand); break;
+            case OPCodes.IfNonNull: test("isNull", IFEQ, operand); break;
+            case OPCodes.Call:
+                syncTos();
+                code.aload(CONTEXT_LOCAL);
+                code.iconst(PackedCode.calleeId(word));
+                code.iconst(PackedCode.callArgc(word));
+                code.iconst(cp + 1);
+                code.invokevirtual(CONTEXT, "doCall", "(III)V");
+                // Листовая нативная функция выполняется на месте, и скомпилированный код продолжает работу.
+                code.aload(STACK_LOCAL);
+                code.invokevirtual(STACK, "tos", "()I");
+                code.istore(TOS_LOCAL);
+                checkMsg(cp);
+                break;
+            case OPCodes.TailCall:
+                syncTos();
+                code.aload(CONTEXT_LOCAL);
+                code.iconst(PackedCode.calleeId(word));
+                code.iconst(PackedCode.callArgc(word));
+                code.iconst(cp + 1);
+                code.invokevirtual(CONTEXT, "doTailCall", "(III)V");
+                leave(cp);
+                break;
+            case OPCodes.Return:
+                syncTos();
+                code.aload(CONTEXT_LOCAL);
+                code.invokevirtual(CONTEXT, "doReturn", "()V");
+                leave(cp);
+                break;
+            case OPCodes.Leave:
+                syncTos();
+                code.aload(CONTEXT_LOCAL);
+                code.invokevirtual(CONTEXT, "doLeave", "()V");
+                leave(cp);
+                break;
+            default:
+                delegate(cp, dispatchLabel);
+        }
+    }
+
+    /** Кладет на стек JVM адрес {@code stk[tos++]}. */
+    private void pushSlot() {
+        code.aload(STK_LOCAL);
+        code.iload(TOS_LOCAL);
+        code.iinc(TOS_LOCAL, 1);
+        code.op(AALOAD);
+    }
+
+    /** Кладет на стек JVM адрес {@code stk[tos - depth]}. */
+    private void slot(int depth) {
+        code.aload(STK_LOCAL);
+        code.iload(TOS_LOCAL);
+        code.iconst(depth);
+        code.op(ISUB);
+        code.op(AALOAD);
+    }
+
+    /** Кладет на стек JVM адрес регистра {@code regs[rb + index]}. */
+    private void reg(int index) {
+        code.aload(REGS_LOCAL);
+        code.iload(RB_LOCAL);
+        code.iconst(index);
+        code.op(IADD);
+        code.op(AALOAD);
+    }
+
+    private void load(int index) {
+        pushSlot();
+        reg(index);
+        code.invokevirtual(ADDRESS, "set", "(L" + ADDRESS + ";)V");
+    }
+
+    private void store(int index) {
+        reg(index);
+        code.iinc(TOS_LOCAL, -1);
+        code.aload(STK_LOCAL);
+        code.iload(TOS_LOCAL);
+        code.op(AALOAD);
+        code.invokevirtual(ADDRESS, "set", "(L" + ADDRESS + ";)V");
+    }
+
+    /** {@code lhs.<method>(rhs, lhs)}, где lhs и rhs — два верхних значения стека. */
+    private void binaryOp(int cp, String method) {
+        slot(2);
+        slot(1);
+        slot(2);
+        code.invokevirtual(ADDRESS, method, "(L" + ADDRESS + ";L" + ADDRESS + ";)Z");
+        code.op(POP);
+        code.iinc(TOS_LOCAL, -1);
+        checkMsg(cp);
+    }
+
+    private void unaryOp(int cp, String method) {
+        slot(1);
+        code.op(DUP);
+        code.invokevirtual(ADDRESS, method, "(L" + ADDRESS + ";)Z");
+        code.op(POP);
+        checkMsg(cp);
+    }
+
+    /** Сохраняет два верхних значения стека в локальные переменные и проверяет, что оба целые. */
+    private void guardIntInt(int cp) {
+        int deopt = stub(~cp);
+        slot(2);
+        code.astore(LHS_LOCAL);
+        slot(1);
+        code.astore(RHS_LOCAL);
+        code.aload(LHS_LOCAL);
+        code.invokevirtual(ADDRESS, "getType", "()B");
+        code.iconst(Types.T_INT);
+        code.jump(IF_ICMPNE, deopt);
+        code.aload(RHS_LOCAL);
+        code.invokevirtual(ADDRESS, "getType", "()B");
+        code.iconst(Types.T_INT);
+        code.jump(IF_ICMPNE, deopt);
+    }
+
+    private void intIntOp(int cp, int longOp) {
+        guardIntInt(cp);
+        code.aload(LHS_LOCAL);
+        code.aload(LHS_LOCAL);
+        code.invokevirtual(ADDRESS, "getLong", "()J");
+        code.aload(RHS_LOCAL);
+        code.invokevirtual(ADDRESS, "getLong", "()J");
+        code.op(longOp);
+        code.invokevirtual(ADDRESS, "set", "(J)V");
+        code.iinc(TOS_LOCAL, -1);
+    }
+
+    private void compare(int cp, int ifOpcode, int unexpected, int target) {
+        if (speculative) {
+            guardIntInt(cp);
+            code.iinc(TOS_LOCAL, -2);
+            code.aload(LHS_LOCAL);
+            code.invokevirtual(ADDRESS, "getLong", "()J");
+            code.aload(RHS_LOCAL);
+            code.invokevirtual(ADDRESS, "getLong", "()J");
+            code.op(LCMP);
+        } else {
+            code.iinc(TOS_LOCAL, -2);
+            slot(0);
+            slot(-1);
+            code.iconst(unexpected);
+            code.invokevirtual(ADDRESS, "fastCompareWith", "(L" + ADDRESS + ";I)I");
+        }
+        code.jump(ifOpcode, labels[target]);
+    }
+
+    private void test(String method, int ifOpcode, int target) {
+        code.iinc(TOS_LOCAL, -1);
+        slot(0);
+        code.invokevirtual(ADDRESS, method, "()Z");
+        code.jump(ifOpcode, labels[target]);
+    }
+
+    /** Инструкции вызова и возврата всегда выставляют сообщение и передают управление циклу выполнения. */
+    private void leave(int cp) {
+        code.iconst(cp + 1);
+        code.op(IRETURN);
+    }
+
+    /** Выполняет редкую инструкцию через объектный код и переходит по адресу, который она выставила. */
+    private void delegate(int cp, int dispatchLabel) {
+        syncTos();
+        code.aload(CONTEXT_LOCAL);
+        code.iconst(cp);
+        code.invokevirtual(CONTEXT, "executeInstruction", "(I)I");
+        code.istore(CP_LOCAL);
+        code.aload(STACK_LOCAL);
+        code.invokevirtual(STACK, "tos", "()I");
+        code.istore(TOS_LOCAL);
+        code.aload(CONTEXT_LOCAL);
+        code.invokevirtual(CONTEXT, "getMsg", "()I");
+        code.jump(IFNE, exitLabel);
+        code.iload(CP_LOCAL);
+        code.iconst(cp + 1);
+        code.jump(IF_ICMPNE, dispatchLabel);
+    }
+
+    /** Выходит из метода, если инструкция выставила сообщение (например, об ошибке). */
+    private void checkMsg(int cp) {
+        code.aload(CONTEXT_LOCAL);
+        code.invokevirtual(CONTEXT, "getMsg", "()I");
+        code.jump(IFNE, stub(cp + 1));
+    }
+
+    private void syncTos() {
+        code.aload(STACK_LOCAL);
+        code.iload(TOS_LOCAL);
+        code.invokevirtual(STACK, "tos", "(I)V");
+    }
+
+    private int stub(int cp) {
+        int label = code.newLabel();
+        stubs.add(new int[] {label, cp});
+        return label;
+    }
+}
@@ -0,0 +1,35 @@
+package jua.runtime.tree;
+
+import jua.runtime.interpreter.Address;
+
+/**
+ * Узел выражения.
+ * <p>
+ * Значение выражения записывается в адрес, который предоставляет родительский узел.
+ * Узлы, значение которых уже где-то хранится (переменные и литералы), могут вернуть этот адрес
+ * из {@link #ref} без копирования. Изменять такой адрес нельзя.
+ */
+public abstract class ExprNode {
+
+    /** Вычисляет значение выражения в {@code res}. */
+    abstract void eval(TreeFrame f, Address res);
+
+    /**
+     * Вычисляет значение выражения и возвращает адрес, в котором оно лежит: {@code scratch},
+     * слот переменной или адрес константы.
+     */
+    Address ref(TreeFrame f, Address scratch) {
+        eval(f, scratch);
+        return scratch;
+    }
+
+    /** Вычисляет выражение как условие. */
+    boolean test(TreeFrame f, Address scratch) {
+        return ref(f, scratch).booleanVal();
+    }
+
+    /** Вычисляет выражение, значение которого не используется. */
+    void discard(TreeFrame f, Address scratch) {
+        eval(f, scratch);
+    }
+}
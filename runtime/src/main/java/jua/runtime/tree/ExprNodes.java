@@ -0,0 +1,703 @@
+package jua.runtime.tree;
+
+import jua.runtime.Function;
+import jua.runtime.JuaEnvironment;
+import jua.runtime.Types;
+import jua.runtime.heap.ListHeap;
+import jua.runtime.heap.MapHeap;
+import jua.runtime.interpreter.Address;
+import jua.runtime.interpreter.AddressSupport;
+
+import static jua.runtime.Operations.isResultFailure;
+import static jua.runtime.Operations.isResultTrue;
+import static jua.runtime.interpreter.InterpreterThread.threadError;
+
+/**
+ * Узлы выражений.
+ * <p>
+ * Числовые параметры конструкторов с именами {@code tmp} и {@code argBase} это номера слотов
+ * для промежуточных значений, {@code line} это номер строки для трассировки стека.
+ * Семантика узлов повторяет инструкции, которые генерирует для того же дерева компилятор.
+ */
+public interface ExprNodes {
+
+    class Literal extends ExprNode {
+        final Address value = new Address();
+
+        public Literal(Object value) {
+            AddressSupport.assignObject(this.value, value);
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            res.set(value);
+        }
+
+        @Override
+        Address ref(TreeFrame f, Address scratch) {
+            return value;
+        }
+    }
+
+    class Local extends ExprNode {
+        final int slot;
+
+        public Local(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            res.set(f.slots[slot]);
+        }
+
+        @Override
+        Address ref(TreeFrame f, Address scratch) {
+            return f.slots[slot];
+        }
+    }
+
+    /**
+     * Копирует значение выражения. Нужен, когда следующий за выражением операнд может изменить переменную,
+     * адрес которой вернул бы {@link ExprNode#ref}.
+     */
+    class Snapshot extends ExprNode {
+        final ExprNode expr;
+
+        public Snapshot(ExprNode expr) {
+            this.expr = expr;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            expr.eval(f, res);
+        }
+    }
+
+    class ListLiteral extends ExprNode {
+        final ExprNode[] entries;
+        final int tmp;
+
+        public ListLiteral(ExprNode[] entries, int tmp) {
+            this.entries = entries;
+            this.tmp = tmp;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            ListHeap list = new ListHeap(entries.length);
+            for (int i = 0; i < entries.length; i++) {
+                list.set(i, entries[i].ref(f, f.slots[tmp]));
+            }
+            res.set(list);
+        }
+    }
+
+    class MapLiteral extends ExprNode {
+        final ExprNode[] keys, values;
+        final int tmp;
+        final int line;
+
+        /** Занимает слоты {@code tmp} и {@code tmp + 1}. */
+        public MapLiteral(ExprNode[] keys, ExprNode[] values, int tmp, int line) {
+            this.keys = keys;
+            this.values = values;
+            this.tmp = tmp;
+            this.line = line;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            MapHeap map = new MapHeap();
+            for (int i = 0; i < keys.length; i++) {
+                // Ключ копируется: значение может изменить переменную, из которой он прочитан.
+                Address k = f.slots[tmp];
+                keys[i].eval(f, k);
+                if (!MapHeap.isKeyType(k.getType())) {
+                    threadError("Cannot use %s as map key", k.getTypeName());
+                    throw f.crash(line);
+                }
+                map.put(k, values[i].ref(f, f.slots[tmp + 1]));
+            }
+            res.set(map);
+        }
+    }
+
+    class Index extends ExprNode {
+        final ExprNode expr, index;
+        final int tmp, line;
+
+        public Index(ExprNode expr, ExprNode index, int tmp, int line) {
+            this.expr = expr;
+            this.index = index;
+            this.tmp = tmp;
+            this.line = line;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            Address a = expr.ref(f, res);
+            Address k = index.ref(f, f.slots[tmp]);
+            if (!a.load(k, res)) throw f.crash(line);
+        }
+    }
+
+    class AssignLocal extends ExprNode {
+        final int slot;
+        final ExprNode expr;
+
+        public AssignLocal(int slot, ExprNode expr) {
+            this.slot = slot;
+            this.expr = expr;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            Address v = expr.ref(f, res);
+            f.slots[slot].set(v);
+            if (v != res) res.set(v);
+        }
+
+        @Override
+        void discard(TreeFrame f, Address scratch) {
+            f.slots[slot].set(expr.ref(f, scratch));
+        }
+    }
+
+    class AssignIndex extends ExprNode {
+        final ExprNode expr, index, value;
+        final int tmp, line;
+
+        /** Занимает слоты {@code tmp} и {@code tmp + 1}. */
+        public AssignIndex(ExprNode expr, ExprNode index, ExprNode value, int tmp, int line) {
+            this.expr = expr;
+            this.index = index;
+            this.value = value;
+            this.tmp = tmp;
+            this.line = line;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            Address a = expr.ref(f, f.slots[tmp]);
+            Address k = index.ref(f, f.slots[tmp + 1]);
+            Address v = value.ref(f, res);
+            if (!a.store(k, v)) throw f.crash(line);
+            if (v != res) res.set(v);
+        }
+    }
+
+    /** Составное присваивание элементу списка, например {@code a[i] += x}. */
+    class UpdateIndex extends ExprNode {
+        final ExprNode expr, index, value;
+        final Binary op;
+        final int tmp;
+
+        /** Занимает слоты с {@code tmp} по {@code tmp + 2}. */
+        public UpdateIndex(ExprNode expr, ExprNode index, Binary op, ExprNode value, int tmp) {
+            this.expr = expr;
+            this.index = index;
+            this.op = op;
+            this.value = value;
+            this.tmp = tmp;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            Address a = expr.ref(f, f.slots[tmp]);
+            Address k = index.ref(f, f.slots[tmp + 1]);
+            Address e = f.slots[tmp + 2];
+            if (!a.load(k, e)) throw f.crash(op.line);
+            Address v = value.ref(f, res);
+            if (!op.apply(e, v, e)) throw f.crash(op.line);
+            if (!a.store(k, e)) throw f.crash(op.line);
+            res.set(e);
+        }
+    }
+
+    class CoalesceAssignLocal extends ExprNode {
+        final int slot;
+        final ExprNode expr;
+
+        public CoalesceAssignLocal(int slot, ExprNode expr) {
+            this.slot = slot;
+            this.expr = expr;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            Address var = f.slots[slot];
+            if (var.isNull()) {
+                var.set(expr.ref(f, res));
+            }
+            res.set(var);
+        }
+    }
+
+    class CoalesceAssignIndex extends ExprNode {
+        final ExprNode expr, index, value;
+        final int tmp, line;
+
+        /** Занимает слоты {@code tmp} и {@code tmp + 1}. */
+        public CoalesceAssignIndex(ExprNode expr, ExprNode index, ExprNode value, int tmp, int line) {
+            this.expr = expr;
+            this.index = index;
+            this.value = value;
+            this.tmp = tmp;
+            this.line = line;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            Address a = expr.ref(f, f.slots[tmp]);
+            Address k = index.ref(f, f.slots[tmp + 1]);
+            int present = a.contains(k);
+            if (isResultFailure(present)) throw f.crash(line);
+            if (isResultTrue(present)) {
+                if (!a.load(k, res)) throw f.crash(line);
+                return;
+            }
+            Address v = value.ref(f, res);
+            if (!a.store(k, v)) throw f.crash(line);
+            if (v != res) res.set(v);
+        }
+    }
+
+    class IncreaseLocal extends ExprNode {
+        final int slot;
+        final boolean increment, prefix;
+        final int line;
+
+        public IncreaseLocal(int slot, boolean increment, boolean prefix, int line) {
+            this.slot = slot;
+            this.increment = increment;
+            this.prefix = prefix;
+            this.line = line;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            Address var = f.slots[slot];
+            if (!prefix) res.set(var);
+            if (!(increment ? var.inc() : var.dec())) throw f.crash(line);
+            if (prefix) res.set(var);
+        }
+
+        @Override
+        void discard(TreeFrame f, Address scratch) {
+            Address var = f.slots[slot];
+            if (!(increment ? var.inc() : var.dec())) throw f.crash(line);
+        }
+    }
+
+    class IncreaseIndex extends ExprNode {
+        final ExprNode expr, index;
+        final boolean increment, prefix;
+        final int tmp, line;
+
+        /** Занимает слоты {@code tmp} и {@code tmp + 1}. */
+        public IncreaseIndex(ExprNode expr, ExprNode index, boolean increment, boolean prefix, int tmp, int line) {
+            this.expr = expr;
+            this.index = index;
+            this.increment = increment;
+            this.prefix = prefix;
+            this.tmp = tmp;
+            this.line = line;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            Address a = expr.ref(f, f.slots[tmp]);
+            Address k = index.ref(f, f.slots[tmp + 1]);
+            // Как и инструкции ainc/adec, оставляет старое значение элемента.
+            if (!(increment ? a.arrayInc(k, res) : a.arrayDec(k, res))) throw f.crash(line);
+            if (prefix && !a.load(k, res)) throw f.crash(line);
+        }
+
+        @Override
+        void discard(TreeFrame f, Address scratch) {
+            Address a = expr.ref(f, f.slots[tmp]);
+            Address k = index.ref(f, f.slots[tmp + 1]);
+            if (!(increment ? a.arrayInc(k, scratch) : a.arrayDec(k, scratch))) throw f.crash(line);
+        }
+    }
+
+    /**
+     * Бинарная арифметическая или битовая операция.
+     * Левый операнд вычисляется прямо в адрес результата, правый во временный слот.
+     */
+    abstract class Binary extends ExprNode {
+        final ExprNode lhs, rhs;
+        final int tmp, line;
+
+        Binary(ExprNode lhs, ExprNode rhs, int tmp, int line) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+            this.tmp = tmp;
+            this.line = line;
+        }
+
+        abstract boolean apply(Address l, Address r, Address res);
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            Address l = lhs.ref(f, res);
+            Address r = rhs.ref(f, f.slots[tmp]);
+            if (!apply(l, r, res)) throw f.crash(line);
+        }
+    }
+
+    class Add extends Binary {
+        public Add(ExprNode lhs, ExprNode rhs, int tmp, int line) { super(lhs, rhs, tmp, line); }
+
+        @Override
+        boolean apply(Address l, Address r, Address res) { return l.add(r, res); }
+    }
+
+    class Sub extends Binary {
+        public Sub(ExprNode lhs, ExprNode rhs, int tmp, int line) { super(lhs, rhs, tmp, line); }
+
+        @Override
+        boolean apply(Address l, Address r, Address res) { return l.sub(r, res); }
+    }
+
+    class Mul extends Binary {
+        public Mul(ExprNode lhs, ExprNode rhs, int tmp, int line) { super(lhs, rhs, tmp, line); }
+
+        @Override
+        boolean apply(Address l, Address r, Address res) { return l.mul(r, res); }
+    }
+
+    class Div extends Binary {
+        public Div(ExprNode lhs, ExprNode rhs, int tmp, int line) { super(lhs, rhs, tmp, line); }
+
+        @Override
+        boolean apply(Address l, Address r, Address res) { return l.div(r, res); }
+    }
+
+    class Rem extends Binary {
+        public Rem(ExprNode lhs, ExprNode rhs, int tmp, int line) { super(lhs, rhs, tmp, line); }
+
+        @Override
+        boolean apply(Address l, Address r, Address res) { return l.rem(r, res); }
+    }
+
+    class Shl extends Binary {
+        public Shl(ExprNode lhs, ExprNode rhs, int tmp, int line) { super(lhs, rhs, tmp, line); }
+
+        @Override
+        boolean apply(Address l, Address r, Address res) { return l.shl(r, res); }
+    }
+
+    class Shr extends Binary {
+        public Shr(ExprNode lhs, ExprNode rhs, int tmp, int line) { super(lhs, rhs, tmp, line); }
+
+        @Override
+        boolean apply(Address l, Address r, Address res) { return l.shr(r, res); }
+    }
+
+    class And extends Binary {
+        public And(ExprNode lhs, ExprNode rhs, int tmp, int line) { super(lhs, rhs, tmp, line); }
+
+        @Override
+        boolean apply(Address l, Address r, Address res) { return l.and(r, res); }
+    }
+
+    class Or extends Binary {
+        public Or(ExprNode lhs, ExprNode rhs, int tmp, int line) { super(lhs, rhs, tmp, line); }
+
+        @Override
+        boolean apply(Address l, Address r, Address res) { return l.or(r, res); }
+    }
+
+    class Xor extends Binary {
+        public Xor(ExprNode lhs, ExprNode rhs, int tmp, int line) { super(lhs, rhs, tmp, line); }
+
+        @Override
+        boolean apply(Address l, Address r, Address res) { return l.xor(r, res); }
+    }
+
+    class Neg extends ExprNode {
+        final ExprNode expr;
+        final int line;
+
+        public Neg(ExprNode expr, int line) {
+            this.expr = expr;
+            this.line = line;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            if (!expr.ref(f, res).neg(res)) throw f.crash(line);
+        }
+    }
+
+    class Pos extends ExprNode {
+        final ExprNode expr;
+        final int line;
+
+        public Pos(ExprNode expr, int line) {
+            this.expr = expr;
+            this.line = line;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            if (!expr.ref(f, res).pos(res)) throw f.crash(line);
+        }
+    }
+
+    class BitNot extends ExprNode {
+        final ExprNode expr;
+        final int line;
+
+        public BitNot(ExprNode expr, int line) {
+            this.expr = expr;
+            this.line = line;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            if (!expr.ref(f, res).not(res)) throw f.crash(line);
+        }
+    }
+
+    /** Выражение, значение которого вычисляется как условие. */
+    abstract class Condition extends ExprNode {
+
+        @Override
+        abstract boolean test(TreeFrame f, Address scratch);
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            res.set(test(f, res));
+        }
+    }
+
+    /**
+     * Сравнение. Несравнимые значения дают такой же результат, как переход в ветку {@code else}
+     * в скомпилированном условии.
+     */
+    abstract class Compare extends Condition {
+        final ExprNode lhs, rhs;
+        final int tmp;
+
+        Compare(ExprNode lhs, ExprNode rhs, int tmp) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+            this.tmp = tmp;
+        }
+
+        abstract boolean compare(Address l, Address r);
+
+        @Override
+        boolean test(TreeFrame f, Address scratch) {
+            Address l = lhs.ref(f, scratch);
+            Address r = rhs.ref(f, f.slots[tmp]);
+            return compare(l, r);
+        }
+    }
+
+    class Eq extends Compare {
+        public Eq(ExprNode lhs, ExprNode rhs, int tmp) { super(lhs, rhs, tmp); }
+
+        @Override
+        boolean compare(Address l, Address r) { return l.fastCompareWith(r, 1) == 0; }
+    }
+
+    class Ne extends Compare {
+        public Ne(ExprNode lhs, ExprNode rhs, int tmp) { super(lhs, rhs, tmp); }
+
+        @Override
+        boolean compare(Address l, Address r) { return l.fastCompareWith(r, 1) != 0; }
+    }
+
+    class Lt extends Compare {
+        public Lt(ExprNode lhs, ExprNode rhs, int tmp) { super(lhs, rhs, tmp); }
+
+        @Override
+        boolean compare(Address l, Address r) { return l.fastCompareWith(r, -1) < 0; }
+    }
+
+    class Le extends Compare {
+        public Le(ExprNode lhs, ExprNode rhs, int tmp) { super(lhs, rhs, tmp); }
+
+        @Override
+        boolean compare(Address l, Address r) { return l.fastCompareWith(r, -1) <= 0; }
+    }
+
+    class Gt extends Compare {
+        public Gt(ExprNode lhs, ExprNode rhs, int tmp) { super(lhs, rhs, tmp); }
+
+        @Override
+        boolean compare(Address l, Address r) { return l.fastCompareWith(r, 1) > 0; }
+    }
+
+    class Ge extends Compare {
+        public Ge(ExprNode lhs, ExprNode rhs, int tmp) { super(lhs, rhs, tmp); }
+
+        @Override
+        boolean compare(Address l, Address r) { return l.fastCompareWith(r, 1) >= 0; }
+    }
+
+    class CondAnd extends Condition {
+        final ExprNode lhs, rhs;
+
+        public CondAnd(ExprNode lhs, ExprNode rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        boolean test(TreeFrame f, Address scratch) {
+            return lhs.test(f, scratch) && rhs.test(f, scratch);
+        }
+    }
+
+    class CondOr extends Condition {
+        final ExprNode lhs, rhs;
+
+        public CondOr(ExprNode lhs, ExprNode rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        boolean test(TreeFrame f, Address scratch) {
+            return lhs.test(f, scratch) || rhs.test(f, scratch);
+        }
+    }
+
+    class CondNot extends Condition {
+        final ExprNode expr;
+
+        public CondNot(ExprNode expr) {
+            this.expr = expr;
+        }
+
+        @Override
+        boolean test(TreeFrame f, Address scratch) {
+            return !expr.test(f, scratch);
+        }
+    }
+
+    /** Условие, которое компилятор строит для {@code x == null}. Как и в байт-коде, истинно для не-{@code null}. */
+    class NullCheck extends Condition {
+        final ExprNode expr;
+
+        public NullCheck(ExprNode expr) {
+            this.expr = expr;
+        }
+
+        @Override
+        boolean test(TreeFrame f, Address scratch) {
+            return !expr.ref(f, scratch).isNull();
+        }
+    }
+
+    class Coalesce extends ExprNode {
+        final ExprNode lhs, rhs;
+
+        public Coalesce(ExprNode lhs, ExprNode rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            Address v = ref(f, res);
+            if (v != res) res.set(v);
+        }
+
+        @Override
+        Address ref(TreeFrame f, Address scratch) {
+            Address v = lhs.ref(f, scratch);
+            return v.isNull() ? rhs.ref(f, scratch) : v;
+        }
+    }
+
+    class Conditional extends ExprNode {
+        final ExprNode cond, ths, fhs;
+
+        public Conditional(ExprNode cond, ExprNode ths, ExprNode fhs) {
+            this.cond = cond;
+            this.ths = ths;
+            this.fhs = fhs;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            (cond.test(f, res) ? ths : fhs).eval(f, res);
+        }
+
+        @Override
+        Address ref(TreeFrame f, Address scratch) {
+            return (cond.test(f, scratch) ? ths : fhs).ref(f, scratch);
+        }
+    }
+
+    class Length extends ExprNode {
+        final ExprNode expr;
+        final int line;
+
+        public Length(ExprNode expr, int line) {
+            this.expr = expr;
+            this.line = line;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            if (!expr.ref(f, res).length(res)) throw f.crash(line);
+        }
+    }
+
+    class NewList extends ExprNode {
+        final ExprNode size;
+        final int line;
+
+        public NewList(ExprNode size, int line) {
+            this.size = size;
+            this.line = line;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            Address s = size.ref(f, res);
+            long a;
+            if (!s.hasType(Types.T_INT) || (a = s.getLong()) < 0 || Integer.MAX_VALUE < a) {
+                threadError("List size must be an unsigned 32-bit integer");
+                throw f.crash(line);
+            }
+            res.set(new ListHeap((int) a));
+        }
+    }
+
+    class Call extends ExprNode {
+        final String name;
+        final ExprNode[] args;
+        final int argBase, line;
+
+        /** Функция разрешается по имени при первом вызове. */
+        Function callee;
+
+        /** Аргументы вычисляются в слоты, начиная с {@code argBase}. */
+        public Call(String name, ExprNode[] args, int argBase, int line) {
+            this.name = name;
+            this.args = args;
+            this.argBase = argBase;
+            this.line = line;
+        }
+
+        @Override
+        void eval(TreeFrame f, Address res) {
+            for (int i = 0; i < args.length; i++) {
+                args[i].eval(f, f.slots[argBase + i]);
+            }
+            Function fn = callee;
+            if (fn == null) {
+                fn = callee = JuaEnvironment.getEnvironment().lookupFunction(name);
+            }
+            TreeCode.invoke(f, fn, argBase, args.length, res, line);
+        }
+    }
+}
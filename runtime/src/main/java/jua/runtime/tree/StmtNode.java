@@ -0,0 +1,16 @@
+package jua.runtime.tree;
+
+/**
+ * Узел оператора. Результатом выполнения является способ, которым оператор завершился.
+ */
+public abstract class StmtNode {
+
+    static final int NORMAL = 0;
+    static final int BREAK = 1;
+    static final int CONTINUE = 2;
+    static final int RETURN = 3;
+    /** Функция завершается хвостовым вызовом, см. {@link StmtNodes.TailCall}. */
+    static final int TAIL_CALL = 4;
+
+    abstract int execute(TreeFrame f);
+}
@@ -0,0 +1,171 @@
+package jua.runtime.tree;
+
+import jua.runtime.Function;
+import jua.runtime.JuaEnvironment;
+
+/**
+ * Узлы операторов. Параметр {@code tmp} это номер слота, в который вычисляются выражения оператора.
+ */
+public interface StmtNodes {
+
+    class Block extends StmtNode {
+        final StmtNode[] stats;
+
+        public Block(StmtNode[] stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        int execute(TreeFrame f) {
+            for (StmtNode stat : stats) {
+                int completion = stat.execute(f);
+                if (completion != NORMAL) return completion;
+            }
+            return NORMAL;
+        }
+    }
+
+    class If extends StmtNode {
+        final ExprNode cond;
+        final StmtNode thenbody, elsebody;
+        final int tmp;
+
+        /** {@code elsebody} может быть {@code null}. */
+        public If(ExprNode cond, StmtNode thenbody, StmtNode elsebody, int tmp) {
+            this.cond = cond;
+            this.thenbody = thenbody;
+            this.elsebody = elsebody;
+            this.tmp = tmp;
+        }
+
+        @Override
+        int execute(TreeFrame f) {
+            if (cond.test(f, f.slots[tmp])) {
+                return thenbody.execute(f);
+            }
+            return elsebody == null ? NORMAL : elsebody.execute(f);
+        }
+    }
+
+    /** Цикл с предусловием или постусловием. Инициализация цикла {@code for} выполняется отдельным оператором. */
+    class Loop extends StmtNode {
+        final ExprNode cond;
+        final ExprNode[] step;
+        final StmtNode body;
+        final boolean testFirst;
+        final int tmp;
+
+        /** {@code cond} может быть {@code null}, тогда цикл бесконечный. */
+        public Loop(ExprNode cond, ExprNode[] step, StmtNode body, boolean testFirst, int tmp) {
+            this.cond = cond;
+            this.step = step;
+            this.body = body;
+            this.testFirst = testFirst;
+            this.tmp = tmp;
+        }
+
+        @Override
+        int execute(TreeFrame f) {
+            if (testFirst && !test(f)) return NORMAL;
+            do {
+                int completion = body.execute(f);
+                if (completion == BREAK) break;
+                if (completion == RETURN || completion == TAIL_CALL) return completion;
+                for (ExprNode s : step) {
+                    s.discard(f, f.slots[tmp]);
+                }
+            } while (test(f));
+            return NORMAL;
+        }
+
+        private boolean test(TreeFrame f) {
+            return cond == null || cond.test(f, f.slots[tmp]);
+        }
+    }
+
+    class Break extends StmtNode {
+        @Override
+        int execute(TreeFrame f) { return BREAK; }
+    }
+
+    class Continue extends StmtNode {
+        @Override
+        int execute(TreeFrame f) { return CONTINUE; }
+    }
+
+    class Return extends StmtNode {
+        final ExprNode expr;
+
+        /** {@code expr} может быть {@code null}, тогда функция возвращает {@code null}. */
+        public Return(ExprNode expr) {
+            this.expr = expr;
+        }
+
+        @Override
+        int execute(TreeFrame f) {
+            if (expr == null) {
+                f.result.setNull();
+            } else {
+                expr.eval(f, f.result);
+            }
+            return RETURN;
+        }
+    }
+
+    /**
+     * Возврат результата вызова в хвостовой позиции. Узел только вычисляет аргументы,
+     * а пользовательскую функцию вызывает {@link TreeCode} после выхода из тела, в том же фрейме потока.
+     */
+    class TailCall extends StmtNode {
+        final String name;
+        final ExprNode[] args;
+        final int argBase, line;
+
+        /** Функция разрешается по имени при первом вызове. */
+        Function callee;
+
+        /** Аргументы вычисляются в слоты, начиная с {@code argBase}. */
+        public TailCall(String name, ExprNode[] args, int argBase, int line) {
+            this.name = name;
+            this.args = args;
+            this.argBase = argBase;
+            this.line = line;
+        }
+
+        @Override
+        int execute(TreeFrame f) {
+            for (int i = 0; i < args.length; i++) {
+                args[i].eval(f, f.slots[argBase + i]);
+            }
+            Function fn = callee;
+            if (fn == null) {
+                fn = callee = JuaEnvironment.getEnvironment().lookupFunction(name);
+            }
+            if (!fn.isUserDefined()) {
+                TreeCode.invoke(f, fn, argBase, args.length, f.result, line);
+                return RETURN;
+            }
+            f.frame.setLineNumber(line);
+            f.tailCallee = fn;
+            f.tailArgBase = argBase;
+            f.tailArgc = args.length;
+            return TAIL_CALL;
+        }
+    }
+
+    class Discard extends StmtNode {
+        final ExprNode expr;
+        final int tmp;
+
+        public Discard(ExprNode expr, int tmp) {
+            this.expr = expr;
+            this.tmp = tmp;
+        }
+
+        @Override
+        int execute(TreeFrame f) {
+            expr.discard(f, f.slots[tmp]);
+            return NORMAL;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package jua.runtime.tree;
+
+import jua.runtime.Function;
+import jua.runtime.interpreter.Address;
+import jua.runtime.interpreter.AddressUtils;
+import jua.runtime.interpreter.InterpreterFrame;
+import jua.runtime.interpreter.InterpreterThread;
+import jua.runtime.interpreter.ThreadMemory;
+
+import java.util.Arrays;
+
+/**
+ * Тело функции, оттранслированное из синтаксического дерева в дерево исполняемых узлов.
+ * <p>
+ * Каждый узел сам выполняет свою часть работы и вызывает дочерние узлы, поэтому выполнение не требует
+ * ни декодирования инструкций, ни стека операндов. Вызовы между такими функциями выполняются рекурсивно,
+ * без возврата в цикл потока, а хвостовые вызовы — в цикле, без роста стека JVM.
+ * <p>
+ * Поэтому поток, который выполняет деревья, должен иметь стек JVM размером {@link #stackSize(int)}
+ * на всю глубину вызовов. Глубина ограничена {@link #MAX_CALL_DEPTH}, чтобы стек не превысил {@link #MAX_STACK_SIZE}.
+ */
+public final class TreeCode {
+
+    /** Стек JVM на один вызов с запасом на глубоко вложенные выражения. */
+    public static final long STACK_PER_CALL = 4 * 1024;
+
+    /** Наибольший стек JVM потока, который выполняет деревья. */
+    public static final long MAX_STACK_SIZE = 1024L * 1024 * 1024;
+
+    /** Наибольшая глубина вызовов при выполнении деревьями. */
+    public static final int MAX_CALL_DEPTH = (int) (MAX_STACK_SIZE / STACK_PER_CALL);
+
+    /** Возвращает размер стека JVM, достаточный для глубины вызовов {@code maxCallDepth}. */
+    public static long stackSize(int maxCallDepth) {
+        return Math.min(maxCallDepth, MAX_CALL_DEPTH) * STACK_PER_CALL;
+    }
+
+    private final StmtNode body;
+
+    private final int slotCount;
+
+    /**
+     * Фреймы, освободившиеся после возврата из функции. Вызовы вкладываются стопкой,
+     * поэтому фрейм на глубине рекурсии {@code depth} переиспользуется следующим вызовом на той же глубине.
+     * Пул рассчитан на то, что функции выполняет один поток интерпретатора.
+     */
+    private TreeFrame[] frames = new TreeFrame[4];
+    private int depth = 0;
+
+    public TreeCode(StmtNode body, int slotCount) {
+        this.body = body;
+        this.slotCount = slotCount;
+    }
+
+    /**
+     * Выполняет функцию, аргументы которой уже лежат в регистрах потока.
+     * Возвращает {@code true}, если функция завершилась без ошибок.
+     */
+    public boolean execute(InterpreterThread thread, InterpreterFrame frame, ThreadMemory memory, Address result) {
+        Function fn = frame.getFunction();
+        TreeFrame f = acquireFrame(thread, frame);
+        int argc = fn.getMaxArgc();
+        for (int i = 0; i < argc; i++) {
+            f.slots[i].set(memory.get(i));
+        }
+        try {
+            f = runCalls(this, f);
+        } catch (TreeCrash e) {
+            return false;
+        } catch (StackOverflowError e) {
+            // Стек JVM может закончиться раньше максимальной глубины, если выражения вложены глубже,
+            // чем рассчитывает STACK_PER_CALL, или поток создан не с тем стеком.
+            // Фреймы остаются на месте, как и при любой другой ошибке.
+            thread.error("stack overflow: call depth exceeds %d", thread.getCallDepth());
+            return false;
+        }
+        result.set(f.result);
+        // Регистры фрейма потока открывала исходная функция, их и закрывает цикл потока.
+        frame.setFunction(fn);
+        return true;
+    }
+
+    private TreeFrame acquireFrame(InterpreterThread thread, InterpreterFrame frame) {
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, depth * 2);
+        }
+        TreeFrame f = frames[depth];
+        if (f == null || f.thread != thread) {
+            f = frames[depth] = new TreeFrame(thread, slotCount);
+        }
+        f.frame = frame;
+        depth++;
+        return f;
+    }
+
+    private int run(TreeFrame f) {
+        f.result.setNull();
+        return body.execute(f);
+    }
+
+    /**
+     * Выполняет функцию и ее хвостовые вызовы. Вызываемая функция занимает фрейм потока вызывающей,
+     * поэтому глубина вызовов не растет, а вызывающая функция пропадает из трассировки стека.
+     * Фрейм дерева освобождается до того, как займется фрейм вызываемой функции, поэтому при хвостовой рекурсии
+     * аргументы переносятся внутри одного фрейма: слоты аргументов лежат за локальными переменными.
+     * Возвращает фрейм дерева с результатом последней функции, уже освобожденный.
+     */
+    private static TreeFrame runCalls(TreeCode code, TreeFrame f) {
+        while (code.run(f) == StmtNode.TAIL_CALL) {
+            Function fn = f.tailCallee;
+            TreeCode next = fn.getTreeCode();
+            code.depth--;
+            TreeFrame g = next.acquireFrame(f.thread, f.frame);
+            int argc = f.tailArgc;
+            for (int i = 0; i < argc; i++) {
+                g.slots[i].set(f.slots[f.tailArgBase + i]);
+            }
+            for (int i = argc; i < fn.getMaxArgc(); i++) {
+                g.slots[i].set(fn.getDefaults()[i - fn.getMinArgc()]);
+            }
+            f.frame.setFunction(fn);
+            code = next;
+            f = g;
+        }
+        code.depth--;
+        return f;
+    }
+
+    /**
+     * Вызывает функцию из дерева. Аргументы лежат в слотах вызывающего фрейма, начиная с {@code argBase}.
+     */
+    static void invoke(TreeFrame caller, Function fn, int argBase, int argc, Address res, int line) {
+        caller.frame.setLineNumber(line);
+        InterpreterThread thread = caller.thread;
+        if (fn.isLeaf()) {
+            if (!thread.invokeLeaf(fn, caller.slots, argBase, argc, res)) {
+                throw TreeCrash.INSTANCE;
+            }
+            return;
+        }
+        InterpreterFrame frame = thread.pushCallFrame(fn);
+        if (frame == null) {
+            throw TreeCrash.INSTANCE;
+        }
+        if (fn.isUserDefined()) {
+            TreeCode code = fn.getTreeCode();
+            TreeFrame f = code.acquireFrame(thread, frame);
+            for (int i = 0; i < argc; i++) {
+                f.slots[i].set(caller.slots[argBase + i]);
+            }
+            for (int i = argc; i < fn.getMaxArgc(); i++) {
+                f.slots[i].set(fn.getDefaults()[i - fn.getMinArgc()]);
+            }
+            res.set(runCalls(code, f).result);
+        } else {
+            Address[] args = AddressUtils.allocateMemory(fn.getMaxArgc(), 0);
+            for (int i = 0; i < argc; i++) {
+                args[i].set(caller.slots[argBase + i]);
+            }
+            for (int i = argc; i < fn.getMaxArgc(); i++) {
+                args[i].set(fn.getDefaults()[i - fn.getMinArgc()]);
+            }
+            if (!fn.nativeExecutor().execute(args, argc, res)) {
+                // Фрейм нативной функции остается, как и при ошибке в цикле потока.
+                throw TreeCrash.INSTANCE;
+            }
+        }
+        thread.popCallFrame();
+    }
+}
@@ -0,0 +1,16 @@
+package jua.runtime.tree;
+
+/**
+ * Выбрасывается узлом дерева после ошибки выполнения, чтобы прервать выполнение до {@link TreeCode#execute}.
+ * Сообщение об ошибке к этому моменту уже передано потоку.
+ */
+final class TreeCrash extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    static final TreeCrash INSTANCE = new TreeCrash();
+
+    private TreeCrash() {
+        super(null, null, false, false);
+    }
+}
@@ -0,0 +1,40 @@
+package jua.runtime.tree;
+
+import jua.runtime.Function;
+import jua.runtime.interpreter.Address;
+import jua.runtime.interpreter.AddressUtils;
+import jua.runtime.interpreter.InterpreterFrame;
+import jua.runtime.interpreter.InterpreterThread;
+
+/**
+ * Фрейм функции, которая выполняется деревом.
+ * <p>
+ * Первые слоты занимают локальные переменные в порядке их номеров, за ними идут слоты для промежуточных значений.
+ * Номера слотов назначаются при трансляции дерева, поэтому узлы обращаются к ним по индексу.
+ */
+final class TreeFrame {
+
+    final InterpreterThread thread;
+
+    /** Фрейм потока. Нужен для трассировки стека. */
+    InterpreterFrame frame;
+
+    final Address[] slots;
+
+    final Address result = new Address();
+
+    /** Функция хвостового вызова и ее аргументы в {@link #slots}. Действительны после {@link StmtNode#TAIL_CALL}. */
+    Function tailCallee;
+    int tailArgBase, tailArgc;
+
+    TreeFrame(InterpreterThread thread, int slotCount) {
+        this.thread = thread;
+        this.slots = AddressUtils.allocateMemory(slotCount, 0);
+    }
+
+    /** Запоминает строку, на которой произошла ошибка, и возвращает исключение для выхода из дерева. */
+    TreeCrash crash(int line) {
+        frame.setLineNumber(line);
+        return TreeCrash.INSTANCE;
+    }
+}
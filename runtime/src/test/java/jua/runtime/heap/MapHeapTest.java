@@ -0,0 +1,168 @@
+package jua.runtime.heap;
+
+import jua.runtime.interpreter.Address;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MapHeapTest {
+
+    private static Address of(long value) {
+        Address a = new Address();
+        a.set(value);
+        return a;
+    }
+
+    private static Address of(double value) {
+        Address a = new Address();
+        a.set(value);
+        return a;
+    }
+
+    private static Address of(String value) {
+        Address a = new Address();
+        a.set(new StringHeap(value));
+        return a;
+    }
+
+    private static long get(MapHeap map, Address key) {
+        Address value = new Address();
+        assertTrue("missing key " + key.getLong(), map.get(key, value));
+        return value.getLong();
+    }
+
+    private static List<Long> keys(MapHeap map) {
+        ListHeap list = map.keys();
+        List<Long> keys = new ArrayList<>();
+        Address key = new Address();
+        for (int i = 0; i < list.length(); i++) {
+            list.get(i, key);
+            keys.add(key.getLong());
+        }
+        return keys;
+    }
+
+    /**
+     * Случайные вставки и удаления на небольшом множестве ключей: цепочки пробирования длинные,
+     * записи часто вытесняются и сдвигаются назад, а таблица уплотняется и растет.
+     */
+    @Test
+    public void matchesLinkedHashMapUnderRandomOperations() {
+        Random random = new Random(42);
+        MapHeap map = new MapHeap();
+        Map<Long, Long> model = new LinkedHashMap<>();
+        Address value = new Address();
+        for (int step = 0; step < 200_000; step++) {
+            long k = random.nextInt(512);
+            switch (random.nextInt(3)) {
+                case 0:
+                    map.put(of(k), of((long) step));
+                    model.put(k, (long) step);
+                    break;
+                case 1:
+                    boolean removed = map.remove(of(k), value);
+                    assertEquals(model.containsKey(k), removed);
+                    if (removed) {
+                        assertEquals((long) model.remove(k), value.getLong());
+                    }
+                    break;
+                default:
+                    assertEquals(model.containsKey(k), map.containsKey(of(k)));
+            }
+            assertEquals(model.size(), map.size());
+        }
+        for (Map.Entry<Long, Long> e : model.entrySet()) {
+            assertEquals((long) e.getValue(), get(map, of(e.getKey())));
+        }
+        assertEquals(new ArrayList<>(model.keySet()), keys(map));
+    }
+
+    @Test
+    public void keepsKeysThatCollideInTheIndex() {
+        // Ключи, кратные степени двойки, у плохого хеша попадали бы в одну ячейку.
+        MapHeap map = new MapHeap();
+        for (long k = 0; k < 10_000; k++) {
+            map.put(of(k << 20), of(k));
+        }
+        for (long k = 0; k < 10_000; k += 2) {
+            assertTrue(map.remove(of(k << 20), new Address()));
+        }
+        assertEquals(5_000, map.size());
+        for (long k = 0; k < 10_000; k++) {
+            assertEquals(k % 2 != 0, map.containsKey(of(k << 20)));
+        }
+    }
+
+    @Test
+    public void reinsertedKeyGoesToTheEnd() {
+        MapHeap map = new MapHeap();
+        map.put(of(1), of(10));
+        map.put(of(2), of(20));
+        map.put(of(1), of(11));
+        assertEquals(2, map.size());
+        assertEquals(11, get(map, of(1)));
+        map.remove(of(1), new Address());
+        map.put(of(1), of(12));
+        List<Long> expected = new ArrayList<>();
+        expected.add(2L);
+        expected.add(1L);
+        assertEquals(expected, keys(map));
+    }
+
+    @Test
+    public void integerAndEqualFloatAreOneKey() {
+        MapHeap map = new MapHeap();
+        map.put(of(3), of(1));
+        map.put(of(3.0), of(2));
+        assertEquals(1, map.size());
+        assertEquals(2, get(map, of(3)));
+        assertFalse(map.containsKey(of(3.5)));
+    }
+
+    @Test
+    public void nanIsNotEqualToAnyKey() {
+        MapHeap map = new MapHeap();
+        map.put(of(Double.NaN), of(1));
+        assertFalse(map.containsKey(of(Double.NaN)));
+    }
+
+    @Test
+    public void stringKeysCompareByContent() {
+        MapHeap map = new MapHeap();
+        StringHeap rope = new StringHeap("a".concat(new String(new char[40]).replace('\0', 'b')))
+                .concat(new StringHeap("c"));
+        Address key = new Address();
+        key.set(rope);
+        map.put(key, of(1));
+        assertEquals(1, get(map, of(rope.toString())));
+        assertFalse(map.containsKey(of("a")));
+    }
+
+    @Test
+    public void rejectsMutableKeys() {
+        MapHeap map = new MapHeap();
+        Address list = new Address();
+        list.set(new ListHeap(0));
+        Address nested = new Address();
+        nested.set(new MapHeap());
+        try {
+            map.put(list, of(1));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            map.put(nested, of(1));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, map.size());
+        assertFalse(map.containsKey(list));
+        assertFalse(map.remove(nested, new Address()));
+    }
+}
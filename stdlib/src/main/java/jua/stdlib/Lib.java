@@ -1,6 +1,7 @@
 package jua.stdlib;
 
 import jua.runtime.Function;
+import jua.runtime.Types;
 import jua.runtime.heap.ListHeap;
 import jua.runtime.heap.StringHeap;
 import jua.runtime.interpreter.Address;
@@ -8,8 +9,10 @@ import jua.runtime.interpreter.Histogram;
 import jua.runtime.interpreter.InterpreterThread;
 import jua.stdlib.util.ObjectSizeAnalyzing;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 
 import static jua.stdlib.SignatureBuilder.builder;
 
@@ -17,6 +20,7 @@ public class Lib {
 
     private static final Function print = builder()
             .name("print")
+            .leaf()
             .optional()
             .optional("value", "")
             .callable((context, args, returnAddress) -> {
@@ -28,6 +32,7 @@ public class Lib {
 
     private static final Function println = builder()
             .name("println")
+            .leaf()
             .optional()
             .optional("value", "")
             .callable((context, args, returnAddress) -> {
@@ -51,6 +56,7 @@ public class Lib {
 
     private static final Function hashCode = builder()
             .name("hashCode")
+            .leaf()
             .param("value")
             .callable((context, args, returnAddress) -> {
                 returnAddress.set(args[0].hashCode());
@@ -59,6 +65,7 @@ public class Lib {
 
     private static final Function strCharAt = builder()
             .name("strCharAt")
+            .leaf()
             .param("str")
             .param("index")
             .callable((context, args, returnAddress) -> {
@@ -72,29 +79,18 @@ public class Lib {
             })
             .build();
 
-    private static final Function strCodePointAt = builder()
-            .name("strCodePointAt")
-            .param("str")
-            .param("index")
-            .callable((context, args, returnAddress) -> {
-                StringHeap str = args[0].getStringHeap();
-                long index = args[1].getLong();
-                if (index < 0 || index >= str.length()) {
-                    returnAddress.set(-1);
-                    return;
-                }
-                returnAddress.set(str.codePointAt((int) index));
-            })
-            .build();
-
     private static final Function strToCharArray = builder()
             .name("strToCharArray")
+            .leaf()
             .param("str")
             .callable((context, args, returnAddress) -> {
                 StringHeap str = args[0].getStringHeap();
-                ListHeap charArray = new ListHeap(str.length());
+                ListHeap charArray = new ListHeap(0);
+                charArray.ensureCapacity(str.length());
+                Address element = new Address();
                 for (int codePoint : str.codePoints().toArray()) {
-                    charArray.add().set(new StringHeap(new StringBuilder().appendCodePoint(codePoint)));
+                    element.set(new StringHeap(new StringBuilder().appendCodePoint(codePoint)));
+                    charArray.push(element);
                 }
                 returnAddress.set(charArray);
             })
@@ -102,12 +98,16 @@ public class Lib {
 
     private static final Function strToCodePointArray = builder()
             .name("strToCodePointArray")
+            .leaf()
             .param("str")
             .callable((context, args, returnAddress) -> {
                 StringHeap str = args[0].getStringHeap();
-                ListHeap codePointArray = new ListHeap(str.length());
+                ListHeap codePointArray = new ListHeap(0);
+                codePointArray.ensureCapacity(str.length());
+                Address element = new Address();
                 for (int codePoint : str.codePoints().toArray()) {
-                    codePointArray.add().set(codePoint);
+                    element.set(codePoint);
+                    codePointArray.push(element);
                 }
                 returnAddress.set(codePointArray);
             })
@@ -115,33 +115,43 @@ public class Lib {
 
     private static final Function charArrayToStr = builder()
             .name("charArrayToStr")
+            .leaf()
             .param("charArray")
             .callable((context, args, returnAddress) -> {
                 ListHeap charArray = args[0].getListHeap();
-                StringHeap str = new StringHeap("", 0, charArray.length());
+                StringBuilder str = new StringBuilder(charArray.length());
                 for (int i = 0; i < charArray.length(); i++) {
-                    str.append(charArray.get(i).getStringHeap());
+                    if (charArray.getType(i) != Types.T_STRING) {
+                        context.error("charArrayToStr: element %d must be string, got %s",
+                                i, Types.getTypeName(charArray.getType(i)));
+                    }
+                    str.append((StringHeap) charArray.getHeap(i));
                 }
-                returnAddress.set(str);
+                returnAddress.set(new StringHeap(str));
             })
             .build();
 
     private static final Function codePointArrayToStr = builder()
             .name("codePointArrayToStr")
+            .leaf()
             .param("codePointArray")
             .callable((context, args, returnAddress) -> {
                 ListHeap codePointArray = args[0].getListHeap();
-                StringHeap str = new StringHeap("", 0, codePointArray.length());
+                StringBuilder str = new StringBuilder(codePointArray.length());
                 for (int i = 0; i < codePointArray.length(); i++) {
-                    int codePoint = (int) codePointArray.get(i).getLong();
-                    str.append(new StringHeap(new StringBuilder().appendCodePoint(codePoint)));
+                    if (codePointArray.getType(i) != Types.T_INT) {
+                        context.error("codePointArrayToStr: element %d must be int, got %s",
+                                i, Types.getTypeName(codePointArray.getType(i)));
+                    }
+                    str.appendCodePoint((int) codePointArray.getBits(i));
                 }
-                returnAddress.set(str);
+                returnAddress.set(new StringHeap(str));
             })
             .build();
 
     private static final Function time = builder()
             .name("time")
+            .leaf()
             .callable((context, args, returnAddress) -> {
                 returnAddress.set(System.currentTimeMillis() / 1000.0);
             })
@@ -149,6 +159,7 @@ public class Lib {
 
     private static final Function dummy = builder()
             .name("dummy")
+            .leaf()
             .callable((context, args, returnAddress) -> {
                 returnAddress.setNull();
             })
@@ -182,25 +193,9 @@ public class Lib {
             })
             .build();
 
-    private static final Function ord = builder()
-            .name("ord")
-            .param("char")
-            .callable((context, args, returnAddress) -> {
-                returnAddress.set(args[0].getStringHeap().codePointAt(0));
-            })
-            .build();
-
-    private static final Function chr = builder()
-            .name("chr")
-            .param("codePoint")
-            .callable((context, args, returnAddress) -> {
-                int codePoint = (int) args[0].getLong();
-                returnAddress.set(new StringHeap(new StringBuilder().appendCodePoint(codePoint)));
-            })
-            .build();
-
     private static final Function typeof = builder()
             .name("typeof")
+            .leaf()
             .param("value")
             .callable((context, args, returnAddress) -> {
                 returnAddress.set(new StringHeap(args[0].getTypeName()));
@@ -209,6 +204,7 @@ public class Lib {
 
     private static final Function substr = builder()
             .name("substr")
+            .leaf()
             .param("str")
             .param("offset")
             .optional()
@@ -236,35 +232,9 @@ public class Lib {
             })
             .build();
 
-    private static final Function strLowerCase = builder()
-            .name("strLowerCase")
-            .param("str")
-            .callable((context, args, returnAddress) -> {
-                StringHeap str = args[0].getStringHeap();
-                returnAddress.set(new StringHeap(str.toString().toLowerCase()));
-            })
-            .build();
-
-    private static final Function strUpperCase = builder()
-            .name("strUpperCase")
-            .param("str")
-            .callable((context, args, returnAddress) -> {
-                StringHeap str = args[0].getStringHeap();
-                returnAddress.set(new StringHeap(str.toString().toUpperCase()));
-            })
-            .build();
-
-    private static final Function strTrim = builder()
-            .name("strTrim")
-            .param("str")
-            .callable((context, args, returnAddress) -> {
-                StringHeap str = args[0].getStringHeap();
-                returnAddress.set(new StringHeap(str.toString().trim()));
-            })
-            .build();
-
     private static final Function sizeof = builder()
             .name("sizeof")
+            .leaf()
             .param("value")
             .callable((context, args, returnAddress) -> {
                 returnAddress.set(ObjectSizeAnalyzing.analyzeSize(args[0]));
@@ -292,21 +262,13 @@ public class Lib {
 
     private static final Function clone = builder()
             .name("clone")
+            .leaf()
             .param("value")
             .callable((context, args, returnAddress) -> {
                 args[0].clone(returnAddress);
             })
             .build();
 
-    private static final Function sqrt = builder()
-            .name("sqrt")
-            .param("x")
-            .callable((context, args, returnAddress) -> {
-                args[0].doubleVal(returnAddress);
-                returnAddress.set(Math.sqrt(returnAddress.getDouble()));
-            })
-            .build();
-
     private static final Function printStack = builder()
             .name("print_stack")
             .callable((context, args, returnAddress) -> {
@@ -319,13 +281,12 @@ public class Lib {
 
 
     public static Collection<Function> getFunctions() {
-        return Arrays.asList(
+        List<Function> functions = new ArrayList<>(Arrays.asList(
                 print,
                 println,
                 panic,
                 hashCode,
                 strCharAt,
-                strCodePointAt,
                 strToCharArray,
                 strToCodePointArray,
                 charArrayToStr,
@@ -334,18 +295,14 @@ public class Lib {
                 dummy,
                 sleep,
                 invoke,
-                ord,
-                chr,
                 typeof,
                 substr,
-                strLowerCase,
-                strUpperCase,
-                strTrim,
                 sizeof,
                 histogramAction,
                 clone,
-                sqrt,
                 printStack
-        );
+        ));
+        functions.addAll(NativeBinder.bind(TypedLib.class));
+        return functions;
     }
 }
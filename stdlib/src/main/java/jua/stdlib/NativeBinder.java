@@ -0,0 +1,259 @@
+package jua.stdlib;
+
+import jua.runtime.Context;
+import jua.runtime.Function;
+import jua.runtime.InterpreterRuntimeException;
+import jua.runtime.JuaCallable;
+import jua.runtime.Types;
+import jua.runtime.heap.ListHeap;
+import jua.runtime.heap.MapHeap;
+import jua.runtime.heap.StringHeap;
+import jua.runtime.interpreter.Address;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+import static jua.runtime.Types.*;
+
+/**
+ * Создает нативные функции из статических методов, помеченных {@link NativeFunction}.
+ * <p>
+ * Для каждого метода собирается цепочка {@link MethodHandle}: каждый аргумент читается из своей ячейки
+ * массива аргументов преобразователем под тип параметра, результат записывается в ячейку результата
+ * методом под тип результата. Цепочка вызывается через {@link MethodHandle#invokeExact}, поэтому
+ * ни аргументы, ни результат не упаковываются в объекты.
+ * <p>
+ * Числовые параметры принимают те же значения, что и {@link Address#longVal(Address)} и {@link Address#doubleVal(Address)},
+ * строки и списки принимаются только своего типа.
+ * <p>
+ * Ошибку выполнения метод сообщает исключением {@link InterpreterRuntimeException}, которое становится ошибкой потока.
+ */
+public final class NativeBinder {
+
+    private NativeBinder() {} // A utility class
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    /** Возвращает нативные функции, объявленные статическими методами класса. */
+    public static List<Function> bind(Class<?> owner) {
+        List<Function> functions = new ArrayList<>();
+        for (Method method : owner.getDeclaredMethods()) {
+            NativeFunction annotation = method.getAnnotation(NativeFunction.class);
+            if (annotation != null) {
+                functions.add(bind(method, annotation));
+            }
+        }
+        functions.sort((a, b) -> a.getName().compareTo(b.getName()));
+        return functions;
+    }
+
+    private static Function bind(Method method, NativeFunction annotation) {
+        if (!Modifier.isStatic(method.getModifiers())) {
+            throw new IllegalArgumentException("native function must be static: " + method);
+        }
+        String name = annotation.name().isEmpty() ? method.getName() : annotation.name();
+        Class<?>[] types = method.getParameterTypes();
+        String[] params = annotation.params();
+        if (params.length == 0) {
+            params = new String[types.length];
+            for (int i = 0; i < types.length; i++) {
+                params[i] = method.getParameters()[i].getName();
+            }
+        } else if (params.length != types.length) {
+            throw new IllegalArgumentException("parameter names do not match parameters: " + method);
+        }
+
+        SignatureBuilder builder = SignatureBuilder.builder().name(name);
+        for (String param : params) {
+            builder.param(param);
+        }
+        if (annotation.leaf()) {
+            builder.leaf();
+        }
+        return builder.callable(new Adapter(adapt(method, name))).build();
+    }
+
+    /** Приводит метод к виду {@code (Address returnAddress, Address[] args)void}. */
+    private static MethodHandle adapt(Method method, String name) {
+        MethodHandle target;
+        try {
+            method.setAccessible(true);
+            target = LOOKUP.unreflect(method);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException(e);
+        }
+        Class<?>[] types = method.getParameterTypes();
+        MethodHandle[] readers = new MethodHandle[types.length];
+        for (int i = 0; i < types.length; i++) {
+            readers[i] = MethodHandles.insertArguments(reader(types[i]), 1, i, name);
+        }
+        MethodHandle h = MethodHandles.filterArguments(target, 0, readers);
+        // Все преобразователи читают один и тот же массив аргументов.
+        Class<?> returnType = method.getReturnType();
+        h = MethodHandles.permuteArguments(h, MethodType.methodType(returnType, Address[].class), new int[types.length]);
+        if (returnType == void.class) {
+            return MethodHandles.foldArguments(MethodHandles.dropArguments(h, 0, Address.class), writer(void.class));
+        }
+        return MethodHandles.collectArguments(writer(returnType), 1, h);
+    }
+
+    private static MethodHandle reader(Class<?> type) {
+        return support("arg" + suffix(type), MethodType.methodType(type, Address[].class, int.class, String.class));
+    }
+
+    private static MethodHandle writer(Class<?> type) {
+        MethodType methodType = type == void.class
+                ? MethodType.methodType(void.class, Address.class)
+                : MethodType.methodType(void.class, Address.class, type);
+        return support("ret" + suffix(type), methodType);
+    }
+
+    private static MethodHandle support(String name, MethodType type) {
+        try {
+            return LOOKUP.findStatic(NativeBinder.class, name, type);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException("unsupported native signature: " + type, e);
+        }
+    }
+
+    private static String suffix(Class<?> type) {
+        if (type == void.class) return "Void";
+        if (type == long.class) return "Long";
+        if (type == int.class) return "Int";
+        if (type == double.class) return "Double";
+        if (type == boolean.class) return "Boolean";
+        return type.getSimpleName();
+    }
+
+    private static final class Adapter implements JuaCallable {
+
+        private final MethodHandle handle;
+
+        Adapter(MethodHandle handle) {
+            this.handle = handle;
+        }
+
+        @Override
+        public void call(Context context, Address[] args, Address returnAddress) {
+            try {
+                handle.invokeExact(returnAddress, args);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+    }
+
+    /* * * * * * * * * * * * * * * * * * * *
+     *      ПРЕОБРАЗОВАТЕЛИ АРГУМЕНТОВ     *
+     * * * * * * * * * * * * * * * * * * * */
+
+    static long argLong(Address[] args, int i, String fn) {
+        Address a = args[i];
+        switch (a.getType()) {
+            case T_NULL: return 0L;
+            case T_INT: return a.getLong();
+            case T_FLOAT: return (long) a.getDouble();
+            case T_BOOLEAN: return a.getLong();
+            default: throw badArgument(fn, i, T_INT, a);
+        }
+    }
+
+    static int argInt(Address[] args, int i, String fn) {
+        return (int) argLong(args, i, fn);
+    }
+
+    static double argDouble(Address[] args, int i, String fn) {
+        Address a = args[i];
+        switch (a.getType()) {
+            case T_NULL: return 0.0;
+            case T_INT: return (double) a.getLong();
+            case T_FLOAT: return a.getDouble();
+            case T_BOOLEAN: return (double) a.getLong();
+            default: throw badArgument(fn, i, T_FLOAT, a);
+        }
+    }
+
+    static boolean argBoolean(Address[] args, int i, String fn) {
+        return args[i].booleanVal();
+    }
+
+    static StringHeap argStringHeap(Address[] args, int i, String fn) {
+        Address a = args[i];
+        if (a.getType() != T_STRING) {
+            throw badArgument(fn, i, T_STRING, a);
+        }
+        return a.getStringHeap();
+    }
+
+    static ListHeap argListHeap(Address[] args, int i, String fn) {
+        Address a = args[i];
+        if (a.getType() != T_LIST) {
+            throw badArgument(fn, i, T_LIST, a);
+        }
+        return a.getListHeap();
+    }
+
+    static MapHeap argMapHeap(Address[] args, int i, String fn) {
+        Address a = args[i];
+        if (a.getType() != T_MAP) {
+            throw badArgument(fn, i, T_MAP, a);
+        }
+        return a.getMapHeap();
+    }
+
+    static Address argAddress(Address[] args, int i, String fn) {
+        return args[i];
+    }
+
+    private static InterpreterRuntimeException badArgument(String fn, int i, byte expected, Address actual) {
+        return new InterpreterRuntimeException(String.format("%s: argument #%d must be %s, got %s",
+                fn, i + 1, Types.getTypeName(expected), actual.getTypeName()));
+    }
+
+    /* * * * * * * * * * * * * * * * * * * *
+     *       ЗАПИСЬ РЕЗУЛЬТАТА             *
+     * * * * * * * * * * * * * * * * * * * */
+
+    static void retVoid(Address returnAddress) {
+        returnAddress.setNull();
+    }
+
+    static void retLong(Address returnAddress, long value) {
+        returnAddress.set(value);
+    }
+
+    static void retInt(Address returnAddress, int value) {
+        returnAddress.set((long) value);
+    }
+
+    static void retDouble(Address returnAddress, double value) {
+        returnAddress.set(value);
+    }
+
+    static void retBoolean(Address returnAddress, boolean value) {
+        returnAddress.set(value);
+    }
+
+    static void retStringHeap(Address returnAddress, StringHeap value) {
+        returnAddress.set(value);
+    }
+
+    static void retListHeap(Address returnAddress, ListHeap value) {
+        returnAddress.set(value);
+    }
+
+    static void retMapHeap(Address returnAddress, MapHeap value) {
+        returnAddress.set(value);
+    }
+
+    static void retAddress(Address returnAddress, Address value) {
+        returnAddress.set(value);
+    }
+}
@@ -0,0 +1,31 @@
+package jua.stdlib;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Помечает статический метод, который {@link NativeBinder} регистрирует как нативную функцию Jua.
+ * <p>
+ * Параметры метода могут иметь типы {@code long}, {@code int}, {@code double}, {@code boolean},
+ * {@link jua.runtime.heap.StringHeap}, {@link jua.runtime.heap.ListHeap}, {@link jua.runtime.heap.MapHeap}
+ * и {@link jua.runtime.interpreter.Address}.
+ * Те же типы, а также {@code void}, допустимы для результата.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface NativeFunction {
+
+    /** Имя функции в Jua. По умолчанию совпадает с именем метода. */
+    String name() default "";
+
+    /** Имена параметров. По умолчанию берутся из метода. */
+    String[] params() default {};
+
+    /**
+     * Функция {@link jua.runtime.Function#isLeaf() листовая}. Листовая функция получает аргументы во временных
+     * ячейках потока, которые не рассчитаны на повторный вход, поэтому она не должна вызывать код Jua.
+     */
+    boolean leaf() default false;
+}
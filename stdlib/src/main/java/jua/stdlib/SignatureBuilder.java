@@ -67,6 +67,12 @@ public class SignatureBuilder {
         return this;
     }
 
+    /** Помечает функцию как {@link Function#isLeaf() листовую}. */
+    public SignatureBuilder leaf() {
+        this.flags |= Function.FLAG_LEAF;
+        return this;
+    }
+
     public Function build() {
         int required = params.size() - defaults.size();
         int total = params.size();
@@ -79,12 +85,12 @@ public class SignatureBuilder {
                 })
                 .toArray(Address[]::new);
         JuaCallable c = callable;
+        Context context = new Context();
         NativeExecutor body = (args, argc, returnAddress) -> {
-            Context context = new Context();
             try {
                 c.call(context, args, returnAddress);
                 return true;
-            } catch (RuntimeErrorException e) {
+            } catch (RuntimeErrorException | InterpreterRuntimeException e) {
                 InterpreterThread.threadError(e.getMessage());
                 return false;
             }
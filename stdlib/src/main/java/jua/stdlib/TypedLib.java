@@ -0,0 +1,118 @@
+package jua.stdlib;
+
+import jua.runtime.InterpreterRuntimeException;
+import jua.runtime.heap.ListHeap;
+import jua.runtime.heap.MapHeap;
+import jua.runtime.heap.StringHeap;
+import jua.runtime.interpreter.Address;
+
+/**
+ * Нативные функции, объявленные статическими методами с типизированными параметрами.
+ * Регистрируются через {@link NativeBinder}.
+ */
+public final class TypedLib {
+
+    private TypedLib() {} // A utility class
+
+    @NativeFunction(params = "char", leaf = true)
+    static long ord(StringHeap str) {
+        return str.codePointAt(0);
+    }
+
+    @NativeFunction(params = "codePoint", leaf = true)
+    static StringHeap chr(int codePoint) {
+        return new StringHeap(new StringBuilder().appendCodePoint(codePoint));
+    }
+
+    @NativeFunction(params = "x", leaf = true)
+    static double sqrt(double x) {
+        return Math.sqrt(x);
+    }
+
+    @NativeFunction(params = {"str", "index"}, leaf = true)
+    static long strCodePointAt(StringHeap str, long index) {
+        if (index < 0 || index >= str.length()) {
+            return -1;
+        }
+        return str.codePointAt((int) index);
+    }
+
+    @NativeFunction(params = "str", leaf = true)
+    static StringHeap strLowerCase(StringHeap str) {
+        return new StringHeap(str.toString().toLowerCase());
+    }
+
+    @NativeFunction(params = "str", leaf = true)
+    static StringHeap strUpperCase(StringHeap str) {
+        return new StringHeap(str.toString().toUpperCase());
+    }
+
+    @NativeFunction(params = "str", leaf = true)
+    static StringHeap strTrim(StringHeap str) {
+        return new StringHeap(str.toString().trim());
+    }
+
+    @NativeFunction(params = {"list", "value"}, leaf = true)
+    static void listPush(ListHeap list, Address value) {
+        list.push(value);
+    }
+
+    @NativeFunction(params = "list", leaf = true)
+    static Address listPop(ListHeap list) {
+        if (list.isEmpty()) {
+            throw new InterpreterRuntimeException("listPop: list is empty");
+        }
+        Address value = new Address();
+        list.pop(value);
+        return value;
+    }
+
+    @NativeFunction(params = {"list", "index", "value"}, leaf = true)
+    static void listInsert(ListHeap list, long index, Address value) {
+        if (index < 0 || index > list.length()) {
+            throw indexError("listInsert", index, list);
+        }
+        list.insert((int) index, value);
+    }
+
+    @NativeFunction(params = {"list", "index"}, leaf = true)
+    static Address listRemove(ListHeap list, long index) {
+        if (index < 0 || index >= list.length()) {
+            throw indexError("listRemove", index, list);
+        }
+        Address value = new Address();
+        list.remove((int) index, value);
+        return value;
+    }
+
+    @NativeFunction(params = "list", leaf = true)
+    static void listTrimToSize(ListHeap list) {
+        list.trimToSize();
+    }
+
+    @NativeFunction(params = "map", leaf = true)
+    static ListHeap mapKeys(MapHeap map) {
+        return map.keys();
+    }
+
+    @NativeFunction(params = "map", leaf = true)
+    static ListHeap mapValues(MapHeap map) {
+        return map.values();
+    }
+
+    @NativeFunction(params = {"map", "key"}, leaf = true)
+    static boolean mapContainsKey(MapHeap map, Address key) {
+        return map.containsKey(key);
+    }
+
+    @NativeFunction(params = {"map", "key"}, leaf = true)
+    static Address mapRemove(MapHeap map, Address key) {
+        Address value = new Address();
+        map.remove(key, value);
+        return value;
+    }
+
+    private static InterpreterRuntimeException indexError(String fn, long index, ListHeap list) {
+        return new InterpreterRuntimeException(String.format("%s: index %d out of the list bounds %d", fn, index, list.length()));
+    }
+}